@@ -0,0 +1,169 @@
+package jade.tree;
+
+import jade.MessageLogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the heap held by the trees of a large study once it has been read, by either the NexsonReader or the
+ * NexsonStreamReader. The study is generated: `trees` trees that each have every one of the `otus` otus as a tip, and
+ * each otu has an ott id and an original label, as in the studies we import.
+ *
+ * The figure of interest is the retainedBytes counter rather than the time, which includes the full garbage
+ * collections needed to measure the heap. JMH reports the counter summed over the measurement iterations, so divide it
+ * by their count to get the heap retained by one read. The benchmark uses only the public reader api, so the heap saved
+ * by a change to the readers can be measured by running it against otu builds from before and after the change.
+ *
+ * Run with e.g. java -jar target/benchmarks.jar NexsonHeapBenchmark -p otus=5000 -p trees=50
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class NexsonHeapBenchmark {
+
+	@Param({"2000"})
+	public int otus;
+
+	@Param({"20"})
+	public int trees;
+
+	private String study;
+	private MessageLogger msgLogger;
+
+	/**
+	 * Reports the heap retained by the trees read in each iteration.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Heap {
+		public long retainedBytes;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			retainedBytes = 0;
+		}
+	}
+
+	@Setup
+	public void makeStudy() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"nexml\": {\"@id\": \"study\", \"otus\": {\"otu\": [");
+		for (int i = 0; i < otus; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append("{\"@id\": \"otu").append(i).append("\", \"@label\": \"Taxon ").append(i).append("\", \"meta\": [")
+				.append("{\"@property\": \"ot:ottolid\", \"$\": ").append(100000 + i).append("}, ")
+				.append("{\"@property\": \"ot:originalLabel\", \"$\": \"Taxon ").append(i).append(" original\"}]}");
+		}
+		sb.append("]}, \"trees\": {\"tree\": [");
+		for (int t = 0; t < trees; t++) {
+			if (t > 0) {
+				sb.append(", ");
+			}
+			StringBuilder nodes = new StringBuilder();
+			StringBuilder edges = new StringBuilder();
+			// each tree puts the otus in a different order
+			appendClade(nodes, edges, t, 0, otus, null, new int[] {0});
+			sb.append("{\"@id\": \"tree").append(t).append("\", \"node\": [").append(nodes)
+				.append("], \"edge\": [").append(edges).append("]}");
+		}
+		study = sb.append("]}}}").toString();
+
+		msgLogger = new MessageLogger("");
+		msgLogger.setPrintStream(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+		}));
+	}
+
+	@Benchmark
+	public List<JadeTree> nexsonReader(Heap heap) throws IOException {
+		long before = usedHeap();
+		List<JadeTree> read = collect(NexsonReader.readNexson(new StringReader(study), "study", false, msgLogger));
+		heap.retainedBytes += usedHeap() - before;
+		return read;
+	}
+
+	@Benchmark
+	public List<JadeTree> nexsonStreamReader(Heap heap) throws IOException {
+		long before = usedHeap();
+		List<JadeTree> read = collect(NexsonStreamReader.readNexson(new StringReader(study), "study", false, msgLogger));
+		heap.retainedBytes += usedHeap() - before;
+		return read;
+	}
+
+	// ===== private methods
+
+	private static List<JadeTree> collect(NexsonSource source) {
+		List<JadeTree> read = new ArrayList<JadeTree>();
+		for (JadeTree tree : source.getTrees()) {
+			read.add(tree);
+		}
+		return read;
+	}
+
+	/**
+	 * Get the heap in use after collecting everything that is unreachable.
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+
+	/**
+	 * Append the nodes and edges of a balanced clade whose tips are the otus from `first` up to (but not including)
+	 * `last`, shifted by `tree` places. Returns the clade's node id.
+	 */
+	private String appendClade(StringBuilder nodes, StringBuilder edges, int tree, int first, int last, String parentId, int[] nextId) {
+		String id = "t" + tree + "n" + nextId[0]++;
+		if (nodes.length() > 0) {
+			nodes.append(", ");
+		}
+		if (last - first > 1) {
+			nodes.append("{\"@id\": \"").append(id).append("\"}");
+			int middle = (first + last) / 2;
+			appendClade(nodes, edges, tree, first, middle, id, nextId);
+			appendClade(nodes, edges, tree, middle, last, id, nextId);
+		} else {
+			int otu = (first + tree * 7) % otus;
+			nodes.append("{\"@id\": \"").append(id).append("\", \"@otu\": \"otu").append(otu).append("\"}");
+		}
+		if (parentId != null) {
+			if (edges.length() > 0) {
+				edges.append(", ");
+			}
+			edges.append("{\"@source\": \"").append(parentId).append("\", \"@target\": \"").append(id)
+				.append("\", \"@length\": 0.1}");
+		}
+		return id;
+	}
+}
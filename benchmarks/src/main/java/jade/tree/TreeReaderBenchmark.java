@@ -0,0 +1,89 @@
+package jade.tree;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares TreeReader with the parser it replaced (LegacyTreeReader) on a balanced tree with the given number of tips.
+ * Every node has a label of `labelLength` characters and a branch length, so the long labels show the cost of the old
+ * parser's per-character string concatenation.
+ *
+ * Run with e.g. java -jar target/benchmarks.jar TreeReaderBenchmark -p tips=100000 -p labelLength=10
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeReaderBenchmark {
+
+	@Param({"1000", "10000"})
+	public int tips;
+
+	@Param({"10", "200"})
+	public int labelLength;
+
+	private String newick;
+
+	@Setup
+	public void makeTree() {
+		StringBuilder sb = new StringBuilder();
+		appendClade(sb, 0, tips);
+		newick = sb.append(';').toString();
+	}
+
+	@Benchmark
+	public JadeTree legacy() {
+		return new LegacyTreeReader().readTree(newick);
+	}
+
+	@Benchmark
+	public JadeTree current() {
+		return new TreeReader().readTree(newick);
+	}
+
+	@Benchmark
+	public JadeTree currentFromReader() throws IOException {
+		return new TreeReader().readTree(new StringReader(newick));
+	}
+
+	/**
+	 * Append a balanced clade containing the tips numbered from `first` up to (but not including) `last`.
+	 */
+	private void appendClade(StringBuilder sb, int first, int last) {
+		if (last - first > 1) {
+			int middle = (first + last) / 2;
+			sb.append('(');
+			appendClade(sb, first, middle);
+			sb.append(',');
+			appendClade(sb, middle, last);
+			sb.append(')');
+			appendLabel(sb, "n", first);
+		} else {
+			appendLabel(sb, "t", first);
+		}
+		sb.append(':').append(0.001 * (first % 100 + 1));
+	}
+
+	private void appendLabel(StringBuilder sb, String prefix, int number) {
+		int start = sb.length();
+		sb.append(prefix).append(number);
+		while (sb.length() - start < labelLength) {
+			sb.append('_');
+		}
+	}
+}
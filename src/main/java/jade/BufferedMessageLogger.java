@@ -0,0 +1,122 @@
+package jade;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A MessageLogger that holds its messages until they are replayed into another logger. Used to keep the messages for
+ * work done on other threads together, and in order, e.g. when trees are parsed in parallel.
+ *
+ * The base class routes all messages through the indentMessage* methods, so those are the only ones recorded.
+ */
+public class BufferedMessageLogger extends MessageLogger {
+
+	private interface Message {
+		void replay(MessageLogger target);
+	}
+
+	private final List<Message> messages = new ArrayList<Message>();
+
+	public BufferedMessageLogger() {
+		super("");
+	}
+
+	/**
+	 * Send all the held messages to `target`, in the order they were received, and clear them.
+	 * @param target
+	 */
+	public void replay(MessageLogger target) {
+		for (Message m : messages) {
+			m.replay(target);
+		}
+		messages.clear();
+	}
+
+	@Override
+	public void indentMessage(final int indentLevel, final String label) {
+		messages.add(new Message() {
+			public void replay(MessageLogger target) {
+				target.indentMessage(indentLevel, label);
+			}
+		});
+	}
+
+	@Override
+	public void indentMessageStr(final int indentLevel, final String label, final String s, final String s2) {
+		messages.add(new Message() {
+			public void replay(MessageLogger target) {
+				target.indentMessageStr(indentLevel, label, s, s2);
+			}
+		});
+	}
+
+	@Override
+	public void indentMessageInt(final int indentLevel, final String label, final String s, final int i) {
+		messages.add(new Message() {
+			public void replay(MessageLogger target) {
+				target.indentMessageInt(indentLevel, label, s, i);
+			}
+		});
+	}
+
+	@Override
+	public void indentMessageLong(final int indentLevel, final String label, final String s, final Long i) {
+		messages.add(new Message() {
+			public void replay(MessageLogger target) {
+				target.indentMessageLong(indentLevel, label, s, i);
+			}
+		});
+	}
+
+	@Override
+	public void indentMessageLongStr(final int indentLevel, final String label, final String s, final Long i, final String s2, final String s3) {
+		messages.add(new Message() {
+			public void replay(MessageLogger target) {
+				target.indentMessageLongStr(indentLevel, label, s, i, s2, s3);
+			}
+		});
+	}
+
+	@Override
+	public void indentMessageIntStr(final int indentLevel, final String label, final String s, final int i, final String s2, final String s3) {
+		messages.add(new Message() {
+			public void replay(MessageLogger target) {
+				target.indentMessageIntStr(indentLevel, label, s, i, s2, s3);
+			}
+		});
+	}
+
+	@Override
+	public void indentMessageStrStr(final int indentLevel, final String label, final String s, final String s2, final String s3, final String s4) {
+		messages.add(new Message() {
+			public void replay(MessageLogger target) {
+				target.indentMessageStrStr(indentLevel, label, s, s2, s3, s4);
+			}
+		});
+	}
+
+	@Override
+	public void indentMessageLongStrStr(final int indentLevel, final String label, final String s, final Long i, final String s2,
+			final String s3, final String s4, final String s5) {
+		messages.add(new Message() {
+			public void replay(MessageLogger target) {
+				target.indentMessageLongStrStr(indentLevel, label, s, i, s2, s3, s4, s5);
+			}
+		});
+	}
+
+	@Override
+	public void indentMessageLongStrStrStr(final int indentLevel, final String label, final String s, final Long i, final String s2,
+			final String s3, final String s4, final String s5, final String s6, final String s7) {
+		messages.add(new Message() {
+			public void replay(MessageLogger target) {
+				target.indentMessageLongStrStrStr(indentLevel, label, s, i, s2, s3, s4, s5, s6, s7);
+			}
+		});
+	}
+
+	// closing is left to the target logger
+	@Override
+	public void close() {
+	}
+}
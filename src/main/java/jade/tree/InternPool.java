@@ -0,0 +1,76 @@
+package jade.tree;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pool of canonical instances for the strings and numbers that are repeated across the nodes of a study, such as the
+ * JadeNode metadata keys, otu labels and ott ids. Interning them means that each distinct value is held once rather than
+ * once per node.
+ *
+ * String.intern() is not used because on the JVMs we target it allocates from the permanent generation, which is small
+ * and never shrinks; values held by a pool are freed along with the pool.
+ *
+ * Pools are safe to use from multiple threads, e.g. when the trees of a study are imported in parallel.
+ */
+public class InternPool {
+
+	private final ConcurrentHashMap<Object, Object> pool = new ConcurrentHashMap<Object, Object>();
+	private final int maxSize;
+
+	/**
+	 * Create an unbounded pool. Intended for pools that live as long as a single read.
+	 */
+	public InternPool() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create a pool that holds at most `maxSize` values. Once it is full, values that are not already in the pool are
+	 * returned as they are. Intended for long-lived pools.
+	 * @param maxSize
+	 */
+	public InternPool(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Return the pooled instance equal to `s`, adding `s` to the pool if there is none.
+	 * @param s
+	 * @return
+	 */
+	public String intern(String s) {
+		return (String) internObject(s);
+	}
+
+	/**
+	 * Return the pooled instance of a metadata value. Strings and numbers are interned; other values (including
+	 * null) are returned unchanged.
+	 * @param value
+	 * @return
+	 */
+	public Object internValue(Object value) {
+		if (value instanceof String || value instanceof Long || value instanceof Integer || value instanceof Double) {
+			return internObject(value);
+		}
+		return value;
+	}
+
+	public int size() {
+		return pool.size();
+	}
+
+	private Object internObject(Object value) {
+		if (value == null) {
+			return null;
+		}
+		Object pooled = pool.get(value);
+		if (pooled != null) {
+			return pooled;
+		}
+		if (pool.size() >= maxSize) {
+			return value;
+		}
+		pooled = pool.putIfAbsent(value, value);
+		return pooled != null ? pooled : value;
+	}
+}
@@ -21,6 +21,13 @@ public class JadeNode {
 //	private ArrayList<NodeObject> assoc; // @note might need to make this a HashMap<String, Object> or TreeMap<String,Object>
 	private HashMap<String, Object> assoc;
 	
+	// most nodes only hold a few associations (nexsonid, ot:ottolid, ot:originalLabel), so start small
+	private static final int INITIAL_ASSOC_CAPACITY = 4;
+
+	// association keys are the same few metadata names for every node, so share one instance of each. bounded
+	// because it lives for the life of the jvm.
+	private static final InternPool assocKeys = new InternPool(4096);
+	
 	/*
 	 * constructors
 	 */
@@ -52,26 +59,42 @@ public class JadeNode {
 		this.parent = null;
 		this.children = new ArrayList<JadeNode> ();
 //		this.assoc = new ArrayList<NodeObject>();
-		this.assoc = new HashMap<String, Object>();
+		this.assoc = new HashMap<String, Object>(INITIAL_ASSOC_CAPACITY);
 	}
 	
     // ===== node iterators
 
     public enum NodeOrder {PREORDER, POSTORDER};
 
-    private void addDescendants(JadeNode n, List<JadeNode> children, NodeOrder order) {
+    /**
+     * Add `n` and all its descendants to `nodes`, children in order. Uses an explicit stack so that deep trees
+     * do not exhaust the thread stack.
+     * 
+     * Note that NodeOrder.PREORDER places each node *after* its descendants and NodeOrder.POSTORDER places it before
+     * them. This is the order that these iterators have always returned, and calling code depends on it.
+     */
+    private void addDescendants(JadeNode n, LinkedList<JadeNode> nodes, NodeOrder order) {
+
+        LinkedList<JadeNode> stack = new LinkedList<JadeNode>();
+        stack.push(n);
 
         if (order == NodeOrder.PREORDER) {
-            for (JadeNode c : n.children){
-                addDescendants(c, children, order);
+            // visit node then children from last to first, prepending each, which gives children before parents
+            while (!stack.isEmpty()) {
+                JadeNode cur = stack.pop();
+                nodes.addFirst(cur);
+                for (JadeNode c : cur.children) {
+                    stack.push(c);
+                }
             }
-            children.add(n);
 
         } else if (order == NodeOrder.POSTORDER) {
-            children.add(n);
-
-            for (JadeNode c : n.children){
-                addDescendants(c, children, order);
+            while (!stack.isEmpty()) {
+                JadeNode cur = stack.pop();
+                nodes.add(cur);
+                for (int i = cur.children.size() - 1; i >= 0; i--) {
+                    stack.push(cur.children.get(i));
+                }
             }
         }
     }
@@ -372,12 +395,12 @@ public class JadeNode {
 	 * Adds a mapping of key->obj for this tree. Unlike the JavaNode version,
 	 *	this method does NOT guard against multiple keys being added. Note
 	 *	that only the last object associated with a key will be accessible via
-	 *	getObject
+	 *	getObject. Keys are interned, so nodes share a single instance of each.
 	 * @param key
 	 * @param obj Object to be stored
 	 */
 	public void assocObject(String key, Object obj) {
-		assoc.put(key, obj);
+		assoc.put(assocKeys.intern(key), obj);
 	}
 
 	/**
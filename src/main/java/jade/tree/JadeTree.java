@@ -22,6 +22,28 @@ public class JadeTree {
 
 	private boolean hasBranchLengths; //false by default
 
+	private MRCALookup mrcaLookup; // built on first use by the getMRCA methods, discarded whenever the node lists change
+
+	/**
+	 * The MRCA index of the tree, in preorder, and the lookups from names and nodes into it used by the getMRCA methods.
+	 */
+	private static class MRCALookup {
+		final MRCAIndex index;
+		final ArrayList<JadeNode> preorder;
+		final HashMap<JadeNode,Integer> positions;
+		final HashMap<String,JadeNode> externalNodesByName;
+		final HashMap<String,JadeNode> internalNodesByName;
+
+		MRCALookup(MRCAIndex index, ArrayList<JadeNode> preorder, HashMap<JadeNode,Integer> positions,
+				HashMap<String,JadeNode> externalNodesByName, HashMap<String,JadeNode> internalNodesByName) {
+			this.index = index;
+			this.preorder = preorder;
+			this.positions = positions;
+			this.externalNodesByName = externalNodesByName;
+			this.internalNodesByName = internalNodesByName;
+		}
+	}
+
 	/*
 	 * constructors
 	 */
@@ -48,6 +70,7 @@ public class JadeTree {
 		externalNodes = new ArrayList<JadeNode>();
 		internalNodeCount = 0;
 		externalNodeCount = 0;
+		mrcaLookup = null;
 		if (root == null) {
 			return;
 		}
@@ -62,6 +85,7 @@ public class JadeTree {
 		externalNodes.add(tn);
 		externalNodeCount = externalNodes.size();
 		nodes.add(tn);
+		mrcaLookup = null;
 	}
 
 	/**
@@ -73,6 +97,7 @@ public class JadeTree {
 		internalNodeCount = internalNodes.size();
 		//to nodes
 		nodes.add(tn);
+		mrcaLookup = null;
 	}
 
 	/**
@@ -157,7 +182,10 @@ public class JadeTree {
 	
 	public JadeNode getRoot() {return root;}
 
-	public void setRoot(JadeNode root) {this.root = root;}
+	public void setRoot(JadeNode root) {
+		this.root = root;
+		mrcaLookup = null;
+	}
 
 	/**
 	 * Adds a mapping of key->obj for this tree. Unlike the JavaNode version,
@@ -304,96 +332,72 @@ public class JadeTree {
 	}
 
 	/**
-	 * @return the node in the tree that is the most recent common ancestor of all of the leaves specified
+	 * @return the node in the tree that is the most recent common ancestor of all of the leaves specified, or null if
+	 *		any of them is not in the tree
 	 * @param innodes an array of leaf node names
-	 * @todo this could be optimized (by not calling getMRCATraverse repeatedly)
 	 */
 	public JadeNode getMRCA(String [] innodes) {
 		if (innodes.length == 1)
     		return this.getExternalNode(innodes[0]);
-		ArrayList <String> outgroup = new ArrayList<String>();
-		for (int i = 0;i < innodes.length; i++) {
-			outgroup.add(innodes[i]);
-		}
-		JadeNode cur1 = this.getExternalNode(outgroup.get(0));
-		outgroup.remove(0);
-		JadeNode cur2 = null;
-		JadeNode tempmrca = null;
-		while (outgroup.size() > 0) {
-			cur2 = this.getExternalNode(outgroup.get(0));
-			outgroup.remove(0);
-			tempmrca = getMRCATraverse(cur1, cur2);
-			cur1 = tempmrca;
-		}
-		return cur1;
+		return getMRCAOfLeaves(Arrays.asList(innodes));
     }
 	
 	/**
-	 * @return the node in the tree that is the most recent common ancestor of all of the leaves specified
+	 * @return the node in the tree that is the most recent common ancestor of all of the leaves specified, or null if
+	 *		any of them is not in the tree
 	 * @param innodes an array of leaf node names
-	 * @todo this could be optimized (by not calling getMRCATraverse repeatedly)
 	 */
 	public JadeNode getMRCA(ArrayList<String> innodes) {
     	if (innodes.size() == 1) {
     		return this.getExternalNode(innodes.get(0));
     	}
-		ArrayList <String> outgroup = new ArrayList<String>();
-		for (int i = 0; i < innodes.size(); i++) {
-			outgroup.add(innodes.get(i));
-		}
-		JadeNode cur1 = this.getExternalNode(outgroup.get(0));
-		outgroup.remove(0);
-		JadeNode cur2 = null;
-		JadeNode tempmrca = null;
-		while (outgroup.size() > 0) {
-			cur2 = this.getExternalNode(outgroup.get(0));
-			outgroup.remove(0);
-			tempmrca = getMRCATraverse(cur1,cur2);
-			cur1 = tempmrca;
-		}
-		return cur1;
+		return getMRCAOfLeaves(innodes);
     }
 	
 	   /**
-     * @return the node in the tree that is the most recent common ancestor of all of the leaves specified
-     * @param innodes an array of leaf node names
-     * @todo this could be optimized (by not calling getMRCATraverse repeatedly)
+     * @return the node in the tree that is the most recent common ancestor of all of the nodes specified
+     * @param innodes an array of node names. Leaf names are matched first, then internal node names.
+     * @throws IllegalStateException if a name matches no node
      */
     public JadeNode getMRCAAnyDepthDescendants(ArrayList<String> innodes) {
         if (innodes.size() == 1) {
             return this.getExternalNode(innodes.get(0));
         }
-        ArrayList <String> outgroup = new ArrayList<String>();
-        for (int i = 0; i < innodes.size(); i++) {
-            outgroup.add(innodes.get(i));
-        }
-        JadeNode cur1 = this.getExternalNode(outgroup.get(0));
-
-        if (cur1 == null)
-            cur1 = this.getInternalNode(outgroup.get(0));
-        
-        if (cur1 == null)
-            throw new java.lang.IllegalStateException("could not find the taxon " + outgroup.get(0));
-
-        outgroup.remove(0);
-        JadeNode cur2 = null;
-        JadeNode tempmrca = null;
-
-        while (outgroup.size() > 0) {
-            cur2 = this.getExternalNode(outgroup.get(0));
-
-            if (cur2 == null)
-                cur2 = this.getInternalNode(outgroup.get(0));
-
-            if (cur2 == null)
-                throw new java.lang.IllegalStateException("could not find the taxon " + outgroup.get(0));
-
-            outgroup.remove(0);
-            tempmrca = getMRCATraverse(cur1,cur2);
-            cur1 = tempmrca;
+        MRCALookup lookup = getMRCALookup();
+        ArrayList<JadeNode> descendants = new ArrayList<JadeNode>(innodes.size());
+        for (String name : innodes) {
+            JadeNode cur = lookup.externalNodesByName.get(name);
+            if (cur == null)
+                cur = lookup.internalNodesByName.get(name);
+            if (cur == null)
+                throw new java.lang.IllegalStateException("could not find the taxon " + name);
+            descendants.add(cur);
         }
-        return cur1;
+        return getMRCAOfNodes(descendants);
     }
+
+	/**
+	 * @return the node in the tree that is the most recent common ancestor of all of the nodes given, which need not be
+	 *		leaves, or null if there are none
+	 * Uses the MRCA index of the tree, which is built on the first call after the tree has changed, so repeated queries
+	 * take time proportional to the number of nodes given rather than to their depth.
+	 */
+	public JadeNode getMRCAOfNodes(List<JadeNode> innodes) {
+		if (innodes.isEmpty()) {
+			return null;
+		}
+		MRCALookup lookup = getMRCALookup();
+		int [] positions = new int[innodes.size()];
+		for (int i = 0; i < positions.length; i++) {
+			Integer position = lookup.positions.get(innodes.get(i));
+			if (position == null) {
+				// not reachable from the root (the tree was changed through its nodes without calling processRoot)
+				return getMRCAByTraversal(innodes);
+			}
+			positions[i] = position;
+		}
+		return lookup.preorder.get(lookup.index.getMRCA(positions));
+	}
 	
 	/**
 	 * Changes the direction of the arc connecting node to it's parent
@@ -433,21 +437,18 @@ public class JadeTree {
 	}
 
 	/**
-	 * Adds node and its descendants to the appropriate list (externalNodes or internalNodes)
+	 * Adds node and its descendants to the appropriate list (externalNodes or internalNodes), children before parents.
 	 */
 	private void postOrderProcessRoot(JadeNode node) {
 		if (node == null)
 			return;
-		if (node.getChildCount() > 0) {
-			for (int i = 0; i < node.getChildCount(); i++) {
-				postOrderProcessRoot(node.getChild(i)); //@todo recursion could be a problem for big trees...
+		for (JadeNode n : node.getDescendants(JadeNode.NodeOrder.PREORDER)) { // PREORDER lists children first
+			if (n.isExternal()) {
+				addExternalNode(n);
+			} else {
+				addInternalNode(n);
 			}
 		}
-		if (node.isExternal()) {
-			addExternalNode(node);
-		} else {
-			addInternalNode(node);
-		}
 	}
 
 	/**
@@ -499,6 +500,83 @@ public class JadeTree {
 		}
 	}
 	
+	/**
+	 * Looks up the leaves by name and returns their MRCA, or null if any of them is not in the tree.
+	 */
+	private JadeNode getMRCAOfLeaves(List<String> innodes) {
+		MRCALookup lookup = getMRCALookup();
+		ArrayList<JadeNode> leaves = new ArrayList<JadeNode>(innodes.size());
+		for (String name : innodes) {
+			JadeNode leaf = lookup.externalNodesByName.get(name);
+			if (leaf == null) {
+				return null;
+			}
+			leaves.add(leaf);
+		}
+		return getMRCAOfNodes(leaves);
+	}
+
+	/**
+	 * Builds the MRCA index and name lookups if they have not been built since the tree last changed. As with
+	 * getExternalNode(String) and getInternalNode(String), the first node with a name in the node lists is the one found.
+	 */
+	private MRCALookup getMRCALookup() {
+		if (mrcaLookup != null) {
+			return mrcaLookup;
+		}
+		ArrayList<JadeNode> preorder = new ArrayList<JadeNode>();
+		HashMap<JadeNode,Integer> positions = new HashMap<JadeNode,Integer>();
+		ArrayList<Integer> parents = new ArrayList<Integer>();
+		if (root != null) {
+			// iterative, so deep trees cannot overflow the stack
+			LinkedList<JadeNode> stack = new LinkedList<JadeNode>();
+			LinkedList<Integer> parentStack = new LinkedList<Integer>();
+			stack.push(root);
+			parentStack.push(-1);
+			while (!stack.isEmpty()) {
+				JadeNode node = stack.pop();
+				positions.put(node, preorder.size());
+				parents.add(parentStack.pop());
+				for (int i = node.getChildCount() - 1; i >= 0; i--) {
+					stack.push(node.getChild(i));
+					parentStack.push(preorder.size());
+				}
+				preorder.add(node);
+			}
+		}
+		int [] parentArray = new int[parents.size()];
+		for (int i = 0; i < parentArray.length; i++) {
+			parentArray[i] = parents.get(i);
+		}
+
+		HashMap<String,JadeNode> externalNodesByName = new HashMap<String,JadeNode>();
+		for (JadeNode ne : externalNodes) {
+			if (ne.getName() != null && !externalNodesByName.containsKey(ne.getName())) {
+				externalNodesByName.put(ne.getName(), ne);
+			}
+		}
+		HashMap<String,JadeNode> internalNodesByName = new HashMap<String,JadeNode>();
+		for (JadeNode ne : internalNodes) {
+			if (ne.getName() != null && !internalNodesByName.containsKey(ne.getName())) {
+				internalNodesByName.put(ne.getName(), ne);
+			}
+		}
+
+		mrcaLookup = new MRCALookup(new MRCAIndex(parentArray), preorder, positions, externalNodesByName, internalNodesByName);
+		return mrcaLookup;
+	}
+
+	/**
+	 * @returns the MRCA of the nodes by walking up from them, or null if they do not have a common ancestor
+	 */
+	private static JadeNode getMRCAByTraversal(List<JadeNode> innodes) {
+		JadeNode cur = innodes.get(0);
+		for (int i = 1; i < innodes.size() && cur != null; i++) {
+			cur = getMRCATraverse(cur, innodes.get(i));
+		}
+		return cur;
+	}
+
 	/*
 	 * @returns the MRCA of two nodes in a tree. Returns null if the two nodes
 	 *		do not have a common ancestor
@@ -0,0 +1,119 @@
+package jade.tree;
+
+/**
+ * Answers most recent common ancestor queries on a fixed tree in constant time per node, after O(N log N)
+ * preprocessing. The nodes are numbered in preorder, so the subtree below each node is a consecutive run of numbers
+ * starting at the node itself.
+ *
+ * For two nodes a < b, every node numbered from a + 1 up to b is a descendant of their MRCA, and the shallowest of them
+ * is a child of it, so the MRCA is the parent of the shallowest of those nodes. The shallowest node of any range is
+ * found with a sparse table of the shallowest node in each range of length 2^k. The MRCA of a set of nodes is the MRCA of
+ * its lowest and highest numbered nodes, so sets need only a single range query after their ends are found.
+ */
+public final class MRCAIndex {
+
+	private final int[] parents;
+	private final int[] depths;
+
+	// shallowest[k - 1][i] is the shallowest of the nodes from i up to i + 2^k - 1
+	private final int[][] shallowest;
+
+	/**
+	 * @param parents
+	 * 		The parent of each node, with the nodes numbered in preorder from 0 (the root, whose parent is -1)
+	 */
+	public MRCAIndex(int[] parents) {
+		int size = parents.length;
+		this.parents = parents.clone();
+		depths = new int[size];
+		for (int i = 1; i < size; i++) {
+			if (parents[i] < 0 || parents[i] >= i) {
+				throw new IllegalArgumentException("The nodes are not numbered in preorder: node " + i + " has parent " + parents[i]);
+			}
+			depths[i] = depths[parents[i]] + 1;
+		}
+
+		int levels = size > 1 ? 31 - Integer.numberOfLeadingZeros(size) : 0;
+		shallowest = new int[levels][];
+		for (int k = 1; k <= levels; k++) {
+			int half = 1 << (k - 1);
+			int[] level = new int[size - (1 << k) + 1];
+			for (int i = 0; i < level.length; i++) {
+				level[i] = shallower(getShallowest(k - 1, i), getShallowest(k - 1, i + half));
+			}
+			shallowest[k - 1] = level;
+		}
+	}
+
+	/**
+	 * The number of nodes in the tree.
+	 * @return
+	 */
+	public int size() {
+		return parents.length;
+	}
+
+	/**
+	 * Get the number of edges from the root to a node.
+	 * @param node
+	 * @return
+	 */
+	public int getDepth(int node) {
+		return depths[node];
+	}
+
+	/**
+	 * Get the most recent common ancestor of two nodes. If one of the nodes is an ancestor of the other, that node is
+	 * returned.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public int getMRCA(int a, int b) {
+		return a < b ? getMRCAOfRange(a, b) : getMRCAOfRange(b, a);
+	}
+
+	/**
+	 * Get the most recent common ancestor of a set of nodes.
+	 * @param nodes
+	 * @return
+	 * 		the MRCA, or -1 if there are no nodes
+	 */
+	public int getMRCA(int[] nodes) {
+		if (nodes.length == 0) {
+			return -1;
+		}
+		int lowest = nodes[0];
+		int highest = nodes[0];
+		for (int node : nodes) {
+			lowest = Math.min(lowest, node);
+			highest = Math.max(highest, node);
+		}
+		return getMRCAOfRange(lowest, highest);
+	}
+
+	// ===== private methods
+
+	/**
+	 * Get the MRCA of all the nodes from `low` up to `high`, which is the MRCA of those two.
+	 */
+	private int getMRCAOfRange(int low, int high) {
+		if (low == high) {
+			return low;
+		}
+		int start = low + 1;
+		int k = 31 - Integer.numberOfLeadingZeros(high - start + 1);
+		return parents[shallower(getShallowest(k, start), getShallowest(k, high - (1 << k) + 1))];
+	}
+
+	/**
+	 * Get the shallowest of the 2^k nodes starting at `start`.
+	 */
+	private int getShallowest(int k, int start) {
+		return k == 0 ? start : shallowest[k - 1][start];
+	}
+
+	private int shallower(int a, int b) {
+		return depths[b] < depths[a] ? b : a;
+	}
+}
@@ -17,12 +17,14 @@ package jade.tree;
 
 import jade.tree.JadeNode;
 import jade.tree.JadeTree;
+import jade.BufferedMessageLogger;
 import jade.MessageLogger;
 
 import org.json.simple.JSONValue;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONArray;
 
+import java.io.InterruptedIOException;
 import java.io.Reader;
 import java.io.FileReader;
 import java.io.BufferedReader;
@@ -31,6 +33,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class NexsonReader {
 
@@ -89,6 +97,16 @@ public class NexsonReader {
 	/* Read Nexson study from a Reader */
 	// TODO: tree(s) may be deprecated. Need to check this. May result in no trees to return.
 	public static NexsonSource readNexson(Reader r, String sourceId, Boolean verbose, MessageLogger msgLogger) throws java.io.IOException {
+		return readNexson(r, sourceId, verbose, msgLogger, null);
+	}
+
+	/**
+	 * Read Nexson study from a Reader, importing the trees in parallel on the supplied executor (e.g. the one from
+	 * getTreeImportExecutor()). The trees are returned in the order they appear in the nexson, and the messages for each
+	 * tree are logged together, in the same order, once all the trees have been imported. If the executor is null then
+	 * the trees are imported serially on the calling thread.
+	 */
+	public static NexsonSource readNexson(Reader r, String sourceId, Boolean verbose, MessageLogger msgLogger, ExecutorService executor) throws java.io.IOException {
 
 		NexsonSource source = new NexsonSource(sourceId);
 
@@ -145,40 +163,132 @@ public class NexsonReader {
 			associateMetadata(source, extractMetadataMap(studyMetaList, verbose ? msgLogger : null));
 		}
 		
-		// Process each tree in turn, yielding a JadeTree
+		// Process each tree, yielding a JadeTree. Labels and otu metadata are shared among all the trees.
+		InternPool values = new InternPool();
+		List<ImportTreeTask> tasks = new ArrayList<ImportTreeTask>();
 		for (Object tree : treeList) {
-			JSONObject tree2 = (JSONObject)tree;
-			String treeID = (String)tree2.get("@id");
-			if (treeID.startsWith("tree")) { // phylografter tree ids are #'s, but in the Nexson export, they'll have the word tree prepended
-				treeID = treeID.substring(4); // chop off 0-3 to chop off "tree"
+			tasks.add(new ImportTreeTask(otuMap, values, (JSONObject)tree, verbose, executor == null ? msgLogger : new BufferedMessageLogger()));
+		}
+		
+		if (executor == null) {
+			for (ImportTreeTask task : tasks) {
+				JadeTree tree = task.call();
+				if (!task.deprecated) {
+					parsedTrees.add(tree);
+				}
+			}
+		} else {
+			try {
+				List<Future<JadeTree>> results = executor.invokeAll(tasks);
+				for (int i = 0; i < tasks.size(); i++) {
+					ImportTreeTask task = tasks.get(i);
+					JadeTree tree = getResult(results.get(i));
+					((BufferedMessageLogger) task.msgLogger).replay(msgLogger);
+					if (!task.deprecated) {
+						parsedTrees.add(tree);
+					}
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while importing trees");
 			}
+		}
+		source.addTrees(parsedTrees);
+		return source;
+	}
+
+	/**
+	 * Imports a single tree from the nexson. Only reads the shared otu map, so tasks for different trees can be run
+	 * concurrently. Also used by the NexsonStreamReader for each tree it reads.
+	 */
+	static class ImportTreeTask implements Callable<JadeTree> {
+		
+		private final Map<String,JSONObject> otuMap;
+		private final InternPool values;
+		private final JSONObject tree;
+		private final Boolean verbose;
+		final MessageLogger msgLogger;
+		boolean deprecated = false;
+
+		ImportTreeTask(Map<String,JSONObject> otuMap, InternPool values, JSONObject tree, Boolean verbose, MessageLogger msgLogger) {
+			this.otuMap = otuMap;
+			this.values = values;
+			this.tree = tree;
+			this.verbose = verbose;
+			this.msgLogger = msgLogger;
+		}
+		
+		@Override
+		public JadeTree call() {
+			String treeID = getTreeId((String)tree.get("@id"));
 			msgLogger.messageStr("Processing tree", "@id", treeID);
-			
-			
-		// trees can have their own specific metadata e.g. [{"@property":"ot:branchLengthMode","@xsi:type":"nex:LiteralMeta","$":"ot:substitutionCount"},{"@property":"ot:inGroupClade","$":"node208482","xsi:type":"nex:LiteralMeta"}]
-			List<Object> treeMetaList = getMetaList(tree2);
-			//System.out.println("treeMetaList = " + treeMetaList);
+
+			// trees can have their own specific metadata e.g. [{"@property":"ot:branchLengthMode","@xsi:type":"nex:LiteralMeta","$":"ot:substitutionCount"},{"@property":"ot:inGroupClade","$":"node208482","xsi:type":"nex:LiteralMeta"}]
+			List<Object> treeMetaList = getMetaList(tree);
 			// check if tree is deprecated. will be a tree-specific tag (ot:tag). if so, abort.
 			if (treeMetaList != null && checkDeprecated(treeMetaList)) {
 				msgLogger.messageStr("Tree tagged as deprecated. Ignoring.", "@id", treeID);
-			} else {
-				// tree2 = {"node": [...], "edge": [...]}
-				parsedTrees.add(importTree(otuMap, 
-									  (JSONArray)tree2.get("node"),
-									  (JSONArray)tree2.get("edge"),
-//									  studyMetaList,
-									  treeMetaList,
-									  treeID,
-									  verbose,
-									  msgLogger));
+				deprecated = true;
+				return null;
 			}
+
+			// tree = {"node": [...], "edge": [...]}
+			return importTree(otuMap,
+					values,
+					(JSONArray)tree.get("node"),
+					(JSONArray)tree.get("edge"),
+					treeMetaList,
+					treeID,
+					verbose,
+					msgLogger);
 		}
-		source.addTrees(parsedTrees);
-		return source;
+	}
+	
+	/**
+	 * Get the result of a tree import, rethrowing any exception thrown by the import.
+	 */
+	static JadeTree getResult(Future<JadeTree> result) throws InterruptedException {
+		try {
+			return result.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			} else if (ex.getCause() instanceof Error) {
+				throw (Error) ex.getCause();
+			}
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	/**
+	 * A shared pool with one daemon thread per processor, for importing the trees of large studies in parallel.
+	 */
+	public static synchronized ExecutorService getTreeImportExecutor() {
+		if (treeImportExecutor == null) {
+			treeImportExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "nexson-tree-import");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return treeImportExecutor;
+	}
+	
+	private static ExecutorService treeImportExecutor = null;
+
+	/* Strip the "tree" prefix from a nexson tree id */
+	static String getTreeId(String treeID) {
+		if (treeID.startsWith("tree")) { // phylografter tree ids are #'s, but in the Nexson export, they'll have the word tree prepended
+			treeID = treeID.substring(4); // chop off 0-3 to chop off "tree"
+		}
+		return treeID;
 	}
 
 	/* Process a single tree (subroutine of above) */
 	private static JadeTree importTree(Map<String,JSONObject> otuMap,
+									   InternPool values,
 									   JSONArray nodeList,
 									   JSONArray edgeList,
 //									   List<Object> studyMetaList,
@@ -189,23 +299,9 @@ public class NexsonReader {
 		msgLogger.indentMessageInt(1, "tree info", "number nodes", nodeList.size());
 		msgLogger.indentMessageInt(1, "tree info", "number edges", edgeList.size());
 		Map<String, JadeNode> nodeMap = new HashMap<String, JadeNode>();
-		JadeNode root = null;
 		
 		// check if an ingroup is defined. if so, discard outgroup(s).
-		String ingroup = null;
-		if (treeMetaList != null) {
-			for (Object meta : treeMetaList) {
-				JSONObject j = (JSONObject)meta;
-				if (((String)j.get("@property")).compareTo("ot:inGroupClade") == 0) {
-					if ((j.get("$")) != null) {
-						ingroup = (String)j.get("$");
-						msgLogger.indentMessageStr(1, "tree info", "ingroup", ingroup);
-					} else {
-						throw new RuntimeException("missing property value for name: " + j);
-					}
-				}
-			}
-		}
+		String ingroup = getIngroupId(treeMetaList, msgLogger);
 		
 		// arbitraryNode is for finding the root later on (if not specified), see below
 		JadeNode arbitraryNode = null;
@@ -223,13 +319,7 @@ public class NexsonReader {
 			jn.assocObject("nexsonid", id);
 			// Set the root node
 			if (ingroup != null && id.compareTo(ingroup) == 0) {
-				msgLogger.indentMessage(1, "Setting ingroup root node.");
-
-				/* changed: don't throw away the outgroup
-				root = jn;
-				root.assocObject("ingroup_start", "true"); */
-
-				jn.assocObject("ingroup_start", true);
+				markIngroupStart(jn, msgLogger);
 			}
 
 			// Some nodes have associated OTUs, others don't
@@ -240,38 +330,7 @@ public class NexsonReader {
 					msgLogger.indentMessageStr(2, "Error. Node with otuID of unknown OTU", "@otu", otuId);
 					return null;
 				}
-				String label = (String)otu.get("@label");
-				jn.setName(label);
-
-				// Get taxon id (usually present) and maybe other metadata (rarely present)
-				List<Object> metaList2 = getMetaList(otu);
-				if (metaList2 != null) {
-					for (Object meta : metaList2) {
-						JSONObject m = (JSONObject)meta;
-						String propname = (String)m.get("@property");
-						Object value = m.get("$");
-						if (propname.equals("ot:ottolid")) {
-							// Kludge! For important special case
-							if (value instanceof String) {
-								value = Long.parseLong((String)value);
-							} else if (value instanceof Long) {
-								; // what is this about?
-							} else if (value instanceof Integer) {
-								value = new Long((((Integer)value).intValue()));
-							} else if (value == null) {
-								msgLogger.indentMessageStr(1, "Warning: dealing with null ot:ottolid here.", "nexsonid", id);
-							} else {
-								System.err.println("Error with: " + m);
-								throw new RuntimeException("Invalid ottolid value: " + value);
-							}
-//						} else if(propname.equals("ot:originalLabel")){ // commented out. do not ignore original labels!
-							// ignoring originalLabel, but not emitting the unknown property warning
-						} else {
-							msgLogger.indentMessageStrStr(1, "Warning: dealing with unknown property. Don't know what to do...", "property name", propname, "nexsonid", id);
-						}
-						jn.assocObject(propname, value);
-					}
-				}
+				associateOtu(jn, otu, id, values, msgLogger);
 			}
 		}
 
@@ -280,31 +339,118 @@ public class NexsonReader {
 			JSONObject j = (JSONObject)edge;
 			// {"@source": "node830", "@target": "node834", "@length": 0.000241603, "@id": "edge834"}
 			// source is parent, target is child
-			JadeNode source = nodeMap.get(j.get("@source"));
-			if (source == null) {
-				msgLogger.indentMessageStr(2, "Error. Edge with source property not found in map", "@source", (String)j.get("@source"));
+			if (!connectEdge(nodeMap, (String)j.get("@source"), (String)j.get("@target"), (Double)j.get("@length"), msgLogger)) {
 				return null;
 			}
-			JadeNode target = nodeMap.get(j.get("@target"));
-			if (target == null) {
-				msgLogger.indentMessageStr(2, "Error. Edge with target property not found in map", "@target", (String)j.get("@target"));
-				return null;
+		}
+		
+		return buildTree(arbitraryNode, treeMetaList, treeID, verbose, msgLogger);
+	}
+
+	/**
+	 * Return the nexson id of the ingroup node declared in the tree-level metadata, or null if there is none.
+	 */
+	static String getIngroupId(List<Object> treeMetaList, MessageLogger msgLogger) {
+		String ingroup = null;
+		if (treeMetaList != null) {
+			for (Object meta : treeMetaList) {
+				JSONObject j = (JSONObject)meta;
+				if (((String)j.get("@property")).compareTo("ot:inGroupClade") == 0) {
+					if ((j.get("$")) != null) {
+						ingroup = (String)j.get("$");
+						msgLogger.indentMessageStr(1, "tree info", "ingroup", ingroup);
+					} else {
+						throw new RuntimeException("missing property value for name: " + j);
+					}
+				}
 			}
-			Double length = (Double)j.get("@length");
-			if (length != null) {
-				target.setBL(length);
+		}
+		return ingroup;
+	}
+
+	/**
+	 * Flag the JadeNode as the start of the ingroup.
+	 */
+	static void markIngroupStart(JadeNode jn, MessageLogger msgLogger) {
+		msgLogger.indentMessage(1, "Setting ingroup root node.");
+
+		/* changed: don't throw away the outgroup
+		root = jn;
+		root.assocObject("ingroup_start", "true"); */
+
+		jn.assocObject("ingroup_start", true);
+	}
+
+	/**
+	 * Set the label and the OTU metadata (e.g. the ott id) for a node from its <otu> element. The label and metadata
+	 * values are taken from `values`, so that nodes with the same otu (or the same taxon) share them.
+	 */
+	static void associateOtu(JadeNode jn, JSONObject otu, String id, InternPool values, MessageLogger msgLogger) {
+		String label = (String)otu.get("@label");
+		jn.setName(values.intern(label));
+
+		// Get taxon id (usually present) and maybe other metadata (rarely present)
+		List<Object> metaList2 = getMetaList(otu);
+		if (metaList2 != null) {
+			for (Object meta : metaList2) {
+				JSONObject m = (JSONObject)meta;
+				String propname = (String)m.get("@property");
+				Object value = m.get("$");
+				if (propname.equals("ot:ottolid")) {
+					// Kludge! For important special case
+					if (value instanceof String) {
+						value = Long.parseLong((String)value);
+					} else if (value instanceof Long) {
+						; // what is this about?
+					} else if (value instanceof Integer) {
+						value = new Long((((Integer)value).intValue()));
+					} else if (value == null) {
+						msgLogger.indentMessageStr(1, "Warning: dealing with null ot:ottolid here.", "nexsonid", id);
+					} else {
+						System.err.println("Error with: " + m);
+						throw new RuntimeException("Invalid ottolid value: " + value);
+					}
+//				} else if(propname.equals("ot:originalLabel")){ // commented out. do not ignore original labels!
+					// ignoring originalLabel, but not emitting the unknown property warning
+				} else {
+					msgLogger.indentMessageStrStr(1, "Warning: dealing with unknown property. Don't know what to do...", "property name", propname, "nexsonid", id);
+				}
+				jn.assocObject(propname, values.internValue(value));
 			}
-			source.addChild(target);
 		}
-		
+	}
+
+	/**
+	 * Hook up the parent (source) and child (target) JadeNodes for an edge. Returns false if either node is unknown.
+	 */
+	static boolean connectEdge(Map<String, JadeNode> nodeMap, String sourceId, String targetId, Double length, MessageLogger msgLogger) {
+		JadeNode source = nodeMap.get(sourceId);
+		if (source == null) {
+			msgLogger.indentMessageStr(2, "Error. Edge with source property not found in map", "@source", sourceId);
+			return false;
+		}
+		JadeNode target = nodeMap.get(targetId);
+		if (target == null) {
+			msgLogger.indentMessageStr(2, "Error. Edge with target property not found in map", "@target", targetId);
+			return false;
+		}
+		if (length != null) {
+			target.setBL(length);
+		}
+		source.addChild(target);
+		return true;
+	}
+
+	/**
+	 * Find the root of the connected nodes and wrap them in a JadeTree carrying the tree-level metadata and id.
+	 */
+	static JadeTree buildTree(JadeNode arbitraryNode, List<Object> treeMetaList, String treeID, Boolean verbose, MessageLogger msgLogger) {
+		JadeNode root = null;
+
 		// Find the root (the node without a parent) so we can return it.
 		// If the input file is malicious this might loop forever.
-		if (root == null) {
-			for (JadeNode jn = arbitraryNode; jn != null; jn = jn.getParent()) {
-				root = jn;
-			}
-		} else { // a pruned tree. GraphImporter looks for root as node with no parents.
-			root.setParent(null);
+		for (JadeNode jn = arbitraryNode; jn != null; jn = jn.getParent()) {
+			root = jn;
 		}
 		
 		JadeTree tree = new JadeTree(root);
@@ -322,7 +468,7 @@ public class NexsonReader {
 	
 	// check through metadata information for ot:tag del*
 	// works for both study-wide and tree-specific metadata
-	private static Boolean checkDeprecated (List<Object> metaData) {
+	static Boolean checkDeprecated (List<Object> metaData) {
 		Boolean deprecated = false;
 		for (Object meta : metaData) {
 			JSONObject j = (JSONObject)meta;
@@ -340,13 +486,13 @@ public class NexsonReader {
 		return deprecated;
 	}
 	
-	private static void associateMetadata(JadeTree tree, Map<String, Object> metaMap) {
+	static void associateMetadata(JadeTree tree, Map<String, Object> metaMap) {
 		for (Entry<String, Object> property : metaMap.entrySet()) {
 			tree.assocObject(property.getKey(), property.getValue());
 		}
 	}
 	
-	private static void associateMetadata(NexsonSource source, Map<String, Object> metaMap) {
+	static void associateMetadata(NexsonSource source, Map<String, Object> metaMap) {
 		for (Entry<String, Object> property : metaMap.entrySet()) {
 			source.setProperty(property.getKey(), property.getValue());
 		}
@@ -387,7 +533,7 @@ public class NexsonReader {
 		}
 	} */
 	
-	private static List<Object> getMetaList(JSONObject obj) {
+	static List<Object> getMetaList(JSONObject obj) {
 		//System.out.println("looking up meta for: " + obj);
 		Object meta = obj.get("meta");
 		if (meta == null) {
@@ -404,7 +550,7 @@ public class NexsonReader {
 		}
 	}
 	
-	private static Map<String, Object> extractMetadataMap(List<Object> metaData, MessageLogger msgLogger) {
+	static Map<String, Object> extractMetadataMap(List<Object> metaData, MessageLogger msgLogger) {
 		Map<String, Object> metaMap = new HashMap<String, Object>();
 		for (Object meta : metaData) {
 			JSONObject j = (JSONObject)meta;
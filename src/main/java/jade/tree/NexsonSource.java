@@ -10,6 +10,7 @@ public class NexsonSource {
 	private String sourceId;
 	private HashMap<String, Object> properties;
 	private ArrayList<JadeTree> trees;
+	private Iterable<JadeTree> treeStream;
 	
 	public NexsonSource(String sourceId) {
 		this.sourceId = sourceId;
@@ -21,8 +22,20 @@ public class NexsonSource {
 		return sourceId;
 	}
 	
+	/**
+	 * Get the trees for this source. If a tree stream has been set then it is returned instead of the trees that
+	 * have been added, and it may only be iterated once.
+	 */
 	public Iterable<JadeTree> getTrees() {
-		return trees;
+		return treeStream != null ? treeStream : trees;
+	}
+	
+	/**
+	 * Supply the trees for this source from an Iterable that reads them lazily, e.g. a TreeFileReader, so that they do
+	 * not all need to be held in memory. Replaces any trees that have been added.
+	 */
+	public void setTreeStream(Iterable<JadeTree> treeStream) {
+		this.treeStream = treeStream;
 	}
 	
 	public Map<String, Object> getProperties() {
@@ -49,6 +62,9 @@ public class NexsonSource {
 		return properties.get(propertyName);
 	}
 	
+	/**
+	 * The number of trees that have been added. Trees supplied by a tree stream are not counted.
+	 */
 	public int getTreeCount() {
 		return trees.size();
 	}
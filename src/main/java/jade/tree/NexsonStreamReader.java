@@ -0,0 +1,391 @@
+/*
+ * Read in a Nexml/JSON study file as a stream of parser events, building JadeTrees from the otus/trees elements
+ * without first materializing the whole study as a JSON DOM.
+ *
+ * Assumes the same Phylografter layout as NexsonReader. Only one <otu> or <meta> element, or one <tree> element with
+ * its nodes and edges, is held as a JSON object while it is read; the otus are kept for the duration of the study
+ * since every tree refers to them. Each tree is imported by NexsonReader as soon as its closing brace has been read,
+ * provided the otus have already been seen (Phylografter exports do sort "otus" before "trees"). Trees that appear
+ * before the otus are held until the otus have been read.
+ *
+ * If an executor is supplied, the trees are imported on it while the following trees are being read. They are still
+ * passed on in the order they appear in the nexson, and the messages for each tree are logged together in that order.
+ */
+
+package jade.tree;
+
+import jade.BufferedMessageLogger;
+import jade.MessageLogger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+public class NexsonStreamReader {
+
+	/**
+	 * Receives each tree as soon as it has been read. Trees that could not be read are passed as null, to match
+	 * the behavior of NexsonReader.
+	 */
+	public interface TreeListener {
+		public void treeRead(NexsonSource source, JadeTree tree);
+	}
+
+	// the paths (object entry keys from the document root, ignoring arrays) of the elements we care about
+	private static final String[] STUDY_META_PATH = {"nexml", "meta"};
+	private static final String[] OTUS_PATH = {"nexml", "otus"};
+	private static final String[] OTU_PATH = {"nexml", "otus", "otu"};
+	private static final String[] TREE_PATH = {"nexml", "trees", "tree"};
+
+	/**
+	 * Read a Nexson study from a Reader, collecting all the trees into the returned NexsonSource.
+	 */
+	public static NexsonSource readNexson(Reader r, String sourceId, Boolean verbose, MessageLogger msgLogger) throws IOException {
+		return readNexson(r, sourceId, verbose, msgLogger, (ExecutorService) null);
+	}
+
+	/**
+	 * Read a Nexson study from a Reader, collecting all the trees into the returned NexsonSource. The trees are imported
+	 * on the supplied executor (e.g. NexsonReader.getTreeImportExecutor()), or serially if it is null.
+	 */
+	public static NexsonSource readNexson(Reader r, String sourceId, Boolean verbose, MessageLogger msgLogger, ExecutorService executor) throws IOException {
+		NexsonSource source = new NexsonSource(sourceId);
+		NexsonHandler handler = new NexsonHandler(source, null, executor, verbose, msgLogger);
+		parse(r, handler);
+
+		// without a listener we can still honor a deprecation tag that was read after the trees
+		if (handler.studyDeprecated) {
+			return new NexsonSource(sourceId);
+		}
+		return source;
+	}
+
+	/**
+	 * Read a Nexson study from a Reader, passing each tree to `listener` as soon as it has been read instead of
+	 * accumulating the trees. The returned NexsonSource contains the study metadata but no trees.
+	 */
+	public static NexsonSource readNexson(Reader r, String sourceId, Boolean verbose, MessageLogger msgLogger, TreeListener listener) throws IOException {
+		return readNexson(r, sourceId, verbose, msgLogger, null, listener);
+	}
+
+	/**
+	 * Read a Nexson study from a Reader, passing each tree to `listener` as soon as it has been imported. The trees are
+	 * imported on the supplied executor (e.g. NexsonReader.getTreeImportExecutor()), or serially if it is null. The
+	 * listener is always called from the calling thread, in the order the trees appear in the nexson. The returned
+	 * NexsonSource contains the study metadata but no trees.
+	 */
+	public static NexsonSource readNexson(Reader r, String sourceId, Boolean verbose, MessageLogger msgLogger, ExecutorService executor,
+			TreeListener listener) throws IOException {
+		NexsonSource source = new NexsonSource(sourceId);
+		parse(r, new NexsonHandler(source, listener, executor, verbose, msgLogger));
+		return source;
+	}
+
+	private static void parse(Reader r, NexsonHandler handler) throws IOException {
+		try {
+			new JSONParser().parse(r, handler);
+		} catch (ParseException ex) {
+			throw new IOException("Could not parse nexson: " + ex.toString(), ex);
+		}
+		handler.finish();
+	}
+
+	/**
+	 * A tree that has been handed to the executor, and has not yet been passed on.
+	 */
+	private static class PendingTree {
+		final NexsonReader.ImportTreeTask task;
+		final Future<JadeTree> result;
+
+		PendingTree(NexsonReader.ImportTreeTask task, Future<JadeTree> result) {
+			this.task = task;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * The ContentHandler that receives the json-simple parser events.
+	 */
+	private static class NexsonHandler implements ContentHandler {
+
+		private final NexsonSource source;
+		private final TreeListener listener;
+		private final ExecutorService executor;
+		private final Boolean verbose;
+		private final MessageLogger msgLogger;
+
+		// the object entry keys leading to the current position in the document
+		private final ArrayList<String> path = new ArrayList<String>();
+
+		// the containers of the element currently being captured as a small JSON object
+		private final LinkedList<Object> captured = new LinkedList<Object>();
+		private String[] capturePath = null;
+
+		private final Map<String, JSONObject> otuMap = new HashMap<String, JSONObject>();
+		private final InternPool otuValues = new InternPool();
+		private boolean otusRead = false;
+
+		private List<Object> studyMetaList = null;
+		private boolean studyDeprecated = false;
+		private int treesEmitted = 0;
+
+		private final List<JSONObject> deferredTrees = new LinkedList<JSONObject>();
+
+		// trees being imported on the executor, in nexson order. bounded so that reading does not run far ahead
+		private final LinkedList<PendingTree> pendingTrees = new LinkedList<PendingTree>();
+		private final int maxPendingTrees = Runtime.getRuntime().availableProcessors() * 2;
+
+		NexsonHandler(NexsonSource source, TreeListener listener, ExecutorService executor, Boolean verbose, MessageLogger msgLogger) {
+			this.source = source;
+			this.listener = listener;
+			this.executor = executor;
+			this.verbose = verbose;
+			this.msgLogger = msgLogger;
+		}
+
+		// ===== ContentHandler events
+
+		@Override
+		public void startJSON() throws ParseException, IOException {}
+
+		@Override
+		public void endJSON() throws ParseException, IOException {}
+
+		@Override
+		public boolean startObject() throws ParseException, IOException {
+			if (capturePath != null) {
+				JSONObject obj = new JSONObject();
+				addCapturedValue(obj);
+				captured.addLast(obj);
+			} else if (atPath(OTU_PATH) || atPath(TREE_PATH) || atPath(STUDY_META_PATH)) {
+				capturePath = path.toArray(new String[path.size()]);
+				captured.addLast(new JSONObject());
+			}
+			return true;
+		}
+
+		@Override
+		public boolean endObject() throws ParseException, IOException {
+			if (capturePath != null) {
+				Object obj = captured.removeLast();
+				if (captured.isEmpty()) {
+					String[] p = capturePath;
+					capturePath = null;
+					elementRead(p, (JSONObject) obj);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public boolean startObjectEntry(String key) throws ParseException, IOException {
+			path.add(key);
+			return true;
+		}
+
+		@Override
+		public boolean endObjectEntry() throws ParseException, IOException {
+			if (capturePath == null) {
+				if (atPath(STUDY_META_PATH)) {
+					studyMetaRead();
+				} else if (atPath(OTUS_PATH)) {
+					otusRead();
+				}
+			}
+			path.remove(path.size() - 1);
+			return true;
+		}
+
+		@Override
+		public boolean startArray() throws ParseException, IOException {
+			if (capturePath != null) {
+				JSONArray arr = new JSONArray();
+				addCapturedValue(arr);
+				captured.addLast(arr);
+			}
+			return true;
+		}
+
+		@Override
+		public boolean endArray() throws ParseException, IOException {
+			if (capturePath != null) {
+				captured.removeLast();
+			}
+			return true;
+		}
+
+		@Override
+		public boolean primitive(Object value) throws ParseException, IOException {
+			if (capturePath != null) {
+				addCapturedValue(value);
+			}
+			return true;
+		}
+
+		// ===== handling the elements we read
+
+		/**
+		 * Called when a captured <otu>, <tree> or study <meta> element is complete.
+		 */
+		private void elementRead(String[] p, JSONObject element) throws IOException {
+			if (matches(p, OTU_PATH)) {
+				// {"@label": "Platanus", "@id": "otu192"}   maybe other data too
+				otuMap.put((String) element.get("@id"), element);
+
+			} else if (matches(p, STUDY_META_PATH)) {
+				if (studyMetaList == null) {
+					studyMetaList = new ArrayList<Object>();
+				}
+				studyMetaList.add(element);
+
+			} else if (matches(p, TREE_PATH)) {
+				// {"@id": "tree1", "meta": [...], "node": [...], "edge": [...]}
+				if (otusRead) {
+					completeTree(element);
+				} else {
+					deferredTrees.add(element);
+				}
+			}
+		}
+
+		private void studyMetaRead() throws IOException {
+			if (studyMetaList == null) {
+				return;
+			}
+			// pass on the trees already read first, so the outcome is the same as for a serial import
+			emitImportedTrees(true);
+
+			// check if study is flagged as deprecated. if so, skip.
+			if (NexsonReader.checkDeprecated(studyMetaList)) {
+				msgLogger.message("Study tagged as deprecated. Ignore.");
+				studyDeprecated = true;
+				if (treesEmitted > 0 && listener != null) {
+					msgLogger.messageInt("Warning: deprecation tag was read after trees were already passed on", "number trees", treesEmitted);
+				}
+			} else {
+				// Copy STUDY-level metadata into the source
+				NexsonReader.associateMetadata(source, NexsonReader.extractMetadataMap(studyMetaList, verbose ? msgLogger : null));
+			}
+		}
+
+		private void otusRead() throws IOException {
+			msgLogger.messageInt("OTUs", "number", otuMap.size());
+			otusRead = true;
+			for (JSONObject tree : deferredTrees) {
+				completeTree(tree);
+			}
+			deferredTrees.clear();
+		}
+
+		/**
+		 * Called once the parser is done. Any trees still waiting at this point refer to otus that were never defined.
+		 */
+		void finish() throws IOException {
+			if (!otusRead) {
+				otusRead();
+			}
+			emitImportedTrees(true);
+		}
+
+		/**
+		 * Import a tree with NexsonReader and pass it on, or hand it to the executor to be passed on once it is done.
+		 */
+		private void completeTree(JSONObject tree) throws IOException {
+			if (studyDeprecated) {
+				return;
+			}
+
+			if (executor == null) {
+				NexsonReader.ImportTreeTask task = new NexsonReader.ImportTreeTask(otuMap, otuValues, tree, verbose, msgLogger);
+				JadeTree jt = task.call();
+				if (!task.deprecated) {
+					emit(jt);
+				}
+			} else {
+				NexsonReader.ImportTreeTask task = new NexsonReader.ImportTreeTask(otuMap, otuValues, tree, verbose, new BufferedMessageLogger());
+				pendingTrees.addLast(new PendingTree(task, executor.submit(task)));
+				emitImportedTrees(false);
+			}
+		}
+
+		/**
+		 * Pass on the trees at the head of the queue that have been imported, waiting for them if there are too many
+		 * pending, or if `all` is set.
+		 */
+		private void emitImportedTrees(boolean all) throws IOException {
+			while (!pendingTrees.isEmpty()
+					&& (all || pendingTrees.size() > maxPendingTrees || pendingTrees.getFirst().result.isDone())) {
+				PendingTree pending = pendingTrees.removeFirst();
+				JadeTree tree;
+				try {
+					tree = NexsonReader.getResult(pending.result);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while importing trees");
+				}
+				((BufferedMessageLogger) pending.task.msgLogger).replay(msgLogger);
+				if (!pending.task.deprecated) {
+					emit(tree);
+				}
+			}
+		}
+
+		private void emit(JadeTree tree) {
+			treesEmitted++;
+			if (listener != null) {
+				listener.treeRead(source, tree);
+			} else {
+				source.addTree(tree);
+			}
+		}
+
+		// ===== path bookkeeping
+
+		@SuppressWarnings("unchecked") // json-simple's containers are raw collections
+		private void addCapturedValue(Object value) {
+			Object container = captured.getLast();
+			if (container instanceof JSONArray) {
+				((JSONArray) container).add(value);
+			} else {
+				((JSONObject) container).put(path.get(path.size() - 1), value);
+			}
+		}
+
+		private boolean atPath(String[] p) {
+			if (path.size() != p.length) {
+				return false;
+			}
+			for (int i = 0; i < p.length; i++) {
+				if (!p[i].equals(path.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static boolean matches(String[] a, String[] b) {
+			if (a.length != b.length) {
+				return false;
+			}
+			for (int i = 0; i < a.length; i++) {
+				if (!a[i].equals(b[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
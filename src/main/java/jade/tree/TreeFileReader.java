@@ -1,6 +1,277 @@
 package jade.tree;
 
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
-public class TreeFileReader {
-	public TreeFileReader(){}
+/**
+ * Reads trees one at a time from a file containing any number of newick trees, or from a nexus file with a trees block
+ * (e.g. a posterior sample). Only the tree currently being read is held in memory. Nexus translate tables are applied
+ * to the tip labels, and all other nexus blocks are skipped.
+ *
+ * A TreeFileReader can be used as an Iterable, but only once: every call to iterator() returns the reader itself. Errors
+ * reading the input are thrown as IllegalStateExceptions by the iterator methods, and malformed trees cause
+ * IllegalArgumentExceptions.
+ */
+public class TreeFileReader implements Iterable<JadeTree>, Iterator<JadeTree> {
+
+	private final PushbackReader reader;
+	private final TreeReader treeReader = new TreeReader();
+
+	private Boolean isNexus = null; // set when the first tree is read
+	private boolean inTreesBlock = false;
+	private HashMap<String, String> translation = null;
+
+	private JadeTree nextTree = null;
+	private boolean finished = false;
+
+	/**
+	 * Read trees from the reader. For large files the reader should be buffered.
+	 * @param reader
+	 */
+	public TreeFileReader(Reader reader) {
+		this.reader = new PushbackReader(reader, 1);
+	}
+
+	/**
+	 * Read the next tree from the input.
+	 * @return
+	 * 		the next tree, or null if there are no more trees
+	 * @throws IOException
+	 */
+	public JadeTree readNextTree() throws IOException {
+		if (nextTree != null) {
+			JadeTree tree = nextTree;
+			nextTree = null;
+			return tree;
+		}
+		if (finished) {
+			return null;
+		}
+		if (isNexus == null) {
+			isNexus = checkForNexusHeader();
+		}
+		JadeTree tree = isNexus ? readNexusTree() : treeReader.readTree(reader);
+		if (tree == null) {
+			finished = true;
+		}
+		return tree;
+	}
+
+	// ===== iterator methods
+
+	@Override
+	public Iterator<JadeTree> iterator() {
+		return this;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (nextTree == null && !finished) {
+			try {
+				nextTree = readNextTree();
+			} catch (IOException ex) {
+				throw new IllegalStateException("Could not read the next tree", ex);
+			}
+		}
+		return nextTree != null;
+	}
+
+	@Override
+	public JadeTree next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		JadeTree tree = nextTree;
+		nextTree = null;
+		return tree;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	// ===== nexus parsing
+
+	/**
+	 * Consume the nexus header if there is one, otherwise leave the input unchanged except for leading whitespace.
+	 */
+	private boolean checkForNexusHeader() throws IOException {
+		int c = reader.read();
+		while (c != -1 && Character.isWhitespace(c)) {
+			c = reader.read();
+		}
+		if (c == -1) {
+			return false;
+		}
+		reader.unread(c);
+		if (c != '#') {
+			return false;
+		}
+		String token = nextToken();
+		if (!"#nexus".equalsIgnoreCase(token)) {
+			throw new IllegalArgumentException("Unrecognized tree file format beginning with " + token);
+		}
+		return true;
+	}
+
+	/**
+	 * Read through nexus commands until the next tree statement has been read.
+	 * @return
+	 * 		the tree, or null if there are no more trees
+	 */
+	private JadeTree readNexusTree() throws IOException {
+
+		for (String token = nextToken(); token != null; token = nextToken()) {
+
+			if (token.equalsIgnoreCase("begin")) {
+				String blockName = nextToken();
+				skipCommand();
+				if ("trees".equalsIgnoreCase(blockName)) {
+					inTreesBlock = true;
+					translation = null;
+				} else {
+					skipBlock();
+				}
+
+			} else if (token.equalsIgnoreCase("end") || token.equalsIgnoreCase("endblock")) {
+				skipCommand();
+				inTreesBlock = false;
+
+			} else if (inTreesBlock && token.equalsIgnoreCase("translate")) {
+				readTranslation();
+
+			} else if (inTreesBlock && (token.equalsIgnoreCase("tree") || token.equalsIgnoreCase("utree"))) {
+
+				// skip the tree name up to the equals sign. the newick string follows immediately
+				for (String t = nextToken(); !"=".equals(t); t = nextToken()) {
+					if (t == null || t.equals(";")) {
+						throw new IllegalArgumentException("Nexus tree statement is missing '='");
+					}
+				}
+				JadeTree tree = treeReader.readTree(reader);
+				if (tree == null) {
+					throw new IllegalArgumentException("Nexus tree statement is missing a tree");
+				}
+				if (translation != null) {
+					for (JadeNode tip : tree.iterateExternalNodes()) {
+						String label = translation.get(tip.getName());
+						if (label != null) {
+							tip.setName(label);
+						}
+					}
+				}
+				return tree;
+
+			} else if (!token.equals(";")) {
+				skipCommand();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read a translate table, up to and including its concluding semicolon.
+	 */
+	private void readTranslation() throws IOException {
+		translation = new HashMap<String, String>();
+		while (true) {
+			String key = nextToken();
+			if (key == null) {
+				throw new IllegalArgumentException("Unterminated nexus translate command");
+			} else if (key.equals(";")) {
+				return;
+			}
+			String label = nextToken();
+			if (label == null || label.equals(",") || label.equals(";")) {
+				throw new IllegalArgumentException("Nexus translate command is missing the label for " + key);
+			}
+			translation.put(key, label);
+
+			String sep = nextToken();
+			if (";".equals(sep)) {
+				return;
+			} else if (!",".equals(sep)) {
+				throw new IllegalArgumentException("Expected ',' or ';' in nexus translate command but found " + sep);
+			}
+		}
+	}
+
+	private void skipCommand() throws IOException {
+		for (String token = nextToken(); token != null && !token.equals(";"); token = nextToken());
+	}
+
+	private void skipBlock() throws IOException {
+		for (String token = nextToken(); token != null; token = nextToken()) {
+			if (token.equalsIgnoreCase("end") || token.equalsIgnoreCase("endblock")) {
+				skipCommand();
+				return;
+			} else if (!token.equals(";")) {
+				skipCommand();
+			}
+		}
+	}
+
+	/**
+	 * Get the next nexus token, skipping whitespace and comments. Punctuation characters are returned as single character
+	 * tokens, and quotes are removed from quoted tokens. Never reads past the end of the token it returns.
+	 * @return
+	 * 		the token, or null at the end of the input
+	 */
+	private String nextToken() throws IOException {
+
+		int c = reader.read();
+		while (c != -1) {
+			if (Character.isWhitespace(c)) {
+				c = reader.read();
+			} else if (c == '[') {
+				while (c != -1 && c != ']') {
+					c = reader.read();
+				}
+				c = reader.read();
+			} else {
+				break;
+			}
+		}
+		if (c == -1) {
+			return null;
+		}
+
+		if (c == ';' || c == ',' || c == '=') {
+			return String.valueOf((char) c);
+		}
+
+		StringBuilder token = new StringBuilder();
+		if (c == '\'') {
+			while (true) {
+				c = reader.read();
+				if (c == -1) {
+					throw new IllegalArgumentException("Unterminated quoted token in nexus file");
+				} else if (c == '\'') {
+					c = reader.read();
+					if (c != '\'') {
+						if (c != -1) {
+							reader.unread(c);
+						}
+						break;
+					}
+				}
+				token.append((char) c);
+			}
+			return token.toString();
+		}
+
+		while (c != -1 && !Character.isWhitespace(c) && c != ';' && c != ',' && c != '=' && c != '[' && c != '\'') {
+			token.append((char) c);
+			c = reader.read();
+		}
+		if (c != -1) {
+			reader.unread(c);
+		}
+		return token.toString();
+	}
 }
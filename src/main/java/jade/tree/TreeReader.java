@@ -1,141 +1,291 @@
 /**
- * 
+ *
  */
 package jade.tree;
 
+import java.io.IOException;
+import java.io.Reader;
+
 /**
+ * Reads newick trees. Input is consumed in a single pass, one character at a time, with labels and branch lengths
+ * accumulated in a single reused buffer, so parsing time is linear in the length of the input.
+ *
+ * Supports quoted labels ('like this', with '' for a literal quote), [comments] between tokens, internal node labels,
+ * and branch lengths. Whitespace around unquoted labels is ignored. Malformed input causes an IllegalArgumentException.
+ *
+ * TreeReader objects are not thread safe.
+ *
  * @author smitty
- * 
+ *
  */
 public class TreeReader {
+
+	// reused for every label and branch length
+	private final StringBuilder buf = new StringBuilder();
+
 	/*
 	 * constructor
 	 */
 	public TreeReader() {
 	}
 
+	/**
+	 * Read a single tree from a newick string, which must end with a semicolon.
+	 * @param treeString
+	 * @return
+	 */
 	public JadeTree readTree(String treeString) {
-		JadeTree tree = new JadeTree();
-		String pb = treeString;
-
-		if (pb.charAt(pb.length() - 1) != ';') {
-			System.out.println("Tree is invalid: missing concluding semicolon. Exiting.");
-			System.exit(1);
-		}
-
-		int x = 0;
-		char nextChar = pb.charAt(x);
-		boolean start = true;
-		boolean keepGoing = true;
-		JadeNode currNode = new JadeNode();
-		while (keepGoing == true) {
-			if (nextChar == '(') {
-				if (start == true) {
-					JadeNode root = new JadeNode();
-					tree.setRoot(root);
+		return readTree((CharSequence) treeString);
+	}
+
+	/**
+	 * Read a single tree from a newick string, which must end with a semicolon.
+	 * @param treeString
+	 * @return
+	 */
+	public JadeTree readTree(CharSequence treeString) {
+		JadeTree tree;
+		try {
+			tree = parse(new CharSequenceSource(treeString));
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex); // not thrown when reading char sequences
+		}
+		if (tree == null) {
+			throw new IllegalArgumentException("Tree is invalid: no tree found.");
+		}
+		return tree;
+	}
+
+	/**
+	 * Read the next tree from the reader, consuming input up to and including its concluding semicolon. Subsequent calls
+	 * read subsequent trees.
+	 * @param reader
+	 * @return
+	 * 		the tree, or null if the end of the input was reached before any tree was found
+	 * @throws IOException
+	 */
+	public JadeTree readTree(Reader reader) throws IOException {
+		return parse(new ReaderSource(reader));
+	}
+
+	// ===== parsing
+
+	private JadeTree parse(CharSource in) throws IOException {
+
+		JadeNode root = null;
+		JadeNode currNode = null;
+
+		while (true) {
+			int c = in.read();
+
+			if (c == -1) {
+				if (root == null) {
+					return null;
+				}
+				throw new IllegalArgumentException("Tree is invalid: missing concluding semicolon.");
+
+			} else if (Character.isWhitespace(c)) {
+				continue;
+
+			} else if (c == '[') { // note
+				skipComment(in);
+
+			} else if (c == '(') {
+				if (root == null) {
+					root = new JadeNode();
 					currNode = root;
-					start = false;
 				} else {
-					JadeNode newNode = new JadeNode(currNode);
-					currNode.addChild(newNode);
-					currNode = newNode;
+					currNode = addChild(currNode);
 				}
-			} else if (nextChar == ',') {
-				currNode = currNode.getParent();
-			} else if (nextChar == ')') {
-				currNode = currNode.getParent();
-				x++;
-				nextChar = pb.charAt(x);
-				String nam = "";
-				boolean goingName = true;
-				if (nextChar == ',' || nextChar == ')' || nextChar == ':' || nextChar == ';' || nextChar == '[') {
-					goingName = false;
+
+			} else if (c == ',') {
+				currNode = getParent(currNode);
+
+			} else if (c == ')') {
+				currNode = getParent(currNode);
+				currNode.setName(readLabel(in));
+
+			} else if (c == ':') {
+				readBranchLength(in, currNode);
+
+			} else if (c == ';') {
+				if (root == null) {
+					continue; // empty statement
+				} else if (currNode != root) {
+					throw new IllegalArgumentException("Tree is invalid: unbalanced parentheses.");
 				}
-				while (goingName == true) {
-					nam = nam + nextChar;
-					x++;
-					nextChar = pb.charAt(x);
-					if (nextChar == ',' || nextChar == ')' || nextChar == ':' || nextChar == ';' || nextChar == '[') {
-						goingName = false;
-						break;
-					}
-				}// work on edge
-				currNode.setName(nam);
-				// currNode.getEdge(currNode.getParent()).setLength(Double.parseDouble(edgeL));
-				// System.out.println(nam);
-				// pb.unread(nextChar);
-				x--;
-				pb.charAt(x);
-			} else if (nextChar == ';') {
-				keepGoing = false;
-			} else if (nextChar == ':') {
-				x++;
-				nextChar = pb.charAt(x);
-				String edgeL = "";
-				boolean goingName = true;
-				while (goingName == true) {
-					edgeL = edgeL + nextChar;
-					x++;
-					nextChar = pb.charAt(x);
-					if (nextChar == ',' || nextChar == ')' || nextChar == ':' || nextChar == ';' || nextChar == '[') {
-						goingName = false;
-						break;
-					}
-				}// work on edge
-				currNode.setBL(Double.parseDouble(edgeL));
-				// currNode.getEdge(currNode.getParent()).setLength(Double.parseDouble(edgeL));
-				// System.out.println(Double.parseDouble(edgeL));
-				// pb.unread(nextChar);
-				x--;
-				pb.charAt(x);
-			} else if (nextChar == '[') { // note
-				x++;
-				nextChar = pb.charAt(x);
-				String note = "";
-				boolean goingNote = true;
-				while (goingNote == true) {
-					note = note + nextChar;
-					x++;
-					nextChar = pb.charAt(x);
-					if (nextChar == ']') {
-						goingNote = false;
-						break;
-					}
-				}// work on note
-					// currNode.setBL(Double.parseDouble(edgeL));
-					// x--;
-				pb.charAt(x);
-			} else if (nextChar == ' ') {
+				break;
 
 			} else { // external named node
-				JadeNode newNode = new JadeNode(currNode);
-				currNode.addChild(newNode);
-				currNode = newNode;
-				String nodeName = "";
-				boolean goingName = true;
-				while (goingName == true) {
-					nodeName = nodeName + nextChar;
-					x++;
-					nextChar = pb.charAt(x);
-					if (nextChar == ',' || nextChar == ')' || nextChar == ':' || nextChar == '[') {
-						goingName = false;
+				if (root == null) { // a tree consisting of a single tip
+					root = new JadeNode();
+					currNode = root;
+				} else {
+					currNode = addChild(currNode);
+				}
+				in.unread(c);
+				currNode.setName(readLabel(in));
+			}
+		}
+
+		JadeTree tree = new JadeTree();
+		tree.setRoot(root);
+		tree.processRoot();
+		return tree;
+	}
+
+	private static JadeNode addChild(JadeNode parent) {
+		if (parent == null) {
+			throw new IllegalArgumentException("Tree is invalid: node found after the root was closed.");
+		}
+		JadeNode newNode = new JadeNode(parent);
+		parent.addChild(newNode);
+		return newNode;
+	}
+
+	private static JadeNode getParent(JadeNode node) {
+		if (node == null || node.getParent() == null) {
+			throw new IllegalArgumentException("Tree is invalid: unbalanced parentheses.");
+		}
+		return node.getParent();
+	}
+
+	private static boolean isDelimiter(int c) {
+		return c == ',' || c == ')' || c == '(' || c == ':' || c == ';' || c == '[' || c == -1;
+	}
+
+	/**
+	 * Read a label, which may be quoted, leaving the following delimiter in the input. Returns an empty string if there
+	 * is no label.
+	 */
+	private String readLabel(CharSource in) throws IOException {
+		buf.setLength(0);
+
+		int c = in.read();
+		while (c != -1 && Character.isWhitespace(c)) {
+			c = in.read();
+		}
+
+		if (c == '\'') {
+			while (true) {
+				c = in.read();
+				if (c == -1) {
+					throw new IllegalArgumentException("Tree is invalid: unterminated quoted label.");
+				} else if (c == '\'') {
+					c = in.read();
+					if (c != '\'') { // a doubled quote is a literal quote; anything else ends the label
 						break;
 					}
 				}
-				newNode.setName(nodeName);
-				// System.out.println(nodeName);
-				// pb.unread(nextChar);
-				x--;
-				pb.charAt(x);
+				buf.append((char) c);
+			}
+			while (c != -1 && Character.isWhitespace(c)) {
+				c = in.read();
+			}
+			if (!isDelimiter(c)) {
+				throw new IllegalArgumentException("Tree is invalid: unexpected character '" + (char) c + "' after quoted label '" + buf + "'.");
 			}
-			if (x < pb.length() - 1) {// added
-				x++;
+
+		} else {
+			int end = 0; // length of the label without trailing whitespace
+			while (!isDelimiter(c)) {
+				buf.append((char) c);
+				if (!Character.isWhitespace(c)) {
+					end = buf.length();
+				}
+				c = in.read();
 			}
-			//
-			nextChar = pb.charAt(x);
-			// System.out.println(nextChar);
+			buf.setLength(end);
+		}
+
+		in.unread(c);
+		return buf.toString();
+	}
+
+	/**
+	 * Read a branch length and assign it to the node, leaving the following delimiter in the input.
+	 */
+	private void readBranchLength(CharSource in, JadeNode node) throws IOException {
+		if (node == null) {
+			throw new IllegalArgumentException("Tree is invalid: branch length found without a node.");
+		}
+		buf.setLength(0);
+		int c = in.read();
+		while (!isDelimiter(c)) {
+			if (!Character.isWhitespace(c)) {
+				buf.append((char) c);
+			}
+			c = in.read();
+		}
+		in.unread(c);
+		try {
+			node.setBL(Double.parseDouble(buf.toString()));
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Tree is invalid: could not read the branch length '" + buf + "'.");
+		}
+	}
+
+	/**
+	 * Skip to the end of a comment. The opening bracket has already been read.
+	 */
+	private static void skipComment(CharSource in) throws IOException {
+		int c = in.read();
+		while (c != ']') {
+			if (c == -1) {
+				throw new IllegalArgumentException("Tree is invalid: unterminated comment.");
+			}
+			c = in.read();
+		}
+	}
+
+	// ===== character sources
+
+	/**
+	 * A stream of characters with one character of pushback.
+	 */
+	private static abstract class CharSource {
+		private int pushedBack = -2;
+
+		int read() throws IOException {
+			if (pushedBack != -2) {
+				int c = pushedBack;
+				pushedBack = -2;
+				return c;
+			}
+			return next();
+		}
+
+		void unread(int c) {
+			pushedBack = c;
+		}
+
+		abstract int next() throws IOException;
+	}
+
+	private static class CharSequenceSource extends CharSource {
+		private final CharSequence chars;
+		private int position = 0;
+
+		CharSequenceSource(CharSequence chars) {
+			this.chars = chars;
+		}
+
+		@Override
+		int next() {
+			return position < chars.length() ? chars.charAt(position++) : -1;
+		}
+	}
+
+	private static class ReaderSource extends CharSource {
+		private final Reader reader;
+
+		ReaderSource(Reader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		int next() throws IOException {
+			return reader.read();
 		}
-		tree.processRoot();
-		return tree;
 	}
 }
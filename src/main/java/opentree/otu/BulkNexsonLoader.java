@@ -0,0 +1,441 @@
+package opentree.otu;
+
+import jade.MessageLogger;
+import jade.tree.JadeNode;
+import jade.tree.JadeTree;
+import jade.tree.NexsonReader;
+import jade.tree.NexsonSource;
+import jade.tree.NexsonStreamReader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import opentree.otu.constants.GraphProperty;
+import opentree.otu.constants.NodeProperty;
+import opentree.otu.constants.OTUConstants;
+import opentree.otu.constants.RelType;
+import opentree.otu.constants.SearchableProperty;
+
+import org.neo4j.index.lucene.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+/**
+ * Offline loader for building a new database from a directory of nexson files (e.g. a checkout of the avatol_nexsons
+ * repo). Writes the store and the lucene indexes directly through the neo4j batch inserter, bypassing transactions.
+ * The resulting graph and indexes are laid out exactly as if each study had been added with DatabaseManager.addSource,
+ * so the database can be served normally once the loader has been shut down.
+ *
+ * The batch inserter is not safe to use on a database that is in use, and this class does not check for duplicate
+ * sources, so it should only be pointed at a new (empty) database directory.
+ *
+ * Usage: BulkNexsonLoader <graphdb directory> <nexson directory> [location]
+ */
+public class BulkNexsonLoader {
+
+	private final BatchInserter inserter;
+	private final BatchInserterIndexProvider indexProvider;
+	private final Map<NodeIndexDescription, BatchInserterIndex> indexes = new HashMap<NodeIndexDescription, BatchInserterIndex>();
+
+	// source meta node ids by location and source id, used to connect local copies to remotes
+	private final Map<String, Map<String, Long>> sourceMetaNodeIds = new HashMap<String, Map<String, Long>>();
+	private final List<String> knownRemotes = new LinkedList<String>();
+
+	/**
+	 * Open a batch inserter on the db at the specified location.
+	 * @param graphDbDir
+	 */
+	public BulkNexsonLoader(String graphDbDir) {
+		inserter = BatchInserters.inserter(graphDbDir);
+		indexProvider = new LuceneBatchInserterIndexProvider(inserter);
+		for (NodeIndexDescription desc : NodeIndexDescription.values()) {
+			indexes.put(desc, indexProvider.nodeIndex(desc.name, desc.type.getConfiguration()));
+		}
+	}
+
+	// ===== loading
+
+	/**
+	 * Load all the nexson files in a directory. The file names are used as source ids (with any ".json" extension removed).
+	 * Hidden files and subdirectories are skipped.
+	 * 
+	 * The trees of each study are imported in parallel, and each tree is written as soon as it has been imported, so only
+	 * the trees being imported are held in memory at any time.
+	 * If a file turns out to be unreadable after some of its trees have been written, its source is left flagged as an
+	 * import in progress, like an interrupted chunked import, and can be removed with DatabaseManager.rollbackSourceImport
+	 * once the database is in use.
+	 *
+	 * @param nexsonDir
+	 * @param location
+	 * 		DatabaseAbstractBase.LOCAL_LOCATION for local studies, or the name of a remote
+	 * @param msgLogger
+	 * @return
+	 * 		the number of sources added
+	 * @throws IOException
+	 */
+	public int loadDirectory(File nexsonDir, String location, MessageLogger msgLogger) throws IOException {
+
+		File[] files = nexsonDir.listFiles();
+		if (files == null) {
+			throw new IOException("Could not read the directory " + nexsonDir);
+		}
+		Arrays.sort(files);
+
+		int sourcesAdded = 0;
+		for (File file : files) {
+			if (file.isDirectory() || file.getName().startsWith(".")) {
+				continue;
+			}
+
+			String sourceId = file.getName();
+			if (sourceId.endsWith(".json")) {
+				sourceId = sourceId.substring(0, sourceId.length() - 5);
+			}
+
+			Reader r = new BufferedReader(new FileReader(file));
+			SourceLoader loader = new SourceLoader(location);
+			NexsonSource source = null;
+			try {
+				source = NexsonStreamReader.readNexson(r, sourceId, false, msgLogger, NexsonReader.getTreeImportExecutor(), loader);
+			} catch (IOException ex) {
+				if (loader.sourceMeta < 0) {
+					msgLogger.messageStr("Could not read nexson, skipping", "file", file.getPath());
+				} else {
+					msgLogger.messageStr("Could not read nexson, leaving the trees read so far as an unfinished import", "file", file.getPath());
+				}
+				continue;
+			} finally {
+				r.close();
+			}
+
+			// match the behavior of the Indexing plugin: only add sources with trees
+			if (loader.sourceMeta >= 0) {
+				finishSource(source, loader.sourceMeta, location);
+				sourcesAdded++;
+			}
+		}
+		return sourcesAdded;
+	}
+
+	/**
+	 * Writes the trees of a single source as the reader passes them on, creating the source on the first tree.
+	 */
+	private class SourceLoader implements NexsonStreamReader.TreeListener {
+
+		private final String location;
+		long sourceMeta = -1;
+		private int treesAdded = 0;
+
+		SourceLoader(String location) {
+			this.location = location;
+		}
+
+		@Override
+		public void treeRead(NexsonSource source, JadeTree tree) {
+			if (sourceMeta < 0) {
+				sourceMeta = startSource(source, location);
+			}
+			if (tree != null) { // the nexson reader passes null trees when they can't be read
+				addSourceTree(source, tree, treesAdded++, sourceMeta, location);
+			}
+		}
+	}
+
+	/**
+	 * Add a source and its trees. Mirrors DatabaseManager.addSource.
+	 *
+	 * @param source
+	 * @param location
+	 * @return
+	 * 		the node id of the source metadata node
+	 */
+	public long addSource(NexsonSource source, String location) {
+
+		long sourceMeta = startSource(source, location);
+
+		// add the trees
+		int i = 0;
+		for (JadeTree tree : source.getTrees()) {
+			if (tree == null) { // the nexson reader returns null trees when they can't be read
+				continue;
+			}
+			addSourceTree(source, tree, i, sourceMeta, location);
+			i++;
+		}
+
+		finishSource(source, sourceMeta, location);
+		return sourceMeta;
+	}
+
+	/**
+	 * Create the source metadata node, flagged as an import in progress until finishSource is called, and index it by
+	 * its source id. Mirrors the start of a chunked DatabaseManager.addSource.
+	 *
+	 * @return
+	 * 		the node id of the source metadata node
+	 */
+	private long startSource(NexsonSource source, String location) {
+		Map<String, Object> properties = getSourceProperties(source, location);
+		properties.put(NodeProperty.IMPORT_IN_PROGRESS.name, true);
+		properties.put(NodeProperty.IMPORT_TREES_COMPLETED.name, 0);
+		properties.put(NodeProperty.IMPORT_CURRENT_TREE_NODES.name, (long) 0);
+		long sourceMeta = inserter.createNode(properties);
+
+		// index the source by id. mirrors DatabaseIndexer.addSourceMetaNodeToSourceIdIndex
+		addToIndex(NodeIndexDescription.SOURCE_METADATA_NODES_BY_SOURCE_ID, sourceMeta, location + OTUConstants.SOURCE_ID, source.getId());
+		return sourceMeta;
+	}
+
+	/**
+	 * Add the `i`th readable tree of a source, and record it as completed on the source.
+	 */
+	private void addSourceTree(NexsonSource source, JadeTree tree, int i, long sourceMeta, String location) {
+
+		// get the tree id from the nexson if there is one or create an arbitrary one if not
+		String treeIdSuffix = (String) tree.getObject("id");
+		if (treeIdSuffix == null) {
+			treeIdSuffix = OTUConstants.LOCAL_TREEID_PREFIX + String.valueOf(i);
+		}
+		addTree(tree, source.getId() + "_" + treeIdSuffix, sourceMeta, location, source.getId());
+		inserter.setNodeProperty(sourceMeta, NodeProperty.IMPORT_TREES_COMPLETED.name, i + 1);
+	}
+
+	/**
+	 * Set the final source properties (which also clears the import flags), connect the source to its copies at other
+	 * locations, and add it to the property indexes. Mirrors the end of DatabaseManager.addSource.
+	 */
+	private void finishSource(NexsonSource source, long sourceMeta, String location) {
+
+		String sourceId = source.getId();
+
+		// the study metadata may follow the trees in the nexson, so it is only complete now
+		Map<String, Object> properties = getSourceProperties(source, location);
+		inserter.setNodeProperties(sourceMeta, properties);
+
+		// connect local copies and remotes that have been loaded
+		if (location.equals(DatabaseAbstractBase.LOCAL_LOCATION)) {
+			for (Entry<String, Map<String, Long>> remote : sourceMetaNodeIds.entrySet()) {
+				if (!remote.getKey().equals(location) && remote.getValue().containsKey(sourceId)) {
+					inserter.createRelationship(sourceMeta, remote.getValue().get(sourceId), RelType.LOCALCOPYOF, null);
+				}
+			}
+		} else {
+			Map<String, Long> local = sourceMetaNodeIds.get(DatabaseAbstractBase.LOCAL_LOCATION);
+			if (local != null && local.containsKey(sourceId)) {
+				inserter.createRelationship(local.get(sourceId), sourceMeta, RelType.LOCALCOPYOF, null);
+			}
+			if (!knownRemotes.contains(location)) {
+				knownRemotes.add(location);
+				// graph properties are stored on the reference node (node 0), as GraphDatabaseAgent.setGraphProperty does
+				@SuppressWarnings("deprecation")
+				long referenceNode = inserter.getReferenceNode();
+				inserter.setNodeProperty(referenceNode, GraphProperty.KNOWN_REMOTES.propertyName,
+						knownRemotes.toArray(new String[knownRemotes.size()]));
+			}
+		}
+		if (!sourceMetaNodeIds.containsKey(location)) {
+			sourceMetaNodeIds.put(location, new HashMap<String, Long>());
+		}
+		sourceMetaNodeIds.get(location).put(sourceId, sourceMeta);
+
+		// index the source properties. mirrors DatabaseIndexer.addSourceMetaNodeToPropertyIndexes
+		addSearchablePropertiesToIndexes(sourceMeta, properties, OTUConstants.SOURCE_PROPERTIES_FOR_SIMPLE_INDEXING);
+	}
+
+	private static Map<String, Object> getSourceProperties(NexsonSource source, String location) {
+		Map<String, Object> properties = new HashMap<String, Object>(source.getProperties());
+		properties.put(NodeProperty.LOCATION.name, location);
+		properties.put(NodeProperty.SOURCE_ID.name, source.getId());
+		return properties;
+	}
+
+	/**
+	 * Add a tree under the specified source metadata node. Mirrors DatabaseManager.addTree.
+	 *
+	 * @return
+	 * 		the node id of the tree root
+	 */
+	private long addTree(JadeTree tree, String treeId, long sourceMeta, String location, String sourceId) {
+
+		long root;
+		if (location.equals(DatabaseAbstractBase.LOCAL_LOCATION)) {
+			root = addTreeNodes(tree.getRoot());
+		} else {
+			root = inserter.createNode(null);
+		}
+
+		inserter.createRelationship(sourceMeta, root, RelType.METADATAFOR, null);
+
+		Map<String, Object> properties = inserter.getNodeProperties(root);
+		properties.put(NodeProperty.LOCATION.name, location);
+		properties.put(NodeProperty.SOURCE_ID.name, sourceId);
+		properties.put(NodeProperty.TREE_ID.name, treeId);
+		properties.put(NodeProperty.IS_ROOT.name, true);
+		properties.putAll(tree.getAssoc());
+		properties.putAll(DatabaseManager.getTipTaxonArrayProperties(tree));
+		inserter.setNodeProperties(root, properties);
+
+		// index the tree. mirrors DatabaseIndexer.addTreeRootNodeToIndexes
+		addToIndex(NodeIndexDescription.TREE_ROOT_NODES_BY_TREE_ID, root, location + OTUConstants.TREE_ID, treeId);
+		addToIndex(NodeIndexDescription.TREE_ROOT_NODES_BY_SOURCE_ID, root, location + OTUConstants.SOURCE_ID, sourceId);
+		addSearchablePropertiesToIndexes(root, properties, OTUConstants.TREE_PROPERTIES_FOR_SIMPLE_INDEXING);
+
+		addToIndex(NodeIndexDescription.TREE_ROOT_NODES_BY_ORIGINAL_TAXON_NAME, root, NodeProperty.OT_ORIGINAL_LABEL.name,
+				properties.get(NodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.name));
+		addToIndex(NodeIndexDescription.TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME, root, NodeProperty.NAME.name,
+				properties.get(NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.name));
+		addToIndex(NodeIndexDescription.TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED, root, NodeProperty.NAME.name,
+				properties.get(NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES_WHITESPACE_FILLED.name));
+		addToIndex(NodeIndexDescription.TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID, root, NodeProperty.OT_OTT_ID.name,
+				properties.get(NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.name));
+
+		return root;
+	}
+
+	/**
+	 * Write the nodes and CHILDOF relationships for the tree below `jadeRoot`, and designate the ingroup if one is
+	 * flagged. Mirrors DatabaseManager.preorderAddTreeToDB and DatabaseManager.designateIngroup.
+	 *
+	 * @return
+	 * 		the node id of the root
+	 */
+	private long addTreeNodes(JadeNode jadeRoot) {
+
+		Map<JadeNode, Long> nodeIds = new HashMap<JadeNode, Long>();
+		Map<JadeNode, int[]> subtreeSizes = DatabaseManager.getSubtreeSizes(jadeRoot);
+		JadeNode ingroupStart = null;
+		long root = -1;
+		int position = 0;
+
+		// preorder, children in order
+		LinkedList<JadeNode> stack = new LinkedList<JadeNode>();
+		stack.push(jadeRoot);
+		while (!stack.isEmpty()) {
+			JadeNode curJadeNode = stack.pop();
+
+			Map<String, Object> properties = new HashMap<String, Object>();
+			if (curJadeNode.hasAssocObject(NodeProperty.IS_INGROUP_ROOT.name) == true) {
+				properties.put(NodeProperty.INGROUP_START_NODE_ID.name, true);
+				ingroupStart = curJadeNode;
+			}
+			if (curJadeNode.getName() != null) {
+				properties.put(NodeProperty.NAME.name, curJadeNode.getName());
+				properties.putAll(curJadeNode.getAssoc());
+			}
+			DatabaseManager.putSubtreeSizes(properties, subtreeSizes.get(curJadeNode));
+			properties.put(NodeProperty.PREORDER_INDEX.name, position++);
+			if (root >= 0) {
+				properties.put(NodeProperty.TREE_ROOT_NODE_ID.name, root);
+			}
+			long curNode = inserter.createNode(properties);
+			nodeIds.put(curJadeNode, curNode);
+			if (root < 0) {
+				root = curNode;
+				inserter.setNodeProperty(root, NodeProperty.TREE_ROOT_NODE_ID.name, root);
+			}
+
+			if (curJadeNode.getParent() != null && curJadeNode != jadeRoot) {
+				inserter.createRelationship(curNode, nodeIds.get(curJadeNode.getParent()), RelType.CHILDOF, null);
+			}
+
+			List<JadeNode> children = curJadeNode.getChildren();
+			for (int i = children.size() - 1; i >= 0; i--) {
+				stack.push(children.get(i));
+			}
+		}
+
+		if (ingroupStart != null) {
+			inserter.setNodeProperty(root, NodeProperty.INGROUP_IS_SET.name, true);
+			inserter.setNodeProperty(root, NodeProperty.INGROUP_START_NODE_ID.name, nodeIds.get(ingroupStart));
+		}
+		return root;
+	}
+
+	// ===== indexing
+
+	/**
+	 * Index a node under all the specified searchable properties. Mirrors DatabaseIndexer.indexNodeBySearchableProperties.
+	 */
+	private void addSearchablePropertiesToIndexes(long node, Map<String, Object> properties, SearchableProperty[] searchableProperties) {
+		for (SearchableProperty search : searchableProperties) {
+			if (properties.containsKey(search.property.name)) {
+				addToIndex(search.index, node, search.property.name, properties.get(search.property.name));
+			}
+		}
+	}
+
+	/**
+	 * Add a single key/value to an index. Array values are indexed under each distinct element, as the regular indexes do.
+	 */
+	private void addToIndex(NodeIndexDescription desc, long node, String key, Object value) {
+		if (value == null) {
+			return;
+		}
+		if (value.getClass().isArray()) {
+			value = DatabaseIndexer.distinctValues(value);
+		}
+		Map<String, Object> entry = new HashMap<String, Object>();
+		entry.put(key, value);
+		indexes.get(desc).add(node, entry);
+	}
+
+	/**
+	 * Flush the indexes and shut down the batch inserter. The database cannot be used until this has been called.
+	 */
+	public void shutdown() {
+		for (BatchInserterIndex index : indexes.values()) {
+			index.flush();
+		}
+		indexProvider.shutdown();
+		inserter.shutdown();
+	}
+
+	// ===== command line
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2 || args.length > 3) {
+			System.out.println("usage: BulkNexsonLoader <graphdb directory> <nexson directory> [location]");
+			System.out.println("  location defaults to \"" + DatabaseAbstractBase.LOCAL_LOCATION + "\". The graphdb directory must be new or empty.");
+			System.exit(1);
+		}
+
+		File dbDir = new File(args[0]);
+		String[] existing = dbDir.list();
+		if (existing != null && existing.length > 0) {
+			System.out.println("The graphdb directory " + args[0] + " is not empty. The bulk loader can only build new databases.");
+			System.exit(1);
+		}
+
+		File nexsonDir = new File(args[1]);
+		if (!nexsonDir.isDirectory()) {
+			System.out.println("The nexson directory " + args[1] + " does not exist.");
+			System.exit(1);
+		}
+
+		String location = args.length > 2 ? args[2] : DatabaseAbstractBase.LOCAL_LOCATION;
+
+		MessageLogger msgLogger = new MessageLogger("bulkload:");
+		long start = System.currentTimeMillis();
+		BulkNexsonLoader loader = new BulkNexsonLoader(args[0]);
+		int sourcesAdded = 0;
+		try {
+			sourcesAdded = loader.loadDirectory(nexsonDir, location, msgLogger);
+		} finally {
+			loader.shutdown();
+		}
+		msgLogger.messageInt("Sources added", "number", sourcesAdded);
+		msgLogger.messageLong("Load time", "milliseconds", System.currentTimeMillis() - start);
+	}
+}
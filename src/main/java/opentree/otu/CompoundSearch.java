@@ -0,0 +1,263 @@
+package opentree.otu;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import opentree.otu.constants.NodeProperty;
+import opentree.otu.constants.SearchMode;
+import opentree.otu.constants.SearchableProperty;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.Query;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+
+/**
+ * A search on several properties at once, e.g. trees containing a taxon from sources with a given curator after a
+ * given year. Each clause names a SearchableProperty, a value, and a SearchMode, and the clauses are combined either
+ * with AND (all must match) or OR (any may match).
+ *
+ * The clauses on each index are run together as a single lucene BooleanQuery. The hits on the source metadata indexes
+ * and the tree root indexes are then joined by source id: with AND, a source matches if it matches all the source
+ * clauses and has a tree that matches all the tree clauses; with OR, a source matches if it matches any source clause
+ * or has a tree that matches any tree clause.
+ */
+public class CompoundSearch extends DatabaseAbstractBase {
+
+	private final boolean matchAll;
+
+	// the clauses grouped by index, in the order the indexes were first used
+	private final Map<NodeIndexDescription, List<Clause>> clausesByIndex = new LinkedHashMap<NodeIndexDescription, List<Clause>>();
+
+	/**
+	 * A single property search.
+	 */
+	private static class Clause {
+		final SearchableProperty property;
+		final String value;
+		final SearchMode mode;
+
+		Clause(SearchableProperty property, String value, SearchMode mode) {
+			this.property = property;
+			this.value = value;
+			this.mode = mode;
+		}
+	}
+
+	/**
+	 * @param graphDb
+	 * @param matchAll
+	 * 		If true, the clauses are combined with AND, otherwise with OR
+	 */
+	public CompoundSearch(GraphDatabaseService graphDb, boolean matchAll) {
+		super(graphDb);
+		this.matchAll = matchAll;
+	}
+
+	public CompoundSearch(GraphDatabaseAgent graphDb, boolean matchAll) {
+		super(graphDb);
+		this.matchAll = matchAll;
+	}
+
+	/**
+	 * Add a clause to the search.
+	 * @param property
+	 * @param value
+	 * @param mode
+	 * @return
+	 * 		this search, so clauses can be chained
+	 */
+	public CompoundSearch addClause(SearchableProperty property, String value, SearchMode mode) {
+		List<Clause> clauses = clausesByIndex.get(property.index);
+		if (clauses == null) {
+			clauses = new LinkedList<Clause>();
+			clausesByIndex.put(property.index, clauses);
+		}
+		clauses.add(new Clause(property, value, mode));
+		return this;
+	}
+
+	/**
+	 * Run the search. The returned map contains `source_ids`, the ids of the matching sources, and `trees`, a map from
+	 * each of those source ids to the ids of its trees that matched the tree clauses (empty if there were no tree
+	 * clauses, or with OR if the source matched only on its own properties).
+	 * @return
+	 */
+	public Map<String, Object> execute() {
+
+		if (clausesByIndex.isEmpty()) {
+			throw new IllegalArgumentException("A compound search needs at least one clause");
+		}
+
+		// the matching source ids for each source index, and the matching tree roots (by node id) for each tree index
+		List<Set<String>> sourceHits = new LinkedList<Set<String>>();
+		List<Map<Long, Node>> treeHits = new LinkedList<Map<Long, Node>>();
+
+		for (Map.Entry<NodeIndexDescription, List<Clause>> indexClauses : clausesByIndex.entrySet()) {
+			boolean treeIndex = isTreeIndex(indexClauses.getKey());
+			Set<String> sourceIds = new HashSet<String>();
+			Map<Long, Node> trees = new HashMap<Long, Node>();
+			IndexHits<Node> hits = getNodeIndex(indexClauses.getKey()).query(buildQuery(indexClauses.getKey(), indexClauses.getValue()));
+			try {
+				for (Node hit : hits) {
+					if (treeIndex) {
+						trees.put(hit.getId(), hit);
+					} else {
+						sourceIds.add((String) hit.getProperty(NodeProperty.SOURCE_ID.name));
+					}
+				}
+			} finally {
+				hits.close();
+			}
+
+			if (treeIndex) {
+				treeHits.add(trees);
+			} else {
+				sourceHits.add(sourceIds);
+			}
+		}
+
+		Set<String> sourceIds = combineSourceIds(sourceHits);
+		Map<Long, Node> trees = combineTrees(treeHits);
+
+		// join the tree hits to the source hits
+		Map<String, List<String>> treeIdsBySourceId = new TreeMap<String, List<String>>();
+		Set<String> matched = new TreeSet<String>();
+		if (matchAll) {
+			if (sourceIds != null) {
+				matched.addAll(sourceIds);
+			}
+			if (trees != null) {
+				Set<String> sourcesWithTrees = getSourceIds(trees.values());
+				if (sourceIds == null) {
+					matched.addAll(sourcesWithTrees);
+				} else {
+					matched.retainAll(sourcesWithTrees);
+				}
+			}
+		} else {
+			if (sourceIds != null) {
+				matched.addAll(sourceIds);
+			}
+			if (trees != null) {
+				matched.addAll(getSourceIds(trees.values()));
+			}
+		}
+
+		for (String sourceId : matched) {
+			treeIdsBySourceId.put(sourceId, new LinkedList<String>());
+		}
+		if (trees != null) {
+			for (Node root : trees.values()) {
+				List<String> treeIds = treeIdsBySourceId.get(root.getProperty(NodeProperty.SOURCE_ID.name));
+				if (treeIds != null) {
+					treeIds.add((String) root.getProperty(NodeProperty.TREE_ID.name));
+				}
+			}
+		}
+
+		Map<String, Object> results = new HashMap<String, Object>();
+		results.put("source_ids", new LinkedList<String>(matched));
+		results.put("trees", treeIdsBySourceId);
+		return results;
+	}
+
+	// ===== private methods
+
+	/**
+	 * Build the lucene query for all the clauses on one index.
+	 */
+	private Query buildQuery(NodeIndexDescription desc, List<Clause> clauses) {
+
+		// the index may predate the declared types, in which case it is queried as it was created
+		Index<Node> index = getNodeIndex(desc);
+		IndexType type = IndexType.forConfiguration(graphDb.getGraphDatabaseService().index().getConfiguration(index));
+		if (type == null) {
+			type = desc.type;
+		}
+
+		BooleanQuery query = new BooleanQuery();
+		for (Clause clause : clauses) {
+			String key = clause.property.property.name;
+			Query clauseQuery;
+			if (clause.mode == SearchMode.EXACT) {
+				clauseQuery = type.getExactQuery(key, clause.value);
+			} else if (clause.mode == SearchMode.AT_LEAST) {
+				clauseQuery = type.getRangeQuery(key, clause.value, null);
+			} else if (clause.mode == SearchMode.AT_MOST) {
+				clauseQuery = type.getRangeQuery(key, null, clause.value);
+			} else {
+				clauseQuery = new FuzzyQuery(new Term(key, QueryParser.escape(clause.value)), GeneralUtils.getMinIdentity(clause.value));
+			}
+			query.add(clauseQuery, matchAll ? Occur.MUST : Occur.SHOULD);
+		}
+		return query;
+	}
+
+	/**
+	 * Combine the source ids matched on each source index. Returns null if there were no source clauses.
+	 */
+	private Set<String> combineSourceIds(List<Set<String>> sourceHits) {
+		Iterator<Set<String>> hitsIter = sourceHits.iterator();
+		if (!hitsIter.hasNext()) {
+			return null;
+		}
+		Set<String> combined = new HashSet<String>(hitsIter.next());
+		while (hitsIter.hasNext()) {
+			if (matchAll) {
+				combined.retainAll(hitsIter.next());
+			} else {
+				combined.addAll(hitsIter.next());
+			}
+		}
+		return combined;
+	}
+
+	/**
+	 * Combine the trees matched on each tree index. Returns null if there were no tree clauses.
+	 */
+	private Map<Long, Node> combineTrees(List<Map<Long, Node>> treeHits) {
+		Iterator<Map<Long, Node>> hitsIter = treeHits.iterator();
+		if (!hitsIter.hasNext()) {
+			return null;
+		}
+		Map<Long, Node> combined = new HashMap<Long, Node>(hitsIter.next());
+		while (hitsIter.hasNext()) {
+			if (matchAll) {
+				combined.keySet().retainAll(hitsIter.next().keySet());
+			} else {
+				combined.putAll(hitsIter.next());
+			}
+		}
+		return combined;
+	}
+
+	private static Set<String> getSourceIds(Iterable<Node> roots) {
+		Set<String> sourceIds = new HashSet<String>();
+		for (Node root : roots) {
+			sourceIds.add((String) root.getProperty(NodeProperty.SOURCE_ID.name));
+		}
+		return sourceIds;
+	}
+
+	/**
+	 * Return true if the searchable properties on the index are tree properties.
+	 */
+	private static boolean isTreeIndex(NodeIndexDescription desc) {
+		return desc.nodeType == NodeIndexDescription.NodeType.TREE_ROOT;
+	}
+}
@@ -34,4 +34,55 @@ public class ConfigurationManager  {
 			return null;
 		}
 	}
+	
+	public boolean setNexsonCacheDir(String dir){
+		try {
+			new File(dir).getCanonicalFile();
+		} catch (IOException e) {
+			return false; 
+		}
+		GraphDatabaseAgent gda = dm.getGraphDatabaseAgent();
+		gda.setGraphProperty(GraphProperty.NEXSON_CACHE_DIR.propertyName, dir);
+		return true;
+	}
+	
+	/**
+	 * Get the configured directory for the remote nexson cache, or the default one if none has been set.
+	 * @return
+	 */
+	public File getNexsonCacheDir(){
+		GraphDatabaseAgent gda = dm.getGraphDatabaseAgent();
+		String curDir = (String) gda.getGraphProperty(GraphProperty.NEXSON_CACHE_DIR.propertyName);
+		return curDir != null ? new File(curDir) : NexsonCache.getDefaultCacheDir();
+	}
+	
+	public NexsonCache getNexsonCache(){
+		return new NexsonCache(getNexsonCacheDir());
+	}
+	
+	/**
+	 * Set the maximum number of background import jobs that will be run at once. Also applies the change to the running
+	 * ImportJobManager.
+	 * @param maxConcurrentImports
+	 * @return
+	 */
+	public boolean setMaxConcurrentImports(int maxConcurrentImports){
+		if (maxConcurrentImports < 1) {
+			return false;
+		}
+		GraphDatabaseAgent gda = dm.getGraphDatabaseAgent();
+		gda.setGraphProperty(GraphProperty.MAX_CONCURRENT_IMPORTS.propertyName, maxConcurrentImports);
+		ImportJobManager.getInstance(gda.getGraphDatabaseService()).setMaxConcurrentJobs(maxConcurrentImports);
+		return true;
+	}
+	
+	/**
+	 * Get the configured maximum number of concurrent background imports, or the default if none has been set.
+	 * @return
+	 */
+	public int getMaxConcurrentImports(){
+		GraphDatabaseAgent gda = dm.getGraphDatabaseAgent();
+		Integer max = (Integer) gda.getGraphProperty(GraphProperty.MAX_CONCURRENT_IMPORTS.propertyName);
+		return max != null ? max : ImportJobManager.DEFAULT_MAX_CONCURRENT_JOBS;
+	}
 }
@@ -48,7 +48,7 @@ public abstract class DatabaseAbstractBase {
      * @return node index
      */
 	public Index<Node> getNodeIndex(NodeIndexDescription indexDesc) {
-		return graphDb.getNodeIndex(indexDesc.name);
+		return graphDb.getNodeIndex(indexDesc);
 	}
     
 	/**
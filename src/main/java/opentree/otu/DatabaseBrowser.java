@@ -4,6 +4,8 @@ import jade.tree.JadeNode;
 import jade.tree.JadeTree;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -29,6 +31,7 @@ import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.index.lucene.QueryContext;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 import org.neo4j.kernel.Traversal;
 import org.neo4j.kernel.impl.nioneo.store.PropertyType;
@@ -39,6 +42,9 @@ public class DatabaseBrowser extends DatabaseAbstractBase {
 	public final Index<Node> treeRootNodesBySourceId = getNodeIndex(NodeIndexDescription.TREE_ROOT_NODES_BY_SOURCE_ID);
 	public final Index<Node> sourceMetaNodesBySourceId = getNodeIndex(NodeIndexDescription.SOURCE_METADATA_NODES_BY_SOURCE_ID);
 	
+	// results are cached until the next write through the DatabaseManager
+	private final SearchResultCache searchCache = SearchResultCache.getInstance(graphDb.getGraphDatabaseService());
+	
 	private static Set<String> protectedSourceProperties;
 	private static Set<String> protectedTreeProperties;
 	
@@ -80,19 +86,63 @@ public class DatabaseBrowser extends DatabaseAbstractBase {
 	 * 		A list of strings containing the node ids of the source meta nodes for sources found during search
 	 */
 	public Iterable<String> doBasicSearch(SearchableProperty search, String searchValue) {
+		return doBasicSearch(search, searchValue, false);
+	}
+	
+	/**
+	 * Search the indexes, and get a list of source ids that match the search. Exact searches on taxon names and ott ids,
+	 * and fuzzy searches on taxon names, are answered from the in-memory TaxonSearchIndex; all other searches are fuzzy
+	 * searches on the lucene indexes. Results are cached until the next write.
+	 * @param search
+	 * 		A SearchableProperty to specify the search domain
+	 * @param searchValue
+	 * 		The value to be searched for
+	 * @param exact
+	 * 		If true, only match taxon names (without regard to case) or ott ids that are exactly equal to the search value
+	 * @return
+	 * 		A list of strings containing the source ids for sources found during search
+	 */
+	public Iterable<String> doBasicSearch(SearchableProperty search, String searchValue, boolean exact) {
+
+		List<Object> key = Arrays.<Object>asList("doBasicSearch", search, searchValue, exact);
+		@SuppressWarnings("unchecked")
+		Set<String> sourceIds = (Set<String>) searchCache.get(key);
+		if (sourceIds == null) {
+			long generation = searchCache.getGeneration();
+			sourceIds = Collections.unmodifiableSet(searchIndexes(search, searchValue, exact));
+			searchCache.put(key, generation, sourceIds);
+		}
+		return sourceIds;
+	}
+	
+	/**
+	 * Do a basic search without the cache.
+	 */
+	private Set<String> searchIndexes(SearchableProperty search, String searchValue, boolean exact) {
+		
+		if (exact && TaxonSearchIndex.supports(search)) {
+			return TaxonSearchIndex.getInstance(graphDb.getGraphDatabaseService()).getSourceIds(search, searchValue);
+		}
 		
 		HashSet<String> sourceIds = new HashSet<String>();
+		IndexHits<Node> hits;
 
-		// fuzzy query on the fulltext index
-		FuzzyQuery fuzzyQuery = new FuzzyQuery(new Term(search.property.name, QueryParser.escape(searchValue)),
-    			GeneralUtils.getMinIdentity(searchValue));
-		IndexHits<Node> hits = getNodeIndex(search.index).query(fuzzyQuery);
-        try {
-			for (Node hit : hits) {
-				sourceIds.add((String) hit.getProperty(NodeProperty.SOURCE_ID.name));
+		if (TaxonSearchIndex.supportsFuzzy(search)) {
+			// fuzzy search on the words of the taxon names, from the trigram indexes rather than a lucene term scan
+			sourceIds.addAll(TaxonSearchIndex.getInstance(graphDb.getGraphDatabaseService()).getFuzzySourceIds(search,
+					QueryParser.escape(searchValue), GeneralUtils.getMinIdentity(searchValue)));
+		} else {
+			// fuzzy query on the fulltext index
+			FuzzyQuery fuzzyQuery = new FuzzyQuery(new Term(search.property.name, QueryParser.escape(searchValue)),
+	    			GeneralUtils.getMinIdentity(searchValue));
+			hits = getNodeIndex(search.index).query(fuzzyQuery);
+	        try {
+				for (Node hit : hits) {
+					sourceIds.add((String) hit.getProperty(NodeProperty.SOURCE_ID.name));
+				}
+			} finally {
+				hits.close();
 			}
-		} finally {
-			hits.close();
 		}
 
         // kludge: special case for exact taxon names searches with spaces.
@@ -112,6 +162,71 @@ public class DatabaseBrowser extends DatabaseAbstractBase {
 		return sourceIds;
 	}
 	
+	/**
+	 * Search the lucene indexes, and get one page of the matching source and tree root nodes, ordered by lucene score.
+	 * The hits are read lazily from the index in score order, so only the nodes up to the end of the page are visited.
+	 * Unlike doBasicSearch, each hit is a node, so sources with several matching trees appear once for each tree.
+	 * 
+	 * The returned map contains `total_hits`, the number of matching nodes; `offset` and `limit`; and `results`, a list
+	 * with a map for each hit containing its `source_id` and `score`. If `includeMetadata` is true, each result also
+	 * contains the `tree_id` (for tree hits) and `matched_values`, the values of the searched property that matched.
+	 * @param search
+	 * 		A SearchableProperty to specify the search domain
+	 * @param searchValue
+	 * 		The value to be searched for
+	 * @param offset
+	 * 		The number of hits to skip
+	 * @param limit
+	 * 		The maximum number of hits to return
+	 * @param includeMetadata
+	 * @return
+	 */
+	public Map<String, Object> doScoredSearch(SearchableProperty search, String searchValue, int offset, int limit, boolean includeMetadata) {
+
+		if (offset < 0 || limit < 0) {
+			throw new IllegalArgumentException("offset and limit must not be negative");
+		}
+		
+		String text = QueryParser.escape(searchValue);
+		float minSimilarity = GeneralUtils.getMinIdentity(searchValue);
+		FuzzyQuery fuzzyQuery = new FuzzyQuery(new Term(search.property.name, text), minSimilarity);
+
+		List<Map<String, Object>> results = new LinkedList<Map<String, Object>>();
+		int totalHits;
+
+		IndexHits<Node> hits = getNodeIndex(search.index).query(new QueryContext(fuzzyQuery).sortByScore());
+		try {
+			totalHits = hits.size();
+			int i = 0;
+			while (hits.hasNext() && i < offset + limit) {
+				Node hit = hits.next();
+				if (i++ < offset) {
+					continue;
+				}
+
+				Map<String, Object> result = new HashMap<String, Object>();
+				result.put("source_id", hit.getProperty(NodeProperty.SOURCE_ID.name));
+				result.put("score", hits.currentScore());
+				if (includeMetadata) {
+					if (hit.hasProperty(NodeProperty.TREE_ID.name)) {
+						result.put("tree_id", hit.getProperty(NodeProperty.TREE_ID.name));
+					}
+					result.put("matched_values", getMatchedValues(hit, search, text, minSimilarity));
+				}
+				results.add(result);
+			}
+		} finally {
+			hits.close();
+		}
+
+		Map<String, Object> page = new HashMap<String, Object>();
+		page.put("total_hits", totalHits);
+		page.put("offset", offset);
+		page.put("limit", limit);
+		page.put("results", results);
+		return page;
+	}
+	
 	/**
 	 * Search all known remotes to see if they contain a source with the specified id. Returns an iterable of source meta
 	 * nodes for all matching sources.
@@ -185,16 +300,30 @@ public class DatabaseBrowser extends DatabaseAbstractBase {
 	}
 	
 	/**
-	 * Return a list containing the ids of all imported sources
+	 * Return a list containing the ids of all imported sources. Sources whose import has not finished are not included.
+	 * Results are cached until the next write.
 	 * @return
 	 */
 	public Map<String, Object> getSourceIds(String location, Set<String> excludedSourceIds) {
+
+		List<Object> key = Arrays.<Object>asList("getSourceIds", location, new HashSet<String>(excludedSourceIds));
+		@SuppressWarnings("unchecked")
+		Map<String, Object> results = (Map<String, Object>) searchCache.get(key);
+		if (results != null) {
+			return results;
+		}
+		long generation = searchCache.getGeneration();
+
 		List<String> sourceIds = new LinkedList<String>();
 		
 		IndexHits<Node> sourcesFound = sourceMetaNodesBySourceId.query(location + OTUConstants.SOURCE_ID + ":*");
 		try {
 			while (sourcesFound.hasNext()) {
-				String sid = (String) sourcesFound.next().getProperty(NodeProperty.SOURCE_ID.name);
+				Node sourceMeta = sourcesFound.next();
+				if (DatabaseManager.isImportInProgress(sourceMeta)) {
+					continue;
+				}
+				String sid = (String) sourceMeta.getProperty(NodeProperty.SOURCE_ID.name);
 				if (!excludedSourceIds.contains(sid)) {
 					sourceIds.add(sid);
 				}
@@ -203,8 +332,10 @@ public class DatabaseBrowser extends DatabaseAbstractBase {
 			sourcesFound.close();
 		}
 		
-		Map<String, Object> results = new HashMap<String, Object>();
-		results.put("sources", sourceIds);
+		results = new HashMap<String, Object>();
+		results.put("sources", Collections.unmodifiableList(sourceIds));
+		results = Collections.unmodifiableMap(results);
+		searchCache.put(key, generation, results);
 		return results;
 	}
 		
@@ -248,13 +379,22 @@ public class DatabaseBrowser extends DatabaseAbstractBase {
 	
 	/**
 	 * Return a list containing all the tree ids for the specified source id except any tree ids that are in the excludedTreeIds variable.
+	 * Results are cached until the next write.
 	 * @return
 	 */
 	public Map<String, Object> getTreeIdsForSource(String location, String sourceId, Set<String> excludedTreeIds) {
+
+		List<Object> key = Arrays.<Object>asList("getTreeIdsForSource", location, sourceId, new HashSet<String>(excludedTreeIds));
+		@SuppressWarnings("unchecked")
+		Map<String, Object> results = (Map<String, Object>) searchCache.get(key);
+		if (results != null) {
+			return results;
+		}
+		long generation = searchCache.getGeneration();
 	
 		List<String> treeIds = new LinkedList<String>();
 		
-		IndexHits<Node> hits = treeRootNodesBySourceId.query(location + OTUConstants.SOURCE_ID + ":" + sourceId);
+		IndexHits<Node> hits = treeRootNodesBySourceId.get(location + OTUConstants.SOURCE_ID, sourceId);
 		try {
 			while (hits.hasNext()) {
 				String tid = (String) hits.next().getProperty(NodeProperty.TREE_ID.name);
@@ -266,8 +406,10 @@ public class DatabaseBrowser extends DatabaseAbstractBase {
 			hits.close();
 		}
 		
-		Map<String, Object> results = new HashMap<String, Object>();
-		results.put("trees", treeIds);
+		results = new HashMap<String, Object>();
+		results.put("trees", Collections.unmodifiableList(treeIds));
+		results = Collections.unmodifiableMap(results);
+		searchCache.put(key, generation, results);
 		return results;
 	}
 	
@@ -346,6 +488,9 @@ public class DatabaseBrowser extends DatabaseAbstractBase {
 			metadata.put(property.name, value);
 		}
 		
+		// ingroup membership is no longer stored on the nodes, and flags left on nodes of older trees may be out of date
+		metadata.put(NodeProperty.IS_WITHIN_INGROUP.name, DatabaseUtils.isWithinIngroup(otu) ? (Object) true : "");
+		
 		Map<String, Object> result = new HashMap<String, Object>();
 		result.put("metadata", metadata);
 		
@@ -471,7 +616,7 @@ public class DatabaseBrowser extends DatabaseAbstractBase {
 				curNode.setName(GeneralUtils.cleanName(String.valueOf(curGraphNode.getProperty(NodeProperty.NAME.name))));
 				// curNode.setName(GeneralUtils.cleanName(curNode.getName()));
 			}
-			if (curGraphNode.hasProperty(NodeProperty.IS_WITHIN_INGROUP.name)) {
+			if (DatabaseUtils.isWithinIngroup(curGraphNode)) {
 				curNode.assocObject("ingroup", true);
 			}
 			curNode.assocObject("nodeId", String.valueOf(curGraphNode.getId()));
@@ -531,4 +676,43 @@ public class DatabaseBrowser extends DatabaseAbstractBase {
 		// (add a bread crumb)
 		return new JadeTree(newroot);
 	}
+
+	/**
+	 * Get the values of the searched property on a hit that match a fuzzy search, either as a whole or by one of their
+	 * (lowercased) words, which are the terms of the fulltext indexes.
+	 */
+	private static List<String> getMatchedValues(Node hit, SearchableProperty search, String text, float minSimilarity) {
+
+		// the taxonomic indexes are written from the tip arrays on the tree root
+		NodeProperty valueProperty = search.property;
+		if (search == SearchableProperty.DESCENDANT_ORIGINAL_TAXON_NAMES) {
+			valueProperty = NodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES;
+		} else if (search == SearchableProperty.DESCENDANT_MAPPED_TAXON_NAMES) {
+			valueProperty = NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES;
+		} else if (search == SearchableProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS) {
+			valueProperty = NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS;
+		}
+
+		List<String> matched = new LinkedList<String>();
+		if (!hit.hasProperty(valueProperty.name)) {
+			return matched;
+		}
+		Object value = hit.getProperty(valueProperty.name);
+		Object[] values = value.getClass().isArray() ? DatabaseIndexer.distinctValues(value) : new Object[] { value };
+
+		for (Object v : values) {
+			String s = String.valueOf(v);
+			if (TrigramIndex.similarity(text, s, minSimilarity) > minSimilarity) {
+				matched.add(s);
+				continue;
+			}
+			for (String word : s.toLowerCase().split("\\s+")) {
+				if (TrigramIndex.similarity(text, word, minSimilarity) > minSimilarity) {
+					matched.add(s);
+					break;
+				}
+			}
+		}
+		return matched;
+	}
 }
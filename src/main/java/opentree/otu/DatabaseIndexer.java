@@ -1,5 +1,9 @@
 package opentree.otu;
 
+import java.lang.reflect.Array;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 import opentree.otu.constants.OTUConstants;
 import opentree.otu.constants.NodeProperty;
 import opentree.otu.constants.RelType;
@@ -26,14 +30,19 @@ public class DatabaseIndexer extends DatabaseAbstractBase {
 	public final Index<Node> sourceMetaNodesBySourceId = getNodeIndex(NodeIndexDescription.SOURCE_METADATA_NODES_BY_SOURCE_ID);
 	public final Index<Node> sourceMetaNodesByOtherProperty = getNodeIndex(NodeIndexDescription.SOURCE_METADATA_NODES_BY_OTHER_PROPERTY);
 	
+	// the in-memory index of the taxonomic indexes, kept in step with them
+	private final TaxonSearchIndex taxonSearchIndex;
+	
 	// ===== constructors
 	
 	public DatabaseIndexer(GraphDatabaseAgent gdba) {
 		super(gdba);
+		taxonSearchIndex = TaxonSearchIndex.getInstance(gdba.getGraphDatabaseService());
 	}
 	
 	public DatabaseIndexer(GraphDatabaseService gdbs) {
 		super(gdbs);
+		taxonSearchIndex = TaxonSearchIndex.getInstance(gdbs);
 	}
 
 	// ===== indexing source metadata nodes
@@ -47,9 +56,26 @@ public class DatabaseIndexer extends DatabaseAbstractBase {
 	 * @param property
 	 */
 	public void addSourceMetaNodeToIndexes(Node sourceMetaNode) {
+		addSourceMetaNodeToSourceIdIndex(sourceMetaNode);
+		addSourceMetaNodeToPropertyIndexes(sourceMetaNode);
+	}
+
+	/**
+	 * Add the source metadata node to the index by source id only. Used for sources whose import has not finished, so
+	 * that they can be found again without being searchable.
+	 * @param sourceMetaNode
+	 */
+	public void addSourceMetaNodeToSourceIdIndex(Node sourceMetaNode) {
 		sourceMetaNodesBySourceId.add(sourceMetaNode,
 				(String) sourceMetaNode.getProperty(NodeProperty.LOCATION.name)+OTUConstants.SOURCE_ID,
 				sourceMetaNode.getProperty(NodeProperty.SOURCE_ID.name));
+	}
+
+	/**
+	 * Add the source metadata node to the indexes of its searchable properties.
+	 * @param sourceMetaNode
+	 */
+	public void addSourceMetaNodeToPropertyIndexes(Node sourceMetaNode) {
 		indexNodeBySearchableProperties(sourceMetaNode, OTUConstants.SOURCE_PROPERTIES_FOR_SIMPLE_INDEXING);
 	}
 
@@ -85,6 +111,7 @@ public class DatabaseIndexer extends DatabaseAbstractBase {
 
 		// add to taxonomy indexes
 		addTreeToTaxonomicIndexes(treeRootNode);
+		taxonSearchIndex.treeRootChanged(treeRootNode);
 	}
 	
 	/**
@@ -96,40 +123,51 @@ public class DatabaseIndexer extends DatabaseAbstractBase {
 		treeRootNodesByTreeId.remove(treeRootNode);
 		treeRootNodesBySourceId.remove(treeRootNode);
 		treeRootNodesByOtherProperty.remove(treeRootNode);
-		treeRootNodesByMappedTaxonName.remove(treeRootNode);
-		treeRootNodesByMappedTaxonNameNoSpaces.remove(treeRootNode);
-		treeRootNodesByMappedTaxonOTTId.remove(treeRootNode);
+		removeTreeFromTaxonomicIndexes(treeRootNode);
+		taxonSearchIndex.treeRootChanged(treeRootNode);
 	}
 	
 	// === private methods used during tree root indexing
 	
 	/**
-	 * Add the tree to the taxonomic indexes
+	 * Add the tree to the taxonomic indexes. Each index gets a single write per tree containing all the distinct
+	 * descendant values, rather than one write per tip.
 	 * @param treeRootNode
 	 */
 	private void addTreeToTaxonomicIndexes(Node root) {
 		
-		addStringArrayEntriesToIndex(root,
+		addArrayEntriesToIndex(root,
 				treeRootNodesByOriginalTaxonName,
 				NodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.name,
 				NodeProperty.OT_ORIGINAL_LABEL.name);
 
-		addStringArrayEntriesToIndex(root,
+		addArrayEntriesToIndex(root,
 				treeRootNodesByMappedTaxonName,
 				NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.name,
 				NodeProperty.NAME.name);
 		
-		addStringArrayEntriesToIndex(root,
+		addArrayEntriesToIndex(root,
 				treeRootNodesByMappedTaxonNameNoSpaces,
 				NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES_WHITESPACE_FILLED.name,
 				NodeProperty.NAME.name);
 		
-		addLongArrayEntriesToIndex(root,
+		addArrayEntriesToIndex(root,
 				treeRootNodesByMappedTaxonOTTId,
 				NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.name,
 				NodeProperty.OT_OTT_ID.name);
 	}
 	
+	/**
+	 * Remove the tree from all the indexes written by addTreeToTaxonomicIndexes.
+	 * @param root
+	 */
+	private void removeTreeFromTaxonomicIndexes(Node root) {
+		treeRootNodesByOriginalTaxonName.remove(root);
+		treeRootNodesByMappedTaxonName.remove(root);
+		treeRootNodesByMappedTaxonNameNoSpaces.remove(root);
+		treeRootNodesByMappedTaxonOTTId.remove(root);
+	}
+	
 	// ===== generalized private methods used during indexing
 
 	/**
@@ -146,21 +184,30 @@ public class DatabaseIndexer extends DatabaseAbstractBase {
 		}
 	}
 	
-	private void addStringArrayEntriesToIndex(Node node, Index<Node> index, String nodePropertyName, String indexProperty) {
+	/**
+	 * Index the node under each distinct element of an array property, in a single index write.
+	 */
+	private void addArrayEntriesToIndex(Node node, Index<Node> index, String nodePropertyName, String indexProperty) {
 		if (node.hasProperty(nodePropertyName)) {
-			String[] array = (String[]) node.getProperty(nodePropertyName);
-			for (int i = 0; i < array.length; i++) {
-				index.add(node, indexProperty, array[i]);
+			Object[] values = distinctValues(node.getProperty(nodePropertyName));
+			if (values.length > 0) {
+				index.add(node, indexProperty, values);
 			}
 		}
 	}
 
-	private void addLongArrayEntriesToIndex(Node node, Index<Node> index, String nodePropertyName, String indexProperty) {
-		if (node.hasProperty(nodePropertyName)) {
-			long[] array = (long[]) node.getProperty(nodePropertyName);
-			for (int i = 0; i < array.length; i++) {
-				index.add(node, indexProperty, array[i]);
-			}
+	/**
+	 * Return the distinct elements of an array (of objects or primitives), in the order they first appear. Trees often
+	 * contain the same taxon more than once, and there is no need to index it more than once.
+	 * @param array
+	 * @return
+	 */
+	static Object[] distinctValues(Object array) {
+		int length = Array.getLength(array);
+		Set<Object> values = new LinkedHashSet<Object>(length * 2);
+		for (int i = 0; i < length; i++) {
+			values.add(Array.get(array, i));
 		}
+		return values.toArray();
 	}
 }
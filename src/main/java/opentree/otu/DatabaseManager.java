@@ -1,12 +1,16 @@
 package opentree.otu;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
+import jade.MessageLogger;
 import jade.tree.JadeNode;
 import jade.tree.JadeTree;
 import jade.tree.NexsonSource;
@@ -22,6 +26,7 @@ import opentree.otu.exceptions.NoSuchTreeException;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.index.Index;
@@ -31,14 +36,24 @@ import org.neo4j.kernel.Traversal;
 
 public class DatabaseManager extends DatabaseAbstractBase {
 
+	// the number of tree nodes written or deleted per transaction by chunked imports and rollbacks, unless specified
+	public static final int DEFAULT_COMMIT_INTERVAL = 10000;
+
 	private DatabaseIndexer indexer;
 	private DatabaseBrowser browser;
 	
 	private HashSet<String> knownRemotes;
-	private Node lastObservedIngroupStartNode = null;
+	private MessageLogger msgLogger = null;
+	private ImportProgressListener progressListener = null;
 	
 	protected Index<Node> sourceMetaNodesBySourceId = getNodeIndex(NodeIndexDescription.SOURCE_METADATA_NODES_BY_SOURCE_ID);
 	protected Index<Node> treeRootNodesByTreeId = getNodeIndex(NodeIndexDescription.TREE_ROOT_NODES_BY_TREE_ID);
+	
+	// a new generation is started after every write, so that no cached search results from before it are used
+	private final SearchResultCache searchCache = SearchResultCache.getInstance(graphDb.getGraphDatabaseService());
+
+	// cached tree snapshots are invalidated after every write that changes their trees
+	private final TreeSnapshotCache snapshotCache = TreeSnapshotCache.getInstance(graphDb.getGraphDatabaseService());
 
 	// ===== constructors
 
@@ -80,6 +95,22 @@ public class DatabaseManager extends DatabaseAbstractBase {
 
 	// ========== public methods
 	
+	/**
+	 * Set a logger to receive per-tree timing information when trees are added. Pass null to turn logging off.
+	 * @param msgLogger
+	 */
+	public void setMessageLogger(MessageLogger msgLogger) {
+		this.msgLogger = msgLogger;
+	}
+	
+	/**
+	 * Set a listener to be notified as tree nodes are written and trees are added. Pass null to remove the listener.
+	 * @param progressListener
+	 */
+	public void setProgressListener(ImportProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+	
 	// ===== adding sources and trees
 	
 	/**
@@ -121,97 +152,178 @@ public class DatabaseManager extends DatabaseAbstractBase {
 	 * @throws DuplicateSourceException 
 	 */
 	public Node addSource(NexsonSource source, String location, boolean overwrite) throws DuplicateSourceException {
+		return addSource(source, location, overwrite, 0);
+	}
+
+	/**
+	 * Install a study into the db, including loading all included trees, committing the import in chunks. This keeps
+	 * the transaction state bounded for very large trees. If the import fails partway through, the source metadata node
+	 * is left in the graph flagged as in progress, and the import can be continued with resumeSourceImport or removed
+	 * with rollbackSourceImport.
+	 * 
+	 * Sources whose import is in progress are indexed by source id so that they can be found again, but are not listed by
+	 * DatabaseBrowser.getSourceIds and their properties are not indexed for searching until the import has finished.
+	 * Each tree is indexed as soon as it has been completely written, so trees that have finished are searchable.
+	 * 
+	 * Chunked imports commit their own transactions, so this method must not be called from within an open transaction.
+	 * 
+	 * @param source
+	 * 		A NexsonSource object that contains the source metadata and trees.
+	 * 
+	 * @param location
+	 * 		Used to indicate remote vs local studies. See addSource(NexsonSource, String).
+	 * 
+	 * @param overwrite
+	 * 		Pass a value of true to cause any preexisting studies with this location and source id to be deleted and replaced
+	 * 		by this source. Otherwise the method will throw an exception if there are preexisting studies.
+	 * 
+	 * @param commitInterval
+	 * 		The number of tree nodes to write per transaction. Values less than 1 cause the entire source to be imported in
+	 * 		a single transaction.
+	 * 
+	 * @return
+	 * 		The source metadata node for the newly added study
+	 * @throws DuplicateSourceException 
+	 */
+	public Node addSource(NexsonSource source, String location, boolean overwrite, int commitInterval) throws DuplicateSourceException {
 		
 		// TODO: return meaningful information about the result to the rest query that calls this method
 
 		Node sourceMeta = null;
 		
-		Transaction tx = graphDb.beginTx();
-		try {
-			
-			String sourceId = source.getId();
-
-			// don't add a study if it already exists, unless overwriting is turned on
-			String property = location + OTUConstants.SOURCE_ID;
-			sourceMeta = DatabaseUtils.getSingleNodeIndexHit(sourceMetaNodesBySourceId, property, sourceId);
-			if (sourceMeta != null) {
-				if (overwrite) {
-					deleteSource(sourceMeta);
-				} else {
-					throw new DuplicateSourceException("Attempt to add a source with the same source id as an "
-							+ "existing local source. This would require merging, but merging is not (yet?) supported.");
-				}
-			}
-			
-			// create the source
-			sourceMeta = graphDb.createNode();
-			sourceMeta.setProperty(NodeProperty.LOCATION.name, location);
-			sourceMeta.setProperty(NodeProperty.SOURCE_ID.name, sourceId);
-			
-			// set source properties
-			setNodePropertiesFromMap(sourceMeta, source.getProperties());
+		if (commitInterval < 1) {
+			Transaction tx = graphDb.beginTx();
+			try {
+				sourceMeta = createSourceMetaNode(source, location, overwrite);
 
-			// add the trees
-			boolean noValidTrees = true;
-			int i = 0;
-			Iterator<JadeTree> treesIter = source.getTrees().iterator();
-			while (treesIter.hasNext()) {
+				// add the trees
+				int i = 0;
+				Iterator<JadeTree> treesIter = source.getTrees().iterator();
+				while (treesIter.hasNext()) {
 
-				JadeTree tree = treesIter.next();
+					JadeTree tree = treesIter.next();
 
-				// TODO: sometimes the nexson reader returns null trees. this is a hack to deal with that.
-				// really we should fix the nexson reader so it doesn't return null trees
-				if (tree == null) {
-					continue;
-				} else if (noValidTrees == true) {
-					noValidTrees = false;
-				}
+					// TODO: sometimes the nexson reader returns null trees. this is a hack to deal with that.
+					// really we should fix the nexson reader so it doesn't return null trees
+					if (tree == null) {
+						continue;
+					}
 
-				// get the tree id from the nexson if there is one or create an arbitrary one if not
-				String treeIdSuffix = (String) tree.getObject("id");
-				if (treeIdSuffix ==  null) {
-					treeIdSuffix = OTUConstants.LOCAL_TREEID_PREFIX + /* .value + */ String.valueOf(i);
+					addTree(tree, makeTreeId(source.getId(), tree, i), sourceMeta);
+					i++;
 				}
-				
-				// create a unique tree id by including the study id, this is the convention from treemachine
-				String treeId = sourceId + "_" + treeIdSuffix;
 
-				// add the tree
-				addTree(tree, treeId, sourceMeta);
+				connectToOtherLocations(sourceMeta);
+				indexer.addSourceMetaNodeToIndexes(sourceMeta);
+				
+				tx.success();
+			} finally {
+				tx.finish();
+				searchCache.newGeneration();
+			}
 
-				i++;
+		} else {
+			
+			// create and index the source first so an interrupted import can be found again
+			Transaction tx = graphDb.beginTx();
+			try {
+				sourceMeta = createSourceMetaNode(source, location, overwrite);
+				sourceMeta.setProperty(NodeProperty.IMPORT_IN_PROGRESS.name, true);
+				sourceMeta.setProperty(NodeProperty.IMPORT_TREES_COMPLETED.name, 0);
+				sourceMeta.setProperty(NodeProperty.IMPORT_CURRENT_TREE_NODES.name, (long) 0);
+				indexer.addSourceMetaNodeToSourceIdIndex(sourceMeta);
+				tx.success();
+			} finally {
+				tx.finish();
+				searchCache.newGeneration();
 			}
 			
-			if (location == LOCAL_LOCATION) { // if this is a local study then attach it to any existing remotes
-				for (Node sourceMetaHit : browser.getRemoteSourceMetaNodesForSourceId(sourceId)) {
-					if (sourceMetaHit.getProperty(NodeProperty.LOCATION.name).equals(LOCAL_LOCATION) == false) {
-						sourceMeta.createRelationshipTo(sourceMetaHit, RelType.LOCALCOPYOF);
-					}
-				}
+			importTreesChunked(source, sourceMeta, commitInterval);
+		}
+		
+		return sourceMeta;
+	}
+	
+	/**
+	 * Continue a chunked import that was interrupted. Trees that were completely written are skipped, and any partially
+	 * written tree is removed and written again. The source must contain the same trees as it did for the original import.
+	 * 
+	 * @param source
+	 * 		The source whose import was interrupted
+	 * @param location
+	 * 		The location that was used for the original import
+	 * @param commitInterval
+	 * 		The number of tree nodes to write (and to delete, when removing a partially written tree) per transaction
+	 * @return
+	 * 		The source metadata node
+	 */
+	public Node resumeSourceImport(NexsonSource source, String location, int commitInterval) {
 
-			} else { // remote study
+		Node sourceMeta = DatabaseUtils.getSingleNodeIndexHit(sourceMetaNodesBySourceId, location + OTUConstants.SOURCE_ID, source.getId());
+		if (sourceMeta == null || !isImportInProgress(sourceMeta)) {
+			throw new IllegalStateException("There is no interrupted import for the source " + source.getId() + " at location " + location);
+		}
 
-				// check if there is a local study to attach this remote one to
-				Node localSourceMeta = DatabaseUtils.getSingleNodeIndexHit(sourceMetaNodesBySourceId, LOCAL_LOCATION + OTUConstants.SOURCE_ID, sourceId);
-				if (localSourceMeta != null) {
-					localSourceMeta.createRelationshipTo(sourceMeta, RelType.LOCALCOPYOF);
-				}
-				
-				// add the remote location if necessary
-				if (!knownRemotes.contains(location)) {
-					addKnownRemote(location);
-				}
+		commitInterval = Math.max(commitInterval, 1);
+
+		// remove any partially written trees
+		for (Node root : getTreeRootNodes(sourceMeta)) {
+			if (isImportInProgress(root)) {
+				deleteTreeChunked(root, commitInterval);
 			}
-		
-			indexer.addSourceMetaNodeToIndexes(sourceMeta);
-			
+		}
+		Transaction tx = graphDb.beginTx();
+		try {
+			sourceMeta.setProperty(NodeProperty.IMPORT_CURRENT_TREE_NODES.name, (long) 0);
 			tx.success();
 		} finally {
 			tx.finish();
 		}
+
+		importTreesChunked(source, sourceMeta, commitInterval);
 		
 		return sourceMeta;
 	}
+
+	/**
+	 * Remove an interrupted chunked import from the graph, including any trees that it had written. The trees are deleted
+	 * in transactions of DEFAULT_COMMIT_INTERVAL nodes.
+	 * 
+	 * @param sourceMeta
+	 * 		The source metadata node for the interrupted import
+	 */
+	public void rollbackSourceImport(Node sourceMeta) {
+		rollbackSourceImport(sourceMeta, DEFAULT_COMMIT_INTERVAL);
+	}
+
+	/**
+	 * Remove an interrupted chunked import from the graph, including any trees that it had written. If the rollback is
+	 * itself interrupted, the source is still flagged as in progress and the rollback can be run again.
+	 * 
+	 * @param sourceMeta
+	 * 		The source metadata node for the interrupted import
+	 * @param commitInterval
+	 * 		The number of tree nodes to delete per transaction
+	 */
+	public void rollbackSourceImport(Node sourceMeta, int commitInterval) {
+		if (!isImportInProgress(sourceMeta)) {
+			throw new IllegalStateException("The source " + sourceMeta.getProperty(NodeProperty.SOURCE_ID.name) + " is not being imported.");
+		}
+		for (Node root : getTreeRootNodes(sourceMeta)) {
+			deleteTreeChunked(root, Math.max(commitInterval, 1));
+		}
+		deleteSource(sourceMeta);
+	}
+	
+	/**
+	 * Whether the node is the source metadata node or tree root of a chunked import that has not finished.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public static boolean isImportInProgress(Node node) {
+		return node.hasProperty(NodeProperty.IMPORT_IN_PROGRESS.name);
+	}
 	
 	/**
 	 * Adds a tree in a JadeTree format into the database under the specified study.
@@ -229,43 +341,33 @@ public class DatabaseManager extends DatabaseAbstractBase {
 
 		// get the location from the source meta node
 		String location = (String) sourceMetaNode.getProperty(NodeProperty.LOCATION.name);
-		String sourceId = (String) sourceMetaNode.getProperty(NodeProperty.SOURCE_ID.name);
 
 		// add the tree to the graph; only add tree structure if this is a local tree
 		Node root = null;
 		if (location.equals(LOCAL_LOCATION)) {
-			root = preorderAddTreeToDB(tree.getRoot(), null);
-			// designate the ingroup if we found one, and then reset the variable!
-			if (lastObservedIngroupStartNode != null) {
-				designateIngroup(lastObservedIngroupStartNode);
-				lastObservedIngroupStartNode = null;
-			}
+			root = preorderAddTreeToDB(tree, treeId, null);
 		} else {
 			root = graphDb.createNode();
 		}
 
 		// attach to source and set the id information
 		sourceMetaNode.createRelationshipTo(root, RelType.METADATAFOR);
-		root.setProperty(NodeProperty.LOCATION.name, location);
-		root.setProperty(NodeProperty.SOURCE_ID.name, sourceId);
 		
 		// designate the root as the ingroup this is specified in the tree properties (e.g. from a nexson)
 //		if (tree.getRoot().getObject(NodeProperty.IS_INGROUP.name) != null) {
 //			designateIngroup(root);
 //		}
 
-		// add node properties
-		root.setProperty(NodeProperty.TREE_ID.name, treeId);
-		root.setProperty(NodeProperty.IS_ROOT.name, true);
-		setNodePropertiesFromMap(root, tree.getAssoc());
-
-		collectTipTaxonArrayProperties(root, tree);
-
+		setTreeRootProperties(root, tree, treeId, sourceMetaNode);
 		indexer.addTreeRootNodeToIndexes(root);
 		
+		if (progressListener != null) {
+			progressListener.treeAdded(treeId);
+		}
+		
 		return root;
 	}
-	
+
 	// ===== delete methods
 
 	/**
@@ -303,6 +405,8 @@ public class DatabaseManager extends DatabaseAbstractBase {
 
 		} finally {
 			tx.finish();
+			searchCache.newGeneration();
+			snapshotCache.invalidate(root.getId());
 		}
 	}
 
@@ -313,6 +417,7 @@ public class DatabaseManager extends DatabaseAbstractBase {
 	 */
 	public void deleteSource(Node sourceMeta) {
 		
+		List<Long> deletedRootIds = new LinkedList<Long>();
 		Transaction tx = graphDb.beginTx();
 		try {
 
@@ -321,6 +426,7 @@ public class DatabaseManager extends DatabaseAbstractBase {
 
 			// remove all trees
 			for (Relationship rel : sourceMeta.getRelationships(RelType.METADATAFOR, Direction.OUTGOING)) {
+				deletedRootIds.add(rel.getEndNode().getId());
 				deleteTree(rel.getEndNode()); // will also remove the METADATAFOR rels pointing at this metadata node
 			}
 
@@ -336,6 +442,8 @@ public class DatabaseManager extends DatabaseAbstractBase {
 			
 		} finally {
 			tx.finish();
+			searchCache.newGeneration();
+			invalidateSnapshots(deletedRootIds);
 		}
 	}
 	
@@ -349,6 +457,7 @@ public class DatabaseManager extends DatabaseAbstractBase {
 	 */
 	public void setProperties(Node node, String[] keys, String[] values, String[] types) {
 		
+		Node root = DatabaseUtils.getRootOfTreeContaining(node);
 		Transaction tx = graphDb.beginTx();
 		try {
 
@@ -372,11 +481,14 @@ public class DatabaseManager extends DatabaseAbstractBase {
 			throw new IllegalArgumentException("All the input arrays must be the same length.");
 		} finally {
 			tx.finish();
+			searchCache.newGeneration();
+			snapshotCache.invalidate(root.getId());
 		}
 	}
 	
 	/**
-	 * Reroot the tree containing the `newroot` node on that node. Returns the root node of the rerooted tree.
+	 * Reroot the tree containing the `newroot` node on that node. Returns the root node of the rerooted tree. The
+	 * designated ingroup is kept if its tips are still a clade after rerooting, and cleared otherwise.
 	 * @param newroot
 	 * @return
 	 */
@@ -386,13 +498,14 @@ public class DatabaseManager extends DatabaseAbstractBase {
 		Node oldRoot = DatabaseUtils.getRootOfTreeContaining(newroot);
 		
 		// not rerooting
-		if (oldRoot == newroot) {
+		if (oldRoot.equals(newroot)) {
 			Transaction tx1 = graphDb.beginTx();
 			try {
 				oldRoot.setProperty(NodeProperty.ROOTING_IS_SET.name, true);
 				tx1.success();
 			} finally {
 				tx1.finish();
+				searchCache.newGeneration();
 			}
 			return oldRoot;
 		}
@@ -401,6 +514,9 @@ public class DatabaseManager extends DatabaseAbstractBase {
 		treeID = (String) oldRoot.getProperty(NodeProperty.TREE_ID.name);
 		Transaction tx = graphDb.beginTx();
 		try {
+			// the ingroup start node may be sunk or have its subtree changed below, so the ingroup is recorded by its tips
+			Set<Long> ingroupTipIds = getIngroupTipIds(oldRoot);
+
 			// tritomy the root
 			int oldrootchildcount = DatabaseUtils.getNumberOfRelationships(oldRoot, RelType.CHILDOF, Direction.INCOMING);
 					
@@ -421,7 +537,7 @@ public class DatabaseManager extends DatabaseAbstractBase {
 			actualRoot.createRelationshipTo(tempParent, RelType.CHILDOF);
 			nrprel.delete();
 			newroot.createRelationshipTo(actualRoot, RelType.CHILDOF);
-			processRerootRecursive(actualRoot);
+			processReroot(actualRoot);
 
 			// switch the METADATAFOR relationship to the new root node
 			Relationship prevStudyToTreeRootLinkRel = oldRoot.getSingleRelationship(RelType.METADATAFOR, Direction.INCOMING);
@@ -435,6 +551,24 @@ public class DatabaseManager extends DatabaseAbstractBase {
 			// clean up properties
 			DatabaseUtils.exchangeAllProperties(oldRoot, actualRoot); // TODO: are there properties we don't want to exchange?
 			
+			// only the nodes on the path from the old root up to the new one have different children now, so their
+			// subtree sizes are updated from the bottom up. this also covers the children moved to the old root by tritomyRoot
+			Node pathNode = oldRoot;
+			while (true) {
+				DatabaseUtils.updateSubtreeSizes(pathNode);
+				if (pathNode.equals(actualRoot)) {
+					break;
+				}
+				pathNode = pathNode.getSingleRelationship(RelType.CHILDOF, Direction.OUTGOING).getEndNode();
+			}
+			
+			// the preorder positions of all the nodes change with the root, so the whole tree is relabeled
+			DatabaseUtils.setIntervalLabels(actualRoot);
+			
+			if (ingroupTipIds != null) {
+				resetIngroup(actualRoot, ingroupTipIds);
+			}
+			
 			// update indexes
 			indexer.removeTreeRootNodeFromIndexes(oldRoot);
 			indexer.addTreeRootNodeToIndexes(actualRoot);
@@ -442,13 +576,16 @@ public class DatabaseManager extends DatabaseAbstractBase {
 			tx.success();
 		} finally {
 			tx.finish();
+			searchCache.newGeneration();
+			snapshotCache.invalidate(oldRoot.getId());
 		}
 		
 		return actualRoot;
 	}
 	
 	/**
-	 * Set the ingroup for the tree containing `innode` to `innode`.
+	 * Set the ingroup for the tree containing `innode` to `innode`. Only the tree root is changed; whether a node is in the
+	 * ingroup is determined from the ingroup start node recorded on the root (see DatabaseUtils.isWithinIngroup).
 	 * @param innode
 	 */
 	public void designateIngroup(Node innode) {
@@ -456,30 +593,401 @@ public class DatabaseManager extends DatabaseAbstractBase {
 		// first get the root of the old tree
 		Node root = DatabaseUtils.getRootOfTreeContaining(innode);
 
-		TraversalDescription CHILDOF_TRAVERSAL = Traversal.description().relationships(RelType.CHILDOF, Direction.INCOMING);
 		Transaction tx = graphDb.beginTx();
 		try {
-			root.setProperty(NodeProperty.INGROUP_IS_SET.name, true);
-			if (root != innode) {
-				for (Node node : CHILDOF_TRAVERSAL.breadthFirst().traverse(root).nodes()) {
-					if (node.hasProperty(NodeProperty.IS_WITHIN_INGROUP.name))
-						node.removeProperty(NodeProperty.IS_WITHIN_INGROUP.name);
-				}
-			}
-			innode.setProperty(NodeProperty.IS_WITHIN_INGROUP.name, true);
-			for (Node node : CHILDOF_TRAVERSAL.breadthFirst().traverse(innode).nodes()) {
-				node.setProperty(NodeProperty.IS_WITHIN_INGROUP.name, true);
-			}
 			root.setProperty(NodeProperty.INGROUP_IS_SET.name, true);
 			root.setProperty(NodeProperty.INGROUP_START_NODE_ID.name, innode.getId());
 			tx.success();
 		} finally {
 			tx.finish();
+			snapshotCache.invalidate(root.getId());
 		}		
 	}
 	
 	// ========== private methods
 	
+	/**
+	 * Get the ids of the tips in the designated ingroup of a tree. Must be called within a transaction.
+	 * @param root
+	 * @return
+	 * 		the tip ids, or null if the tree has no ingroup or its ingroup start node no longer exists
+	 */
+	private Set<Long> getIngroupTipIds(Node root) {
+		Object ingroupStartId = root.getProperty(NodeProperty.INGROUP_START_NODE_ID.name, null);
+		if (!(ingroupStartId instanceof Long)) {
+			return null;
+		}
+		Node ingroupStart;
+		try {
+			ingroupStart = graphDb.getNodeById((Long) ingroupStartId);
+		} catch (NotFoundException ex) {
+			return null;
+		}
+		return getTipIds(ingroupStart);
+	}
+	
+	/**
+	 * Set the ingroup start node of a rerooted tree to the node whose subtree has exactly the tips that were in the
+	 * ingroup before, or clear the ingroup if those tips are no longer a clade (e.g. when the tree was rerooted within the
+	 * ingroup). Must be called within a transaction, after the interval labels of the tree have been set.
+	 * @param root
+	 * @param ingroupTipIds
+	 */
+	private void resetIngroup(Node root, Set<Long> ingroupTipIds) {
+		
+		// the mrca of the tips is the mrca of the first and last of them in preorder
+		Node first = null;
+		Node last = null;
+		for (long tipId : ingroupTipIds) {
+			Node tip = graphDb.getNodeById(tipId);
+			int position = (Integer) tip.getProperty(NodeProperty.PREORDER_INDEX.name);
+			if (first == null || position < (Integer) first.getProperty(NodeProperty.PREORDER_INDEX.name)) {
+				first = tip;
+			}
+			if (last == null || position > (Integer) last.getProperty(NodeProperty.PREORDER_INDEX.name)) {
+				last = tip;
+			}
+		}
+		Node mrca = first;
+		while (!DatabaseUtils.isInSubtree(last, mrca)) {
+			mrca = mrca.getSingleRelationship(RelType.CHILDOF, Direction.OUTGOING).getEndNode();
+		}
+		
+		if (getTipIds(mrca).equals(ingroupTipIds)) {
+			root.setProperty(NodeProperty.INGROUP_IS_SET.name, true);
+			root.setProperty(NodeProperty.INGROUP_START_NODE_ID.name, mrca.getId());
+		} else {
+			root.removeProperty(NodeProperty.INGROUP_IS_SET.name);
+			root.removeProperty(NodeProperty.INGROUP_START_NODE_ID.name);
+		}
+	}
+	
+	/**
+	 * Get the ids of the tips in the subtree below a node.
+	 * @param node
+	 * @return
+	 */
+	private static Set<Long> getTipIds(Node node) {
+		Set<Long> tipIds = new HashSet<Long>();
+		LinkedList<Node> stack = new LinkedList<Node>();
+		stack.push(node);
+		while (!stack.isEmpty()) {
+			Node cur = stack.pop();
+			boolean isTip = true;
+			for (Relationship rel : cur.getRelationships(RelType.CHILDOF, Direction.INCOMING)) {
+				stack.push(rel.getStartNode());
+				isTip = false;
+			}
+			if (isTip) {
+				tipIds.add(cur.getId());
+			}
+		}
+		return tipIds;
+	}
+	
+	/**
+	 * Get the root nodes of the trees of a source.
+	 * @param sourceMeta
+	 * @return
+	 */
+	private List<Node> getTreeRootNodes(Node sourceMeta) {
+		List<Node> roots = new LinkedList<Node>();
+		for (Relationship rel : sourceMeta.getRelationships(RelType.METADATAFOR, Direction.OUTGOING)) {
+			roots.add(rel.getEndNode());
+		}
+		return roots;
+	}
+	
+	/**
+	 * Delete a tree in transactions of `commitInterval` nodes, so that removing a very large (or partially imported) tree
+	 * does not need a single large transaction. The tree is first removed from the indexes, and its nodes are then deleted
+	 * children before parents with the root last, so if this is interrupted the rest of the tree is still attached to its
+	 * source and can be deleted again.
+	 * @param root
+	 * @param commitInterval
+	 */
+	private void deleteTreeChunked(Node root, int commitInterval) {
+
+		// collect the tree nodes in breadth first order
+		List<Long> nodeIds = new ArrayList<Long>();
+		TraversalDescription CHILDOF_TRAVERSAL = Traversal.description().relationships(RelType.CHILDOF, Direction.INCOMING);
+		for (Node curGraphNode : CHILDOF_TRAVERSAL.breadthFirst().traverse(root).nodes()) {
+			nodeIds.add(curGraphNode.getId());
+		}
+
+		Transaction tx = graphDb.beginTx();
+		try {
+			// trees are only indexed once they have been completely written
+			if (!isImportInProgress(root)) {
+				indexer.removeTreeRootNodeFromIndexes(root);
+			}
+
+			int inTx = 0;
+			for (int i = nodeIds.size() - 1; i >= 0; i--) {
+				Node nd = graphDb.getNodeById(nodeIds.get(i));
+				for (Relationship rel : nd.getRelationships()) {
+					rel.delete();
+				}
+				nd.delete();
+
+				if (++inTx >= commitInterval) {
+					tx.success();
+					tx.finish();
+					tx = graphDb.beginTx();
+					inTx = 0;
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+			searchCache.newGeneration();
+			snapshotCache.invalidate(root.getId());
+		}
+	}
+	
+	private void invalidateSnapshots(List<Long> rootIds) {
+		for (long rootId : rootIds) {
+			snapshotCache.invalidate(rootId);
+		}
+	}
+	
+	/**
+	 * Create the metadata node for a source, replacing any existing source with the same id and location if `overwrite`
+	 * is true. Must be called within a transaction.
+	 * @param source
+	 * @param location
+	 * @param overwrite
+	 * @return
+	 * @throws DuplicateSourceException
+	 */
+	private Node createSourceMetaNode(NexsonSource source, String location, boolean overwrite) throws DuplicateSourceException {
+
+		String sourceId = source.getId();
+
+		// don't add a study if it already exists, unless overwriting is turned on
+		String property = location + OTUConstants.SOURCE_ID;
+		Node sourceMeta = DatabaseUtils.getSingleNodeIndexHit(sourceMetaNodesBySourceId, property, sourceId);
+		if (sourceMeta != null) {
+			if (overwrite) {
+				deleteSource(sourceMeta);
+			} else {
+				throw new DuplicateSourceException("Attempt to add a source with the same source id as an "
+						+ "existing local source. This would require merging, but merging is not (yet?) supported.");
+			}
+		}
+		
+		// create the source
+		sourceMeta = graphDb.createNode();
+		sourceMeta.setProperty(NodeProperty.LOCATION.name, location);
+		sourceMeta.setProperty(NodeProperty.SOURCE_ID.name, sourceId);
+		
+		// set source properties
+		setNodePropertiesFromMap(sourceMeta, source.getProperties());
+		
+		return sourceMeta;
+	}
+	
+	/**
+	 * Get the id for the `i`th tree of a source. Uses the tree id from the nexson if there is one or creates an arbitrary
+	 * one if not, and includes the source id to make it unique. This is the convention from treemachine.
+	 * @param sourceId
+	 * @param tree
+	 * @param i
+	 * @return
+	 */
+	private static String makeTreeId(String sourceId, JadeTree tree, int i) {
+		String treeIdSuffix = (String) tree.getObject("id");
+		if (treeIdSuffix ==  null) {
+			treeIdSuffix = OTUConstants.LOCAL_TREEID_PREFIX + /* .value + */ String.valueOf(i);
+		}
+		return sourceId + "_" + treeIdSuffix;
+	}
+	
+	/**
+	 * Attach a source to copies of the same source at other locations, and record its location if it is a new remote.
+	 * Must be called within a transaction.
+	 * @param sourceMeta
+	 */
+	private void connectToOtherLocations(Node sourceMeta) {
+
+		String location = (String) sourceMeta.getProperty(NodeProperty.LOCATION.name);
+		String sourceId = (String) sourceMeta.getProperty(NodeProperty.SOURCE_ID.name);
+
+		if (location.equals(LOCAL_LOCATION)) { // if this is a local study then attach it to any existing remotes
+			for (Node sourceMetaHit : browser.getRemoteSourceMetaNodesForSourceId(sourceId)) {
+				if (sourceMetaHit.getProperty(NodeProperty.LOCATION.name).equals(LOCAL_LOCATION) == false) {
+					sourceMeta.createRelationshipTo(sourceMetaHit, RelType.LOCALCOPYOF);
+				}
+			}
+
+		} else { // remote study
+
+			// check if there is a local study to attach this remote one to
+			Node localSourceMeta = DatabaseUtils.getSingleNodeIndexHit(sourceMetaNodesBySourceId, LOCAL_LOCATION + OTUConstants.SOURCE_ID, sourceId);
+			if (localSourceMeta != null) {
+				localSourceMeta.createRelationshipTo(sourceMeta, RelType.LOCALCOPYOF);
+			}
+			
+			// add the remote location if necessary
+			if (!knownRemotes.contains(location)) {
+				addKnownRemote(location);
+			}
+		}
+	}
+
+	/**
+	 * Set the id information, tree properties, and tip taxon arrays on the root node of a newly added tree.
+	 * @param root
+	 * @param tree
+	 * @param treeId
+	 * @param sourceMetaNode
+	 */
+	private void setTreeRootProperties(Node root, JadeTree tree, String treeId, Node sourceMetaNode) {
+		root.setProperty(NodeProperty.LOCATION.name, sourceMetaNode.getProperty(NodeProperty.LOCATION.name));
+		root.setProperty(NodeProperty.SOURCE_ID.name, sourceMetaNode.getProperty(NodeProperty.SOURCE_ID.name));
+		root.setProperty(NodeProperty.TREE_ID.name, treeId);
+		root.setProperty(NodeProperty.IS_ROOT.name, true);
+		setNodePropertiesFromMap(root, tree.getAssoc());
+
+		collectTipTaxonArrayProperties(root, tree);
+	}
+	
+	/**
+	 * Add the trees of a source whose import is in progress, skipping trees that have already been completed, and then
+	 * finish the import. Each tree is written in transactions of `commitInterval` nodes.
+	 * @param source
+	 * @param sourceMeta
+	 * @param commitInterval
+	 */
+	private void importTreesChunked(NexsonSource source, Node sourceMeta, int commitInterval) {
+		
+		int treesCompleted = (Integer) sourceMeta.getProperty(NodeProperty.IMPORT_TREES_COMPLETED.name);
+
+		int i = 0;
+		for (JadeTree tree : source.getTrees()) {
+			if (tree == null) {
+				continue;
+			}
+			if (i >= treesCompleted) {
+				addTreeChunked(tree, makeTreeId(source.getId(), tree, i), sourceMeta, commitInterval);
+			}
+			i++;
+		}
+		
+		Transaction tx = graphDb.beginTx();
+		try {
+			connectToOtherLocations(sourceMeta);
+			indexer.addSourceMetaNodeToPropertyIndexes(sourceMeta);
+			sourceMeta.removeProperty(NodeProperty.IMPORT_IN_PROGRESS.name);
+			sourceMeta.removeProperty(NodeProperty.IMPORT_TREES_COMPLETED.name);
+			sourceMeta.removeProperty(NodeProperty.IMPORT_CURRENT_TREE_NODES.name);
+			tx.success();
+		} finally {
+			tx.finish();
+			searchCache.newGeneration();
+		}
+	}
+	
+	/**
+	 * Add a tree to a source whose import is in progress, committing every `commitInterval` nodes. The tree root is
+	 * attached to the source as soon as it is created and flagged as in progress until the whole tree has been written,
+	 * so that a partially written tree can always be found and removed. The final transaction sets the root properties,
+	 * indexes the tree, and records the tree as completed on the source.
+	 * @param tree
+	 * @param treeId
+	 * @param sourceMeta
+	 * @param commitInterval
+	 * @return
+	 */
+	private Node addTreeChunked(JadeTree tree, String treeId, Node sourceMeta, int commitInterval) {
+		
+		ImportChunk chunk = new ImportChunk(sourceMeta, treeId, commitInterval);
+		boolean completed = false;
+		Node root = null;
+		try {
+			if (sourceMeta.getProperty(NodeProperty.LOCATION.name).equals(LOCAL_LOCATION)) {
+				root = preorderAddTreeToDB(tree, treeId, chunk);
+			} else {
+				root = graphDb.createNode();
+				chunk.rootCreated(root);
+			}
+
+			setTreeRootProperties(root, tree, treeId, sourceMeta);
+			indexer.addTreeRootNodeToIndexes(root);
+			root.removeProperty(NodeProperty.IMPORT_IN_PROGRESS.name);
+
+			sourceMeta.setProperty(NodeProperty.IMPORT_TREES_COMPLETED.name,
+					(Integer) sourceMeta.getProperty(NodeProperty.IMPORT_TREES_COMPLETED.name) + 1);
+			completed = true;
+
+			if (progressListener != null) {
+				progressListener.treeAdded(treeId);
+			}
+
+		} finally {
+			chunk.finish(completed);
+		}
+		
+		return root;
+	}
+	
+	/**
+	 * Holds the open transaction for a chunked tree import, and commits it whenever enough nodes have been written.
+	 * The number of committed nodes is recorded on the source metadata node with each commit.
+	 */
+	private class ImportChunk {
+		
+		private final Node sourceMeta;
+		private final String treeId;
+		private final int commitInterval;
+		
+		private Transaction tx;
+		private int nodesInChunk = 0;
+		private long nodesWritten = 0;
+		
+		ImportChunk(Node sourceMeta, String treeId, int commitInterval) {
+			this.sourceMeta = sourceMeta;
+			this.treeId = treeId;
+			this.commitInterval = commitInterval;
+			tx = graphDb.beginTx();
+		}
+		
+		/**
+		 * Attach the root to the source and flag it, in the same transaction in which it was created.
+		 */
+		void rootCreated(Node root) {
+			sourceMeta.createRelationshipTo(root, RelType.METADATAFOR);
+			root.setProperty(NodeProperty.IMPORT_IN_PROGRESS.name, true);
+			root.setProperty(NodeProperty.TREE_ID.name, treeId);
+		}
+		
+		/**
+		 * Record a newly written node, committing if the chunk is full.
+		 */
+		void nodeAdded() {
+			nodesWritten++;
+			if (++nodesInChunk >= commitInterval) {
+				sourceMeta.setProperty(NodeProperty.IMPORT_CURRENT_TREE_NODES.name, nodesWritten);
+				tx.success();
+				tx.finish();
+				tx = graphDb.beginTx();
+				nodesInChunk = 0;
+			}
+		}
+		
+		/**
+		 * Commit the last chunk if the tree was completed, or roll it back if not.
+		 */
+		void finish(boolean completed) {
+			if (completed) {
+				sourceMeta.setProperty(NodeProperty.IMPORT_CURRENT_TREE_NODES.name, (long) 0);
+				tx.success();
+			}
+			tx.finish();
+			searchCache.newGeneration();
+		}
+	}
+	
 	/**
 	 * Add a known remote to the graph property for known remotes, which is a primitive string array. We
 	 * could also just add nodes for all remotes and index them
@@ -513,46 +1021,108 @@ public class DatabaseManager extends DatabaseAbstractBase {
 	}
 	
 	/**
-	 * A recursive function used to replicate the tree JadeNode structure below the passed in JadeNode in the graph.
-	 * @param curJadeNode
-	 * @param parentGraphNode
+	 * Replicate the tree JadeNode structure of `tree` in the graph, with the subtree sizes and interval labels of the nodes,
+	 * and designate the ingroup if one is flagged. Nodes are written in preorder from an explicit stack, so arbitrarily
+	 * deep trees can be written without exhausting the thread stack. If `chunk` is not null then each written node is
+	 * reported to it so the import can be committed in chunks.
+	 * @param tree
+	 * @param treeId
+	 * @param chunk
 	 * @return
+	 * 		the root node of the tree in the graph
 	 */
-	private Node preorderAddTreeToDB(JadeNode curJadeNode, Node parentGraphNode) {
+	private Node preorderAddTreeToDB(JadeTree tree, String treeId, ImportChunk chunk) {
+		
+		long startTime = System.currentTimeMillis();
+		long nodeCount = 0;
 
-		Node curGraphNode = graphDb.createNode();
+		Node root = null;
+		Node ingroupStartNode = null;
 
-		// remember the ingroup if we hit one
-		if (curJadeNode.hasAssocObject(NodeProperty.IS_INGROUP_ROOT.name) == true) {
-//			withinIngroup = true;
-			curGraphNode.setProperty(NodeProperty.INGROUP_START_NODE_ID.name, true);
-			lastObservedIngroupStartNode = curGraphNode;
-		}
+		// reused for every node
+		Map<String, Object> properties = new HashMap<String, Object>();
+		Map<JadeNode, int[]> subtreeSizes = getSubtreeSizes(tree.getRoot());
 		
-		// set the ingroup flag if we're within the ingroup
-//		if (withinIngroup) {
-//			curGraphNode.setProperty(NodeProperty.IS_WITHIN_INGROUP.name, true);
-//		}
+		// jade nodes waiting to be written, and the graph nodes for their parents
+		LinkedList<JadeNode> jadeNodes = new LinkedList<JadeNode>();
+		LinkedList<Node> parentGraphNodes = new LinkedList<Node>();
+		jadeNodes.push(tree.getRoot());
+		parentGraphNodes.push(null);
 		
-		// add properties
-		if (curJadeNode.getName() != null) {
-			curGraphNode.setProperty(NodeProperty.NAME.name, curJadeNode.getName());
-			setNodePropertiesFromMap(curGraphNode, curJadeNode.getAssoc()); // why not?
-		}
+		while (!jadeNodes.isEmpty()) {
+			JadeNode curJadeNode = jadeNodes.pop();
+			Node parentGraphNode = parentGraphNodes.pop();
 
-		// TODO: add bl
-		// dbnode.setProperty("bl", innode.getBL());
-		// TODO: add support
-		
-		if (parentGraphNode != null) {
-			curGraphNode.createRelationshipTo(parentGraphNode, RelType.CHILDOF);
+			properties.clear();
+
+			// remember the ingroup if we hit one
+			boolean isIngroupStart = curJadeNode.hasAssocObject(NodeProperty.IS_INGROUP_ROOT.name);
+			if (isIngroupStart) {
+				properties.put(NodeProperty.INGROUP_START_NODE_ID.name, true);
+			}
+			
+			// add properties
+			if (curJadeNode.getName() != null) {
+				properties.put(NodeProperty.NAME.name, curJadeNode.getName());
+				properties.putAll(curJadeNode.getAssoc()); // why not?
+			}
+			putSubtreeSizes(properties, subtreeSizes.get(curJadeNode));
+
+			// nodes are written in preorder, so the count so far is the preorder position
+			properties.put(NodeProperty.PREORDER_INDEX.name, (int) nodeCount);
+			if (root != null) {
+				properties.put(NodeProperty.TREE_ROOT_NODE_ID.name, root.getId());
+			}
+
+			// TODO: add bl
+			// dbnode.setProperty("bl", innode.getBL());
+			// TODO: add support
+
+			Node curGraphNode = graphDb.createNode();
+			setNodePropertiesFromMap(curGraphNode, properties);
+			nodeCount++;
+			
+			if (isIngroupStart) {
+				ingroupStartNode = curGraphNode;
+			}
+
+			if (parentGraphNode != null) {
+				curGraphNode.createRelationshipTo(parentGraphNode, RelType.CHILDOF);
+			} else {
+				root = curGraphNode;
+				root.setProperty(NodeProperty.TREE_ROOT_NODE_ID.name, root.getId());
+			}
+
+			if (chunk != null) {
+				if (parentGraphNode == null) {
+					chunk.rootCreated(curGraphNode);
+				}
+				chunk.nodeAdded();
+			}
+			
+			if (progressListener != null) {
+				progressListener.nodeWritten();
+			}
+
+			// push the children in reverse so they are written in order
+			List<JadeNode> children = curJadeNode.getChildren();
+			for (int i = children.size() - 1; i >= 0; i--) {
+				jadeNodes.push(children.get(i));
+				parentGraphNodes.push(curGraphNode);
+			}
 		}
 
-		for (JadeNode childJadeNode : curJadeNode.getChildren()) {
-			preorderAddTreeToDB(childJadeNode, curGraphNode);
+		// designate the ingroup if we found one
+		if (ingroupStartNode != null) {
+			designateIngroup(ingroupStartNode);
+		}
+		
+		if (msgLogger != null) {
+			msgLogger.indentMessageLongStrStr(1, "Wrote tree", "nodes", nodeCount, "tree id", treeId,
+					"milliseconds", String.valueOf(System.currentTimeMillis() - startTime));
 		}
 
-		return curGraphNode;
+		return root;
 	}
 	
 	/**
@@ -560,7 +1130,7 @@ public class DatabaseManager extends DatabaseAbstractBase {
 	 * @param node
 	 * @param properties
 	 */
-	private static void setNodePropertiesFromMap(Node node, Map<String, Object> properties) {
+	static void setNodePropertiesFromMap(Node node, Map<String, Object> properties) {
 		for (Entry<String, Object> property : properties.entrySet()) {
 			node.setProperty(property.getKey(), property.getValue());
 		}
@@ -573,6 +1143,17 @@ public class DatabaseManager extends DatabaseAbstractBase {
 	 * @param tree
 	 */
 	private void collectTipTaxonArrayProperties(Node node, JadeTree tree) {
+		setNodePropertiesFromMap(node, getTipTaxonArrayProperties(tree));
+	}
+
+	/**
+	 * Collects taxonomic names and ids for all the tips of the provided JadeTree and returns them as a map of the
+	 * primitive array properties to be stored on the root node of the tree, along with the sketch of the ott ids. Also
+	 * used by the BulkNexsonLoader.
+	 * @param tree
+	 * @return
+	 */
+	static Map<String, Object> getTipTaxonArrayProperties(JadeTree tree) {
 		
 		List<String> originalTaxonNames = new ArrayList<String>();
 		List<String> mappedTaxonNames = new ArrayList<String>();
@@ -581,7 +1162,10 @@ public class DatabaseManager extends DatabaseAbstractBase {
 
 		for (JadeNode treeNode : tree.getRoot().getDescendantLeaves()) {
 
-			originalTaxonNames.add((String) treeNode.getObject(NodeProperty.OT_ORIGINAL_LABEL.name));
+			String originalName = (String) treeNode.getObject(NodeProperty.OT_ORIGINAL_LABEL.name);
+			if (originalName != null) { // e.g. trees read from newick have no original labels
+				originalTaxonNames.add(originalName);
+			}
 
 			String name = treeNode.getName(); // TODO: make sure we aren't setting these to original taxon names.
 			// If the node has not been explicitly mapped, then this should be null.
@@ -595,11 +1179,65 @@ public class DatabaseManager extends DatabaseAbstractBase {
 			}
 		}
 
-		// store the properties in the nodes
-		node.setProperty(NodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.name, GeneralUtils.convertToStringArray(originalTaxonNames));
-		node.setProperty(NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.name, GeneralUtils.convertToStringArray(mappedTaxonNames));
-		node.setProperty(NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES_WHITESPACE_FILLED.name, GeneralUtils.convertToStringArray(mappedTaxonNamesNoSpaces));
-		node.setProperty(NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.name, GeneralUtils.convertToLongArray(mappedOTTIds));
+		// store the properties in the map
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(NodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.name, GeneralUtils.convertToStringArray(originalTaxonNames));
+		properties.put(NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.name, GeneralUtils.convertToStringArray(mappedTaxonNames));
+		properties.put(NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES_WHITESPACE_FILLED.name, GeneralUtils.convertToStringArray(mappedTaxonNamesNoSpaces));
+		long[] ottIds = GeneralUtils.convertToLongArray(mappedOTTIds);
+		properties.put(NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.name, ottIds);
+
+		int[] sketch = TaxonSketch.compute(ottIds);
+		if (sketch != null) {
+			properties.put(NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_ID_SKETCH.name, sketch);
+		}
+		return properties;
+	}
+
+	/**
+	 * Get the number of tips, the number of nodes, and the maximum depth of the subtree below each node of a tree, in
+	 * that order. Also used by the BulkNexsonLoader.
+	 * @param root
+	 * @return
+	 */
+	static Map<JadeNode, int[]> getSubtreeSizes(JadeNode root) {
+
+		// preorder, so that every node comes after its parent
+		List<JadeNode> preorder = new ArrayList<JadeNode>();
+		LinkedList<JadeNode> stack = new LinkedList<JadeNode>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			JadeNode curJadeNode = stack.pop();
+			preorder.add(curJadeNode);
+			for (JadeNode child : curJadeNode.getChildren()) {
+				stack.push(child);
+			}
+		}
+
+		Map<JadeNode, int[]> subtreeSizes = new HashMap<JadeNode, int[]>();
+		for (int i = preorder.size() - 1; i >= 0; i--) {
+			JadeNode curJadeNode = preorder.get(i);
+			int[] sizes = {curJadeNode.getChildCount() == 0 ? 1 : 0, 1, 0};
+			for (JadeNode child : curJadeNode.getChildren()) {
+				int[] childSizes = subtreeSizes.get(child);
+				sizes[0] += childSizes[0];
+				sizes[1] += childSizes[1];
+				sizes[2] = Math.max(sizes[2], childSizes[2] + 1);
+			}
+			subtreeSizes.put(curJadeNode, sizes);
+		}
+		return subtreeSizes;
+	}
+
+	/**
+	 * Add the subtree sizes of a node, as returned by getSubtreeSizes, to a map of its properties.
+	 * @param properties
+	 * @param sizes
+	 */
+	static void putSubtreeSizes(Map<String, Object> properties, int[] sizes) {
+		properties.put(NodeProperty.SUBTREE_TIP_COUNT.name, sizes[0]);
+		properties.put(NodeProperty.SUBTREE_NODE_COUNT.name, sizes[1]);
+		properties.put(NodeProperty.SUBTREE_MAX_DEPTH.name, sizes[2]);
 	}
 
 	/**
@@ -632,24 +1270,34 @@ public class DatabaseManager extends DatabaseAbstractBase {
 	}
 
 	/**
-	 * Recursive function to process a re-rooted tree to fix relationship direction, etc.
+	 * Process a re-rooted tree to fix relationship direction, etc. Walks from `innode` up to the old root, then reverses
+	 * the CHILDOF relationships along that path starting from the top.
 	 * @param innode
 	 */
-	private void processRerootRecursive(Node innode) {
-		if (innode.hasProperty(NodeProperty.IS_ROOT.name) || innode.hasRelationship(Direction.INCOMING, RelType.CHILDOF) == false) {
-			return;
-		}
-		Node parent = null;
-		if (innode.hasRelationship(Direction.OUTGOING, RelType.CHILDOF)) {
-			parent = innode.getSingleRelationship(RelType.CHILDOF, Direction.OUTGOING).getEndNode();
-			processRerootRecursive(parent);
+	private void processReroot(Node innode) {
+
+		// collect the path to the old root, with the top-most node first
+		LinkedList<Node> path = new LinkedList<Node>();
+		Node curNode = innode;
+		while (!curNode.hasProperty(NodeProperty.IS_ROOT.name) && curNode.hasRelationship(Direction.INCOMING, RelType.CHILDOF)) {
+			path.push(curNode);
+			if (!curNode.hasRelationship(Direction.OUTGOING, RelType.CHILDOF)) {
+				break;
+			}
+			curNode = curNode.getSingleRelationship(RelType.CHILDOF, Direction.OUTGOING).getEndNode();
 		}
 
-		DatabaseUtils.exchangeNodeProperty(parent, innode, NodeProperty.NAME.name);
+		while (!path.isEmpty()) {
+			curNode = path.pop();
+			Relationship parentRel = curNode.getSingleRelationship(RelType.CHILDOF, Direction.OUTGOING);
+			Node parent = parentRel.getEndNode();
 
-		// Rearrange topology
-		innode.getSingleRelationship(RelType.CHILDOF, Direction.OUTGOING).delete();
-		parent.createRelationshipTo(innode, RelType.CHILDOF);
+			DatabaseUtils.exchangeNodeProperty(parent, curNode, NodeProperty.NAME.name);
+
+			// Rearrange topology
+			parentRel.delete();
+			parent.createRelationshipTo(curNode, RelType.CHILDOF);
+		}
 	}
 
 }
@@ -5,10 +5,12 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 
+import opentree.otu.constants.NodeProperty;
 import opentree.otu.constants.RelType;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.Index;
@@ -85,12 +87,24 @@ public class DatabaseUtils {
 	}
 	
 	/**
-	 * Return the root node from the graph for the tree containing the specified node.
+	 * Return the root node from the graph for the tree containing the specified node. Uses the root id stored on the
+	 * node if there is one, and otherwise walks up the tree.
 	 * @param node
 	 * 		The node to start traversing from
 	 * @return
 	 */
 	public static Node getRootOfTreeContaining(Node node) {
+		if (node.hasProperty(NodeProperty.TREE_ROOT_NODE_ID.name)) {
+			try {
+				Node root = node.getGraphDatabase().getNodeById((Long) node.getProperty(NodeProperty.TREE_ROOT_NODE_ID.name));
+				if (!root.hasRelationship(RelType.CHILDOF, Direction.OUTGOING)) {
+					return root;
+				}
+			} catch (NotFoundException ex) {
+				// fall through and walk up the tree
+			}
+		}
+
 		Node root = node;
 		boolean going = true;
 		while (going) {
@@ -103,6 +117,117 @@ public class DatabaseUtils {
 		return root;
 	}
 	
+	/**
+	 * Return true if `node` is `subtreeRoot` or one of its descendants. Uses the interval labels of the nodes if they
+	 * have them, and otherwise walks up the tree from `node`.
+	 * @param node
+	 * @param subtreeRoot
+	 * @return
+	 */
+	public static boolean isInSubtree(Node node, Node subtreeRoot) {
+		if (hasIntervalLabels(node) && hasIntervalLabels(subtreeRoot)) {
+			if (!node.getProperty(NodeProperty.TREE_ROOT_NODE_ID.name).equals(subtreeRoot.getProperty(NodeProperty.TREE_ROOT_NODE_ID.name))) {
+				return false;
+			}
+			int start = (Integer) subtreeRoot.getProperty(NodeProperty.PREORDER_INDEX.name);
+			int position = (Integer) node.getProperty(NodeProperty.PREORDER_INDEX.name);
+			return position >= start && position < start + (Integer) subtreeRoot.getProperty(NodeProperty.SUBTREE_NODE_COUNT.name);
+		}
+
+		Node cur = node;
+		while (!cur.equals(subtreeRoot)) {
+			if (!cur.hasRelationship(RelType.CHILDOF, Direction.OUTGOING)) {
+				return false;
+			}
+			cur = cur.getSingleRelationship(RelType.CHILDOF, Direction.OUTGOING).getEndNode();
+		}
+		return true;
+	}
+	
+	/**
+	 * Return true if the node is within the designated ingroup of its tree, i.e. in the subtree below the ingroup start
+	 * node recorded on the tree root.
+	 * @param node
+	 * @return
+	 */
+	public static boolean isWithinIngroup(Node node) {
+		Object ingroupStartId = getRootOfTreeContaining(node).getProperty(NodeProperty.INGROUP_START_NODE_ID.name, null);
+		if (!(ingroupStartId instanceof Long)) {
+			return false;
+		}
+		try {
+			return isInSubtree(node, node.getGraphDatabase().getNodeById((Long) ingroupStartId));
+		} catch (NotFoundException ex) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Set the preorder positions and tree root ids of all the nodes in a tree, replacing any previous ones. Must be
+	 * called within a transaction.
+	 * @param root
+	 */
+	public static void setIntervalLabels(Node root) {
+		int position = 0;
+		LinkedList<Node> stack = new LinkedList<Node>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			node.setProperty(NodeProperty.PREORDER_INDEX.name, position++);
+			node.setProperty(NodeProperty.TREE_ROOT_NODE_ID.name, root.getId());
+			for (Relationship rel : node.getRelationships(RelType.CHILDOF, Direction.INCOMING)) {
+				stack.push(rel.getStartNode());
+			}
+		}
+	}
+	
+	private static boolean hasIntervalLabels(Node node) {
+		return node.hasProperty(NodeProperty.PREORDER_INDEX.name) && node.hasProperty(NodeProperty.SUBTREE_NODE_COUNT.name)
+				&& node.hasProperty(NodeProperty.TREE_ROOT_NODE_ID.name);
+	}
+	
+	/**
+	 * Recompute the stored subtree tip count, node count and maximum depth of a tree node from those of its children,
+	 * which must be up to date. Children that lack them (e.g. in trees imported before they were stored) have them set
+	 * for their whole subtrees first. Must be called within a transaction.
+	 * @param node
+	 */
+	public static void updateSubtreeSizes(Node node) {
+		int tips = 0;
+		int nodes = 1;
+		int depth = 0;
+		boolean hasChildren = false;
+		for (Relationship rel : node.getRelationships(RelType.CHILDOF, Direction.INCOMING)) {
+			Node child = rel.getStartNode();
+			if (!child.hasProperty(NodeProperty.SUBTREE_NODE_COUNT.name)) {
+				setSubtreeSizes(child);
+			}
+			tips += (Integer) child.getProperty(NodeProperty.SUBTREE_TIP_COUNT.name);
+			nodes += (Integer) child.getProperty(NodeProperty.SUBTREE_NODE_COUNT.name);
+			depth = Math.max(depth, (Integer) child.getProperty(NodeProperty.SUBTREE_MAX_DEPTH.name) + 1);
+			hasChildren = true;
+		}
+		node.setProperty(NodeProperty.SUBTREE_TIP_COUNT.name, hasChildren ? tips : 1);
+		node.setProperty(NodeProperty.SUBTREE_NODE_COUNT.name, nodes);
+		node.setProperty(NodeProperty.SUBTREE_MAX_DEPTH.name, depth);
+	}
+	
+	/**
+	 * Set the stored subtree tip count, node count and maximum depth of every node in the subtree below `root`. Must be
+	 * called within a transaction.
+	 * @param root
+	 */
+	public static void setSubtreeSizes(Node root) {
+		List<Node> nodes = new ArrayList<Node>();
+		for (Node node : Traversal.description().relationships(RelType.CHILDOF, Direction.INCOMING).breadthFirst().traverse(root).nodes()) {
+			nodes.add(node);
+		}
+		// children come after their parents in breadth first order, so in reverse every node's children are done first
+		for (int i = nodes.size() - 1; i >= 0; i--) {
+			updateSubtreeSizes(nodes.get(i));
+		}
+	}
+	
 	/**
 	 * A convenience wrapper for querying node indexes that validates a unique result. Returns null if no corresponding
 	 * node is found.
@@ -41,10 +41,41 @@ public class GraphDatabaseAgent {
         embedded = true;
     }
 
+    /**
+     * The configuration used for indexes that are not listed in NodeIndexDescription, which declare their own types.
+     * @return
+     */
+    public static Map<String, String> getIndexConfiguration() {
+//        return MapUtil.stringMap( "type", "exact", "to_lower_case", "true" );
+        return MapUtil.stringMap(IndexManager.PROVIDER, "lucene", "type", "fulltext");
+    }
+
+    /**
+     * Get the underlying graph database, whether or not it is embedded.
+     * @return
+     */
+    public GraphDatabaseService getGraphDatabaseService() {
+        return embedded ? embeddedGraphDb : graphDbService;
+    }
+
+    /**
+     * Return the described node index, creating it with its declared type if it does not exist. Existing indexes are
+     * returned with the configuration they were created with, which may differ from the declared type if the database
+     * predates it (see IndexMigration).
+     * @param indexDesc
+     * @return
+     */
+    public Index<Node> getNodeIndex(NodeIndexDescription indexDesc) {
+        IndexManager indexManager = getGraphDatabaseService().index();
+        if (indexManager.existsForNodes(indexDesc.name)) {
+            return indexManager.forNodes(indexDesc.name);
+        }
+        return indexManager.forNodes(indexDesc.name, indexDesc.type.getConfiguration());
+    }
+
     public Index<Node> getNodeIndex(String indexName) {
         Index<Node> index; 
-//        Map<String,String> indexPars = MapUtil.stringMap( "type", "exact", "to_lower_case", "true" );
-        Map<String,String> indexPars = MapUtil.stringMap(IndexManager.PROVIDER, "lucene", "type", "fulltext");
+        Map<String,String> indexPars = getIndexConfiguration();
         if (embedded)
             index = embeddedGraphDb.index().forNodes(indexName, indexPars);
         else
@@ -55,8 +86,7 @@ public class GraphDatabaseAgent {
 
     public Index<Relationship> getRelIndex(String indexName) {
         Index<Relationship> index; 
-//        Map<String,String> indexPars = MapUtil.stringMap( "type", "exact", "to_lower_case", "true" );
-        Map<String,String> indexPars = MapUtil.stringMap(IndexManager.PROVIDER, "lucene", "type", "fulltext");
+        Map<String,String> indexPars = getIndexConfiguration();
 
         if (embedded)
             index = embeddedGraphDb.index().forRelationships(indexName, indexPars);
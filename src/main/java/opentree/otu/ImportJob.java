@@ -0,0 +1,150 @@
+package opentree.otu;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import opentree.otu.exceptions.ImportCancelledException;
+
+/**
+ * The state of an import submitted to the ImportJobManager. Progress is reported by the DatabaseManager through the
+ * ImportProgressListener interface, and can be read from any thread.
+ */
+public class ImportJob implements ImportProgressListener {
+
+	public enum State {
+		QUEUED, PARSING, WRITING, COMPLETED, FAILED, CANCELLED;
+
+		public boolean isFinished() {
+			return this == COMPLETED || this == FAILED || this == CANCELLED;
+		}
+	}
+
+	private final String id;
+	private final String sourceId;
+	private final String location;
+
+	private volatile State state = State.QUEUED;
+	private volatile boolean cancelRequested = false;
+	private volatile String message = null;
+
+	private volatile int treesParsed = 0;
+	private volatile long nodesWritten = 0;
+	private volatile int treesIndexed = 0;
+
+	private final long submitTime = System.currentTimeMillis();
+	private volatile long startTime = 0;
+	private volatile long finishTime = 0;
+
+	Future<?> future = null;
+
+	ImportJob(String id, String sourceId, String location) {
+		this.id = id;
+		this.sourceId = sourceId;
+		this.location = location;
+	}
+
+	// ===== progress, called by the import
+
+	@Override
+	public void nodeWritten() {
+		nodesWritten++;
+		checkCancelled();
+	}
+
+	@Override
+	public void treeAdded(String treeId) {
+		treesIndexed++;
+	}
+
+	public void treeParsed() {
+		treesParsed++;
+	}
+
+	public void setTreesParsed(int treesParsed) {
+		this.treesParsed = treesParsed;
+	}
+
+	public void setState(State state) {
+		this.state = state;
+	}
+
+	/**
+	 * Throw an ImportCancelledException if the job has been cancelled. Imports should call this between steps that do
+	 * not write nodes.
+	 */
+	public void checkCancelled() {
+		if (cancelRequested) {
+			throw new ImportCancelledException("Import job " + id + " was cancelled");
+		}
+	}
+
+	// ===== package methods used by the ImportJobManager
+
+	void started() {
+		startTime = System.currentTimeMillis();
+		state = State.PARSING;
+	}
+
+	void finished(State finalState, String message) {
+		this.message = message;
+		this.finishTime = System.currentTimeMillis();
+		this.state = finalState;
+	}
+
+	void requestCancel() {
+		cancelRequested = true;
+	}
+
+	// ===== accessors
+
+	public String getId() {
+		return id;
+	}
+
+	public String getSourceId() {
+		return sourceId;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public boolean isCancelRequested() {
+		return cancelRequested;
+	}
+
+	public long getNodesWritten() {
+		return nodesWritten;
+	}
+
+	/**
+	 * Get a map of the job state suitable for returning from a service.
+	 * @return
+	 */
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new HashMap<String, Object>();
+		status.put("job_id", id);
+		status.put("source_id", sourceId);
+		status.put("location", location);
+		status.put("state", state.name());
+		status.put("trees_parsed", treesParsed);
+		status.put("nodes_written", nodesWritten);
+		status.put("trees_indexed", treesIndexed);
+		status.put("submit_time", submitTime);
+		if (startTime > 0) {
+			status.put("start_time", startTime);
+		}
+		if (finishTime > 0) {
+			status.put("finish_time", finishTime);
+		}
+		if (message != null) {
+			status.put("message", message);
+		}
+		return status;
+	}
+}
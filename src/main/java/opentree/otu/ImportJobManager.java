@@ -0,0 +1,218 @@
+package opentree.otu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import opentree.otu.exceptions.ImportCancelledException;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+/**
+ * Runs imports in the background so that services can return immediately. Jobs are run on a bounded pool, which caps the
+ * number of imports writing to the graph at once, and their progress can be polled by job id. There is one job manager
+ * per graph database; use getInstance to get it.
+ *
+ * A cancelled job stops at the next tree node it writes. If it was a chunked import, the partially imported source is
+ * rolled back. Jobs that fail are left as they are, so a chunked import can be resumed by submitting it again.
+ */
+public class ImportJobManager {
+
+	/**
+	 * The work done by an import job. Jobs start in the PARSING state. Implementations should report parsing progress to
+	 * the job, and set its state to WRITING before calling the DatabaseManager import methods. Writing progress is
+	 * reported automatically.
+	 */
+	public interface ImportTask {
+		public void run(DatabaseManager manager, ImportJob job) throws Exception;
+	}
+
+	public static final int DEFAULT_MAX_CONCURRENT_JOBS = 2;
+	private static final int MAX_QUEUED_JOBS = 1000;
+	private static final int MAX_RETAINED_FINISHED_JOBS = 500;
+
+	private static final Map<GraphDatabaseService, ImportJobManager> managers = new HashMap<GraphDatabaseService, ImportJobManager>();
+
+	private final GraphDatabaseService graphDb;
+	private final ThreadPoolExecutor executor;
+	private final LinkedHashMap<String, ImportJob> jobs = new LinkedHashMap<String, ImportJob>();
+	private long nextJobId = 1;
+
+	private ImportJobManager(GraphDatabaseService graphDb, int maxConcurrentJobs) {
+		this.graphDb = graphDb;
+		executor = new ThreadPoolExecutor(maxConcurrentJobs, maxConcurrentJobs, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(MAX_QUEUED_JOBS), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "otu-import-job");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Get the job manager for the graph database, creating it if necessary with the configured maximum number of
+	 * concurrent jobs.
+	 * @param graphDb
+	 * @return
+	 */
+	public static synchronized ImportJobManager getInstance(GraphDatabaseService graphDb) {
+		ImportJobManager manager = managers.get(graphDb);
+		if (manager == null) {
+			int maxConcurrentJobs = new ConfigurationManager(new DatabaseManager(graphDb)).getMaxConcurrentImports();
+			manager = new ImportJobManager(graphDb, maxConcurrentJobs);
+			managers.put(graphDb, manager);
+		}
+		return manager;
+	}
+
+	/**
+	 * Queue an import.
+	 * @param sourceId
+	 * 		The id of the source being imported
+	 * @param location
+	 * 		The location it is being imported to
+	 * @param task
+	 * @return
+	 * 		The job, which can be used to follow its progress
+	 * @throws RejectedExecutionException
+	 * 		If too many jobs are already queued
+	 */
+	public synchronized ImportJob submit(String sourceId, String location, final ImportTask task) {
+
+		final ImportJob job = new ImportJob(String.valueOf(nextJobId++), sourceId, location);
+		job.future = executor.submit(new Runnable() {
+			public void run() {
+				runJob(job, task);
+			}
+		});
+		jobs.put(job.getId(), job);
+
+		removeOldJobs();
+		return job;
+	}
+
+	/**
+	 * Get the job with the specified id, or null if there is no such job.
+	 * @param jobId
+	 * @return
+	 */
+	public synchronized ImportJob getJob(String jobId) {
+		return jobs.get(jobId);
+	}
+
+	/**
+	 * Get all the jobs that are queued, running, or recently finished, in the order they were submitted.
+	 * @return
+	 */
+	public synchronized List<ImportJob> getJobs() {
+		return new ArrayList<ImportJob>(jobs.values());
+	}
+
+	/**
+	 * Cancel a job. Queued jobs are cancelled immediately, and running jobs stop at the next node they write.
+	 * @param jobId
+	 * @return
+	 * 		false if there is no such job or it has already finished
+	 */
+	public boolean cancel(String jobId) {
+		ImportJob job = getJob(jobId);
+		if (job == null || job.getState().isFinished()) {
+			return false;
+		}
+		job.requestCancel();
+		if (job.future.cancel(false)) {
+			job.finished(ImportJob.State.CANCELLED, "Cancelled before starting");
+		}
+		return true;
+	}
+
+	/**
+	 * Change the maximum number of jobs that will be run at once.
+	 * @param maxConcurrentJobs
+	 */
+	public synchronized void setMaxConcurrentJobs(int maxConcurrentJobs) {
+		if (maxConcurrentJobs < 1) {
+			throw new IllegalArgumentException("The maximum number of concurrent jobs must be at least 1");
+		}
+		if (maxConcurrentJobs > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(maxConcurrentJobs);
+			executor.setCorePoolSize(maxConcurrentJobs);
+		} else {
+			executor.setCorePoolSize(maxConcurrentJobs);
+			executor.setMaximumPoolSize(maxConcurrentJobs);
+		}
+	}
+
+	public synchronized int getMaxConcurrentJobs() {
+		return executor.getMaximumPoolSize();
+	}
+
+	// ===== private methods
+
+	private void runJob(ImportJob job, ImportTask task) {
+
+		if (job.isCancelRequested()) {
+			job.finished(ImportJob.State.CANCELLED, "Cancelled before starting");
+			return;
+		}
+		job.started();
+
+		DatabaseManager manager = new DatabaseManager(graphDb);
+		manager.setProgressListener(job);
+		try {
+			task.run(manager, job);
+			job.finished(ImportJob.State.COMPLETED, null);
+
+		} catch (ImportCancelledException ex) {
+			rollbackIncompleteImport(manager, job);
+			job.finished(ImportJob.State.CANCELLED, ex.toString());
+
+		} catch (Exception ex) {
+			job.finished(ImportJob.State.FAILED, ex.toString());
+
+		} catch (Error err) {
+			job.finished(ImportJob.State.FAILED, err.toString());
+			throw err;
+		}
+	}
+
+	/**
+	 * Remove the partially imported source left by a cancelled chunked import, if there is one.
+	 */
+	private void rollbackIncompleteImport(DatabaseManager manager, ImportJob job) {
+		manager.setProgressListener(null);
+		Node sourceMeta = new DatabaseBrowser(graphDb).getSourceMetaNode(job.getSourceId(), job.getLocation());
+		if (sourceMeta != null && DatabaseManager.isImportInProgress(sourceMeta)) {
+			manager.rollbackSourceImport(sourceMeta);
+		}
+	}
+
+	/**
+	 * Forget the oldest finished jobs once there are too many.
+	 */
+	private void removeOldJobs() {
+		int finished = 0;
+		for (ImportJob job : jobs.values()) {
+			if (job.getState().isFinished()) {
+				finished++;
+			}
+		}
+		Iterator<ImportJob> jobsIter = jobs.values().iterator();
+		while (finished > MAX_RETAINED_FINISHED_JOBS && jobsIter.hasNext()) {
+			if (jobsIter.next().getState().isFinished()) {
+				jobsIter.remove();
+				finished--;
+			}
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package opentree.otu;
+
+/**
+ * Receives progress notifications from the DatabaseManager import methods. See DatabaseManager.setProgressListener.
+ * Listeners may throw an unchecked exception (e.g. ImportCancelledException) to abort the import.
+ */
+public interface ImportProgressListener {
+
+	/**
+	 * Called after each tree node has been written to the graph.
+	 */
+	public void nodeWritten();
+	
+	/**
+	 * Called after a tree has been completely written and indexed.
+	 * @param treeId
+	 */
+	public void treeAdded(String treeId);
+}
@@ -0,0 +1,210 @@
+package opentree.otu;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import opentree.otu.constants.GraphProperty;
+import opentree.otu.constants.NodeProperty;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Rebuilds the node indexes of an existing database so that they have the types declared in NodeIndexDescription.
+ * Databases created before index types were declared have only fulltext indexes, which continue to work but tokenize
+ * identifiers.
+ *
+ * The indexes are rebuilt from the graph rather than from their old contents. Since the rebuilt indexes already have
+ * their declared types while they are being filled, a graph property marks the migration as in progress from before the
+ * old indexes are deleted until the last node has been indexed, and a migration that finds the marker set rebuilds the
+ * indexes again even if their types are up to date. So a migration that is interrupted can simply be run again. All the
+ * node indexes are rebuilt together, because the DatabaseIndexer writes to all of them at once. Imports should not be
+ * run during a migration.
+ *
+ * Usage: IndexMigration <graphdb directory>
+ */
+public class IndexMigration {
+
+	public static final int DEFAULT_COMMIT_INTERVAL = 1000;
+
+	private final GraphDatabaseAgent graphDb;
+
+	public IndexMigration(GraphDatabaseAgent graphDb) {
+		this.graphDb = graphDb;
+	}
+
+	public IndexMigration(GraphDatabaseService graphDb) {
+		this(new GraphDatabaseAgent(graphDb));
+	}
+
+	/**
+	 * Get the indexes that do not exist or whose stored configuration does not match their declared type.
+	 * @return
+	 */
+	public List<NodeIndexDescription> getOutdatedIndexes() {
+		IndexManager indexManager = graphDb.getGraphDatabaseService().index();
+		List<NodeIndexDescription> outdated = new LinkedList<NodeIndexDescription>();
+		for (NodeIndexDescription desc : NodeIndexDescription.values()) {
+			if (indexManager.existsForNodes(desc.name)) {
+				Map<String, String> storedConfig = indexManager.getConfiguration(indexManager.forNodes(desc.name));
+				if (!desc.type.matches(storedConfig)) {
+					outdated.add(desc);
+				}
+			}
+		}
+		return outdated;
+	}
+
+	/**
+	 * Return true if a migration was started and has not finished, in which case the indexes may be incomplete.
+	 * @return
+	 */
+	public boolean isInProgress() {
+		return Boolean.TRUE.equals(graphDb.getGraphProperty(GraphProperty.INDEX_MIGRATION_IN_PROGRESS));
+	}
+
+	/**
+	 * Rebuild the node indexes if any of them are outdated, or if an earlier migration did not finish. Does nothing if
+	 * they are all up to date.
+	 * @param commitInterval
+	 * 		The number of source and tree root nodes to index per transaction
+	 * @return
+	 */
+	public MigrationResult migrate(int commitInterval) {
+
+		MigrationResult result = new MigrationResult();
+		if (isInProgress()) {
+			// all the indexes were deleted by the unfinished migration, and may be only partly rebuilt
+			for (NodeIndexDescription desc : NodeIndexDescription.values()) {
+				result.outdated.add(desc.name);
+			}
+		} else {
+			for (NodeIndexDescription desc : getOutdatedIndexes()) {
+				result.outdated.add(desc.name);
+			}
+		}
+		if (result.outdated.isEmpty()) {
+			return result;
+		}
+
+		graphDb.setGraphProperty(GraphProperty.INDEX_MIGRATION_IN_PROGRESS.propertyName, true);
+		deleteIndexes();
+
+		// the indexer opens the indexes on construction, so this recreates them with their declared types
+		DatabaseIndexer indexer = new DatabaseIndexer(graphDb);
+
+		int inTx = 0;
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (Node node : GlobalGraphOperations.at(graphDb.getGraphDatabaseService()).getAllNodes()) {
+				if (isTreeRoot(node)) {
+					indexer.addTreeRootNodeToIndexes(node);
+					result.treesIndexed++;
+				} else if (isSourceMeta(node)) {
+					// sources whose import has not finished are only indexed by source id, as in DatabaseManager.addSource
+					if (node.hasProperty(NodeProperty.IMPORT_IN_PROGRESS.name)) {
+						indexer.addSourceMetaNodeToSourceIdIndex(node);
+					} else {
+						indexer.addSourceMetaNodeToIndexes(node);
+					}
+					result.sourcesIndexed++;
+				} else {
+					continue;
+				}
+
+				if (++inTx >= commitInterval) {
+					tx.success();
+					tx.finish();
+					tx = graphDb.beginTx();
+					inTx = 0;
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		graphDb.setGraphProperty(GraphProperty.INDEX_MIGRATION_IN_PROGRESS.propertyName, false);
+
+		// results cached from the old indexes may differ
+		SearchResultCache.getInstance(graphDb.getGraphDatabaseService()).newGeneration();
+
+		return result;
+	}
+
+	/**
+	 * The indexes that were rebuilt, and the number of nodes indexed.
+	 */
+	public static class MigrationResult {
+		public final List<String> outdated = new LinkedList<String>();
+		public int sourcesIndexed = 0;
+		public int treesIndexed = 0;
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("outdated_indexes", outdated);
+			map.put("rebuilt", !outdated.isEmpty());
+			map.put("sources_indexed", sourcesIndexed);
+			map.put("trees_indexed", treesIndexed);
+			return map;
+		}
+	}
+
+	// ===== private methods
+
+	private void deleteIndexes() {
+		IndexManager indexManager = graphDb.getGraphDatabaseService().index();
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (NodeIndexDescription desc : NodeIndexDescription.values()) {
+				if (indexManager.existsForNodes(desc.name)) {
+					indexManager.forNodes(desc.name).delete();
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	/**
+	 * Tree roots are indexed once the whole tree has been written.
+	 */
+	private static boolean isTreeRoot(Node node) {
+		return node.hasProperty(NodeProperty.IS_ROOT.name) && node.hasProperty(NodeProperty.TREE_ID.name)
+				&& !node.hasProperty(NodeProperty.IMPORT_IN_PROGRESS.name);
+	}
+
+	/**
+	 * Source metadata nodes are the only other nodes with a source id and location, and are indexed as soon as they
+	 * are created.
+	 */
+	private static boolean isSourceMeta(Node node) {
+		return node.hasProperty(NodeProperty.SOURCE_ID.name) && node.hasProperty(NodeProperty.LOCATION.name)
+				&& !node.hasProperty(NodeProperty.TREE_ID.name);
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("usage: IndexMigration <graphdb directory>");
+			System.exit(1);
+		}
+
+		GraphDatabaseAgent graphDb = new GraphDatabaseAgent(args[0]);
+		try {
+			MigrationResult result = new IndexMigration(graphDb).migrate(DEFAULT_COMMIT_INTERVAL);
+			if (result.outdated.isEmpty()) {
+				System.out.println("The indexes are up to date");
+			} else {
+				System.out.println("Rebuilt indexes " + result.outdated + ": indexed " + result.sourcesIndexed
+						+ " sources and " + result.treesIndexed + " trees");
+			}
+		} finally {
+			graphDb.shutdownDb();
+		}
+	}
+}
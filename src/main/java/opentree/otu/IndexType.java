@@ -0,0 +1,110 @@
+package opentree.otu;
+
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.helpers.collection.MapUtil;
+
+/**
+ * The lucene index configurations used for the node indexes. Each NodeIndexDescription declares one of these.
+ */
+public enum IndexType {
+
+	/**
+	 * Values are stored and matched exactly. Used for identifiers, which should never be tokenized.
+	 */
+	EXACT ("exact", false),
+
+	/**
+	 * Values are tokenized into lowercased words, for searches on parts of values (e.g. fuzzy searches on taxon names).
+	 */
+	FULLTEXT ("fulltext", true),
+
+	/**
+	 * Values are stored whole, but matched without regard to case.
+	 */
+	EXACT_LOWERCASE ("exact", true);
+
+	private final String luceneType;
+	private final boolean toLowerCase;
+
+	IndexType(String luceneType, boolean toLowerCase) {
+		this.luceneType = luceneType;
+		this.toLowerCase = toLowerCase;
+	}
+
+	/**
+	 * Get the configuration to pass to the index manager when creating an index of this type.
+	 * @return
+	 */
+	public Map<String, String> getConfiguration() {
+		if (this == FULLTEXT) {
+			// lowercasing is the default for fulltext; this is the configuration used before types were declared
+			return MapUtil.stringMap(IndexManager.PROVIDER, "lucene", "type", luceneType);
+		}
+		return MapUtil.stringMap(IndexManager.PROVIDER, "lucene", "type", luceneType, "to_lower_case", String.valueOf(toLowerCase));
+	}
+
+	/**
+	 * Return true if the stored configuration of an existing index is equivalent to this type.
+	 * @param storedConfig
+	 * @return
+	 */
+	public boolean matches(Map<String, String> storedConfig) {
+		if (!luceneType.equals(storedConfig.get("type"))) {
+			return false;
+		}
+		String storedToLowerCase = storedConfig.get("to_lower_case");
+		boolean storedLower = storedToLowerCase == null ? "fulltext".equals(luceneType) : Boolean.parseBoolean(storedToLowerCase);
+		return storedLower == toLowerCase;
+	}
+
+	/**
+	 * Get a query that matches the nodes indexed under `key` with a value exactly equal to `value`, as Index.get() does.
+	 * Fulltext indexes store the whole value, as it was given, in a second field alongside the words.
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public Query getExactQuery(String key, String value) {
+		if (this == FULLTEXT) {
+			return new TermQuery(new Term(key + "_e", value));
+		}
+		return new TermQuery(new Term(key, toLowerCase ? value.toLowerCase() : value));
+	}
+
+	/**
+	 * Get a query that matches the nodes indexed under `key` with a term between `lower` and `upper` (inclusive) in
+	 * string order. Either bound may be null. The terms of fulltext indexes are lowercased words.
+	 * @param key
+	 * @param lower
+	 * @param upper
+	 * @return
+	 */
+	public Query getRangeQuery(String key, String lower, String upper) {
+		if (toLowerCase) {
+			lower = lower == null ? null : lower.toLowerCase();
+			upper = upper == null ? null : upper.toLowerCase();
+		}
+		return new TermRangeQuery(key, lower, upper, true, true);
+	}
+
+	/**
+	 * Get the type that an existing index was created with, from its stored configuration. Returns null if the
+	 * configuration is not one of these types.
+	 * @param storedConfig
+	 * @return
+	 */
+	public static IndexType forConfiguration(Map<String, String> storedConfig) {
+		for (IndexType type : values()) {
+			if (type.matches(storedConfig)) {
+				return type;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,216 @@
+package opentree.otu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * A disk cache for remote nexson files. Files are stored under the hash of the repo commit they were retrieved from and
+ * the study id, i.e. <cache dir>/<commit hash>/<study id>.json, so the contents of a cached file never change and a
+ * study only needs to be downloaded once per commit.
+ *
+ * Downloads are written to a temporary file and then renamed into place, so partially downloaded files are never
+ * visible in the cache, and concurrent downloads of the same study are harmless.
+ */
+public class NexsonCache {
+
+	// commit hashes and study ids are used as path elements, so restrict them to safe characters
+	private static final Pattern SAFE_KEY = Pattern.compile("[A-Za-z0-9_\\-][A-Za-z0-9_.\\-]*");
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+	private static final int READ_TIMEOUT_MILLIS = 120000;
+
+	private final File cacheDir;
+
+	/**
+	 * Use the specified directory for the cache. It will be created if it does not exist.
+	 * @param cacheDir
+	 */
+	public NexsonCache(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * The default cache directory, used when none has been configured.
+	 * @return
+	 */
+	public static File getDefaultCacheDir() {
+		return new File(System.getProperty("java.io.tmpdir"), "otu-nexson-cache");
+	}
+
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	/**
+	 * Get the location of the file for the specified commit and study. The file may not exist.
+	 * @param commitHash
+	 * @param studyId
+	 * @return
+	 */
+	public File getCachedFile(String commitHash, String studyId) {
+		checkKey(commitHash);
+		checkKey(studyId);
+		return new File(new File(cacheDir, commitHash), studyId + ".json");
+	}
+
+	public boolean isCached(String commitHash, String studyId) {
+		return getCachedFile(commitHash, studyId).isFile();
+	}
+
+	/**
+	 * Get the cached file for the specified commit and study, first downloading it from `url` if it is not cached.
+	 * @param commitHash
+	 * @param studyId
+	 * @param url
+	 * 		The location of the nexson for this study at this commit
+	 * @return
+	 * @throws IOException
+	 */
+	public File fetch(String commitHash, String studyId, String url) throws IOException {
+		File file = getCachedFile(commitHash, studyId);
+		if (!file.isFile()) {
+			download(url, file);
+		}
+		return file;
+	}
+
+	/**
+	 * Open a reader on the nexson for the specified commit and study, downloading it from `url` if it is not cached.
+	 * @param commitHash
+	 * @param studyId
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	public Reader openNexson(String commitHash, String studyId, String url) throws IOException {
+		File file = fetch(commitHash, studyId, url);
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+	}
+
+	/**
+	 * Download the nexsons for all the specified studies that are not already cached, using at most `maxThreads`
+	 * concurrent downloads. The nexson for each study is expected at <base url><commit hash>/<study id>. Failed downloads
+	 * are reported in the result, and do not prevent the other studies from being downloaded.
+	 *
+	 * @param commitHash
+	 * @param baseURL
+	 * @param studyIds
+	 * @param maxThreads
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public PrefetchResult prefetch(final String commitHash, String baseURL, List<String> studyIds, int maxThreads) throws InterruptedException {
+
+		final String commitURL = baseURL + commitHash + "/";
+		PrefetchResult result = new PrefetchResult();
+
+		List<String> toFetch = new ArrayList<String>();
+		for (String studyId : studyIds) {
+			if (isCached(commitHash, studyId)) {
+				result.alreadyCached++;
+			} else {
+				toFetch.add(studyId);
+			}
+		}
+		if (toFetch.isEmpty()) {
+			return result;
+		}
+
+		List<Callable<File>> downloads = new ArrayList<Callable<File>>();
+		for (final String studyId : toFetch) {
+			downloads.add(new Callable<File>() {
+				public File call() throws IOException {
+					return fetch(commitHash, studyId, commitURL + studyId);
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxThreads, toFetch.size())));
+		try {
+			List<Future<File>> futures = executor.invokeAll(downloads);
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+					result.downloaded++;
+				} catch (ExecutionException ex) {
+					result.failed.add(toFetch.get(i));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return result;
+	}
+
+	/**
+	 * The outcome of a prefetch.
+	 */
+	public static class PrefetchResult {
+		public int downloaded = 0;
+		public int alreadyCached = 0;
+		public final List<String> failed = new LinkedList<String>();
+	}
+
+	// ===== private methods
+
+	private static void checkKey(String key) {
+		if (key == null || !SAFE_KEY.matcher(key).matches()) {
+			throw new IllegalArgumentException("Invalid commit hash or study id for the nexson cache: " + key);
+		}
+	}
+
+	private static void download(String url, File file) throws IOException {
+
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Could not create the cache directory " + dir);
+		}
+		File temp = File.createTempFile(file.getName(), ".part", dir);
+
+		try {
+			URLConnection conn = new URL(url).openConnection();
+			conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+			conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+			InputStream in = conn.getInputStream();
+			try {
+				OutputStream out = new FileOutputStream(temp);
+				try {
+					byte[] buf = new byte[8192];
+					for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+						out.write(buf, 0, n);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+
+			// another thread may have finished the same download first, in which case the files are identical
+			if (!temp.renameTo(file) && !file.isFile()) {
+				throw new IOException("Could not move the downloaded nexson into the cache at " + file);
+			}
+		} finally {
+			temp.delete(); // no-op if it was renamed
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package opentree.otu;
+
+import jade.MessageLogger;
+import jade.tree.NexsonSource;
+import jade.tree.NexsonStreamReader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import opentree.otu.constants.NodeProperty;
+import opentree.otu.constants.OTUConstants;
+import opentree.otu.exceptions.DuplicateSourceException;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.IndexHits;
+
+/**
+ * Keeps the local sources in sync with the nexson files in a directory, e.g. a checkout of the avatol_nexsons repo
+ * (see ConfigurationManager.getNexsonGitDir). The SHA-1 hash of each file is stored on the source metadata node when
+ * it is imported, so subsequent syncs only re-import the studies whose files have changed.
+ *
+ * Files are matched to sources by name: the source id is the file name, with any ".json" extension removed. Only sources
+ * that were imported by a sync (i.e. that have a stored hash) are deleted when their files disappear, so sources
+ * added through other means are left alone unless a file with the same source id appears.
+ */
+public class NexsonGitSync {
+
+	private final DatabaseManager manager;
+	private final DatabaseBrowser browser;
+
+	public NexsonGitSync(DatabaseManager manager) {
+		this.manager = manager;
+		this.browser = new DatabaseBrowser(manager.getGraphDatabaseAgent());
+	}
+
+	/**
+	 * Bring the local sources up to date with the nexson files in `nexsonDir`.
+	 *
+	 * @param nexsonDir
+	 * @param commitInterval
+	 * 		Passed to DatabaseManager.addSource. Values less than 1 import each source in a single transaction.
+	 * @param msgLogger
+	 * @return
+	 * @throws IOException
+	 */
+	public SyncResult sync(File nexsonDir, int commitInterval, MessageLogger msgLogger) throws IOException {
+
+		File[] files = nexsonDir.listFiles();
+		if (files == null) {
+			throw new IOException("Could not read the nexson directory " + nexsonDir);
+		}
+
+		SyncResult result = new SyncResult();
+		Map<String, String> storedHashes = getStoredHashes();
+
+		for (File file : files) {
+			if (file.isDirectory() || file.getName().startsWith(".")) {
+				continue;
+			}
+			String sourceId = getSourceId(file);
+			String storedHash = storedHashes.remove(sourceId);
+			String hash = hashFile(file);
+
+			if (hash.equals(storedHash)) {
+				result.unchanged++;
+				continue;
+			}
+
+			NexsonSource source;
+			Reader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				source = NexsonStreamReader.readNexson(r, sourceId, false, msgLogger);
+			} catch (IOException ex) {
+				msgLogger.messageStr("Could not read nexson, skipping", "file", file.getPath());
+				result.failed.add(sourceId);
+				continue;
+			} finally {
+				r.close();
+			}
+
+			// match the behavior of the Indexing plugin: only add sources with trees
+			if (!source.getTrees().iterator().hasNext()) {
+				if (storedHash != null) {
+					deleteSource(sourceId);
+					result.deleted.add(sourceId);
+				}
+				continue;
+			}
+
+			Node sourceMeta;
+			try {
+				sourceMeta = manager.addSource(source, DatabaseManager.LOCAL_LOCATION, true, commitInterval);
+			} catch (DuplicateSourceException ex) {
+				throw new IllegalStateException(ex); // not thrown when overwriting
+			}
+			setStoredHash(sourceMeta, hash);
+
+			if (storedHash == null) {
+				result.added.add(sourceId);
+			} else {
+				result.updated.add(sourceId);
+			}
+		}
+
+		// any remaining synced sources no longer have files
+		for (String sourceId : storedHashes.keySet()) {
+			deleteSource(sourceId);
+			result.deleted.add(sourceId);
+		}
+
+		return result;
+	}
+
+	/**
+	 * The changes made by a sync.
+	 */
+	public static class SyncResult {
+		public final List<String> added = new LinkedList<String>();
+		public final List<String> updated = new LinkedList<String>();
+		public final List<String> deleted = new LinkedList<String>();
+		public final List<String> failed = new LinkedList<String>();
+		public int unchanged = 0;
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("added", added);
+			map.put("updated", updated);
+			map.put("deleted", deleted);
+			map.put("failed", failed);
+			map.put("unchanged", unchanged);
+			return map;
+		}
+	}
+
+	// ===== private methods
+
+	private static String getSourceId(File file) {
+		String name = file.getName();
+		return name.endsWith(".json") ? name.substring(0, name.length() - 5) : name;
+	}
+
+	/**
+	 * Get the stored hashes for all local sources that were imported by a sync, keyed by source id.
+	 */
+	private Map<String, String> getStoredHashes() {
+		Map<String, String> hashes = new HashMap<String, String>();
+		IndexHits<Node> hits = browser.sourceMetaNodesBySourceId.query(DatabaseManager.LOCAL_LOCATION + OTUConstants.SOURCE_ID + ":*");
+		try {
+			for (Node sourceMeta : hits) {
+				if (sourceMeta.hasProperty(NodeProperty.NEXSON_CONTENT_HASH.name) && !DatabaseManager.isImportInProgress(sourceMeta)) {
+					hashes.put((String) sourceMeta.getProperty(NodeProperty.SOURCE_ID.name),
+							(String) sourceMeta.getProperty(NodeProperty.NEXSON_CONTENT_HASH.name));
+				}
+			}
+		} finally {
+			hits.close();
+		}
+		return hashes;
+	}
+
+	private void setStoredHash(Node sourceMeta, String hash) {
+		Transaction tx = manager.getGraphDatabaseAgent().beginTx();
+		try {
+			sourceMeta.setProperty(NodeProperty.NEXSON_CONTENT_HASH.name, hash);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void deleteSource(String sourceId) {
+		Node sourceMeta = browser.getSourceMetaNode(sourceId, DatabaseManager.LOCAL_LOCATION);
+		if (sourceMeta != null) {
+			manager.deleteSource(sourceMeta);
+		}
+	}
+
+	/**
+	 * Return the SHA-1 hash of the file contents as a hex string.
+	 */
+	static String hashFile(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex); // SHA-1 is required of every java platform
+		}
+
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[8192];
+			for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+				digest.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
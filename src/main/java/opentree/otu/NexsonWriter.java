@@ -26,11 +26,9 @@ import opentree.otu.constants.RelType;
 import org.json.simple.JSONValue;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONArray;
-import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.IndexHits;
-import org.neo4j.kernel.Traversal;
 
 import java.io.Reader;
 import java.io.FileReader;
@@ -222,19 +220,20 @@ public class NexsonWriter {
 			"@xsi:type": "nex:LiteralMeta"
 			}
 			], */
+			TreeSnapshot tree = TreeSnapshotCache.getInstance(rtnode.getGraphDatabase()).getSnapshot(rtnode);
 			sb.append("\"edge\": [\n");
 			//go through the edges first
 			first = true;
-			for(Relationship rel2: Traversal.description().relationships(RelType.CHILDOF, Direction.INCOMING).breadthFirst().traverse(rtnode).relationships()){
+			for(int i = 1; i < tree.size(); i++){
 				if (first){
 					sb.append("{\n");
 					first = false;
 				}else{
 					sb.append(",\n{\n");
 				}
-				sb.append("\"@id\": \"edge"+String.valueOf(rel2.getId())+"\"");
-				sb.append("\"@source\": \"node"+String.valueOf(rel2.getEndNode().getId())+"\"");
-				sb.append("\"@target\": \"node"+String.valueOf(rel2.getStartNode().getId())+"\"");
+				sb.append("\"@id\": \"edge"+String.valueOf(tree.getEdgeId(i))+"\"");
+				sb.append("\"@source\": \"node"+String.valueOf(tree.getNodeId(tree.getParent(i)))+"\"");
+				sb.append("\"@target\": \"node"+String.valueOf(tree.getNodeId(i))+"\"");
 				sb.append("}");
 			}
 			//go through again for the nodes
@@ -242,19 +241,19 @@ public class NexsonWriter {
 			sb.append("\"node\": [\n");
 			//go through the edges first
 			first = true;
-			for(Node tnd: Traversal.description().relationships(RelType.CHILDOF, Direction.INCOMING).breadthFirst().traverse(rtnode).nodes()){
+			for(int i = 0; i < tree.size(); i++){
 				if (first){
 					sb.append("{\n");
 					first = false;
 				}else{
 					sb.append(",\n{\n");
 				}
-				sb.append("\"@id\": \"node"+String.valueOf(tnd.getId())+"\"");
-				if(tnd == rtnode){
+				sb.append("\"@id\": \"node"+String.valueOf(tree.getNodeId(i))+"\"");
+				if(i == 0){
 					sb.append(",\n\"@root\": \"true\"");
 				}
-				if(tnd.hasProperty("otu")){
-					sb.append(",\n\"@otu\": \"otu"+String.valueOf(tnd.getId())+"\"");
+				if(tree.hasOTU(i)){
+					sb.append(",\n\"@otu\": \"otu"+String.valueOf(tree.getNodeId(i))+"\"");
 				}
 				sb.append("}");
 			}
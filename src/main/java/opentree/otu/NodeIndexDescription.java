@@ -1,7 +1,8 @@
 package opentree.otu;
 
 /**
- * An enum to make keeping track of indexes easier. Please document new indexes here.
+ * An enum to make keeping track of indexes easier. Please document new indexes here. Identifier indexes should be
+ * EXACT, so that ids are never tokenized; indexes that are searched on parts of values should be FULLTEXT.
  * 
  * @author federation of botanist hackers
  *
@@ -19,41 +20,41 @@ public enum NodeIndexDescription {
      * indexed under "localTreeId" and trees read from the remote repo are indexed under "remoteTreeId". To get a list of all
      * known trees, search this index on the key "*" (returns independent results for local and remote trees).
 	 */
-    TREE_ROOT_NODES_BY_TREE_ID ("treeRootNodesByTreeId"),
+    TREE_ROOT_NODES_BY_TREE_ID ("treeRootNodesByTreeId", IndexType.EXACT, NodeType.TREE_ROOT),
         
     /**
      * Root nodes for both local and remote (i.e. not imported) trees, indexed by their originating source id. The property name
      * is either "localSourceId" or "remoteSourceId", and the key is the source id. In the case of nexsons this is the study id,
      * but for other sources (e.g. a file of newick trees, it could be any string that is a globally unique identifier to this database.
      */
-    TREE_ROOT_NODES_BY_SOURCE_ID ("treeRootNodesBySourceId"),
+    TREE_ROOT_NODES_BY_SOURCE_ID ("treeRootNodesBySourceId", IndexType.EXACT, NodeType.TREE_ROOT),
 
     /**
      * Root nodes for trees including a taxon with the supplied name. Property is "name", key is taxon name.
      */
-    TREE_ROOT_NODES_BY_ORIGINAL_TAXON_NAME ("treeRootNodesByOriginalTaxonName"),
+    TREE_ROOT_NODES_BY_ORIGINAL_TAXON_NAME ("treeRootNodesByOriginalTaxonName", IndexType.FULLTEXT, NodeType.TREE_ROOT),
 
     /**
      * Root nodes for trees including a taxon with the supplied name. Property is "name", key is taxon name.
      */
-    TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME ("treeRootNodesByMappedTaxonName"),
+    TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME ("treeRootNodesByMappedTaxonName", IndexType.FULLTEXT, NodeType.TREE_ROOT),
 
     /**
      * Root nodes for trees including a taxon with the supplied name. Spaces have been replaced with underscores
      * to facilitate whole-word matching. Property is "name", key is taxon name.
      */
-    TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED ("treeRootNodesByMappedTaxonNameWhitespaceFilled"),
+    TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED ("treeRootNodesByMappedTaxonNameWhitespaceFilled", IndexType.EXACT_LOWERCASE, NodeType.TREE_ROOT),
     
     /**
      * Root nodes for trees including a taxon with the supplied ott id. Property is "uid", key is ott id.
      */
-    TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID ("treeRootNodesByMappedTaxonMappedOTTId"),
+    TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID ("treeRootNodesByMappedTaxonMappedOTTId", IndexType.EXACT, NodeType.TREE_ROOT),
 
     /**
      * Root nodes for trees indexed by the specified ot namespace property. Property is the ot property name (e.g. "ot:curatorName")
      * and key is the value for that property (e.g. "Romina Gazis").
      */
-    TREE_ROOT_NODES_BY_OTHER_PROPERTY ("treeRootNodesByOTProperty"),
+    TREE_ROOT_NODES_BY_OTHER_PROPERTY ("treeRootNodesByOTProperty", IndexType.FULLTEXT, NodeType.TREE_ROOT),
     
     // ===== source indexes
 
@@ -61,14 +62,14 @@ public enum NodeIndexDescription {
      * Study metadata nodes indexed by the specified ot namespace properties. Property is the ot property name (e.g. "ot:curatorName")
      * and key is the value for that property (e.g. "Bryan Drew").
      */
-	SOURCE_METADATA_NODES_BY_OTHER_PROPERTY ("sourceMetaNodesByOTProperty"),
+	SOURCE_METADATA_NODES_BY_OTHER_PROPERTY ("sourceMetaNodesByOTProperty", IndexType.FULLTEXT, NodeType.SOURCE_META),
 
     /**
      * Source metadata nodes for both local and remote (i.e. not imported) sources, indexed by their originating source id.
      * Property is either "localSourceId" or "remoteSourceId", and key is the source id. In the case of nexsons this is study id,
      * but other cases (e.g. a file of newick trees uploaded locally), this could be any identifier string globally unique to the db.
      */
-    SOURCE_METADATA_NODES_BY_SOURCE_ID ("sourceMetaNodesBySourceId");
+    SOURCE_METADATA_NODES_BY_SOURCE_ID ("sourceMetaNodesBySourceId", IndexType.EXACT, NodeType.SOURCE_META);
 
     // ===== other indexes
     
@@ -81,7 +82,28 @@ public enum NodeIndexDescription {
     
     String name;
     
-    NodeIndexDescription(String name) {
+    /**
+     * The type of lucene index. Indexes in databases created before types were declared are all FULLTEXT; they are
+     * used as they are until they are rebuilt by the IndexMigration.
+     */
+    public final IndexType type;
+    
+    /**
+     * The kind of node held by the index, which is also the kind of node whose properties are searched through it.
+     */
+    public final NodeType nodeType;
+    
+    NodeIndexDescription(String name, IndexType type, NodeType nodeType) {
     	this.name = name;
+    	this.type = type;
+    	this.nodeType = nodeType;
+    }
+    
+    /**
+     * The kinds of nodes that are indexed.
+     */
+    public enum NodeType {
+    	TREE_ROOT,
+    	SOURCE_META;
     }
 }
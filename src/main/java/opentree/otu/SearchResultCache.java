@@ -0,0 +1,204 @@
+package opentree.otu;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+
+/**
+ * A bounded, least recently used cache of search and listing results, so that repeated identical requests (e.g. from
+ * the web UI when paging) do not go back to the indexes.
+ *
+ * Results are versioned by a write generation. The DatabaseManager starts a new generation after each of its write
+ * transactions finishes, and results from earlier generations are never returned. A result is stored with the
+ * generation that was current when it was computed, which is always earlier than the generation of any write that
+ * committed after the computation started.
+ *
+ * There is one cache per graph database; use getInstance to get it. Cached results are shared, and must not be
+ * modified.
+ */
+public class SearchResultCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	private static final Map<GraphDatabaseService, SearchResultCache> instances = new HashMap<GraphDatabaseService, SearchResultCache>();
+
+	private final AtomicLong generation = new AtomicLong();
+	private final LruMap entries = new LruMap();
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	// metrics, guarded by the cache lock
+	private long hits = 0;
+	private long misses = 0;
+	private long staleMisses = 0;
+	private long evictions = 0;
+
+	/**
+	 * A cached result and the generation it was computed in.
+	 */
+	private static class Entry {
+		final long generation;
+		final Object result;
+
+		Entry(long generation, Object result) {
+			this.generation = generation;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entry when the cache is full.
+	 */
+	private class LruMap extends LinkedHashMap<Object, Entry> {
+
+		private static final long serialVersionUID = 1L;
+
+		LruMap() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+			if (size() > maxEntries) {
+				evictions++;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private SearchResultCache() {}
+
+	/**
+	 * Get the cache for the graph database.
+	 * @param graphDb
+	 * @return
+	 */
+	public static synchronized SearchResultCache getInstance(final GraphDatabaseService graphDb) {
+		SearchResultCache cache = instances.get(graphDb);
+		if (cache == null) {
+			cache = new SearchResultCache();
+			instances.put(graphDb, cache);
+			graphDb.registerKernelEventHandler(new KernelEventHandler() {
+
+				@Override
+				public void beforeShutdown() {
+					synchronized (SearchResultCache.class) {
+						instances.remove(graphDb);
+					}
+				}
+
+				@Override
+				public Object getResource() {
+					return null;
+				}
+
+				@Override
+				public void kernelPanic(ErrorState error) {
+				}
+
+				@Override
+				public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+					return ExecutionOrder.DOESNT_MATTER;
+				}
+			});
+		}
+		return cache;
+	}
+
+	/**
+	 * Get the current write generation. Callers that compute a result should get the generation before they start, and
+	 * pass it to put() along with the result.
+	 * @return
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Start a new write generation, so that all the results cached so far are no longer returned. Must be called after
+	 * every write that could change a cached result has finished.
+	 */
+	public void newGeneration() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * Get the cached result for a key, or null if there is none from the current generation.
+	 * @param key
+	 * 		An object with value equality, identifying the method and its arguments
+	 * @return
+	 */
+	public synchronized Object get(Object key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		if (entry.generation != generation.get()) {
+			entries.remove(key);
+			staleMisses++;
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.result;
+	}
+
+	/**
+	 * Cache a result.
+	 * @param key
+	 * @param generation
+	 * 		The generation that was current when the computation of the result started
+	 * @param result
+	 */
+	public synchronized void put(Object key, long generation, Object result) {
+		if (generation == this.generation.get()) {
+			entries.put(key, new Entry(generation, result));
+		}
+	}
+
+	/**
+	 * Set the maximum number of results to cache, evicting the least recently used results if there are more.
+	 * @param maxEntries
+	 */
+	public synchronized void setMaxEntries(int maxEntries) {
+		if (maxEntries < 0) {
+			throw new IllegalArgumentException("The maximum number of entries must not be negative");
+		}
+		this.maxEntries = maxEntries;
+		Iterator<Object> keyIter = entries.keySet().iterator();
+		while (entries.size() > maxEntries) {
+			keyIter.next();
+			keyIter.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Get the cache size and hit/miss counts.
+	 * @return
+	 */
+	public synchronized Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("size", entries.size());
+		stats.put("max_entries", maxEntries);
+		stats.put("generation", generation.get());
+		stats.put("hits", hits);
+		stats.put("misses", misses);
+		stats.put("stale_misses", staleMisses);
+		stats.put("evictions", evictions);
+		long lookups = hits + misses;
+		stats.put("hit_rate", lookups == 0 ? 0.0 : (double) hits / lookups);
+		return stats;
+	}
+}
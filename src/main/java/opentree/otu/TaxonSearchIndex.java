@@ -0,0 +1,611 @@
+package opentree.otu;
+
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jade.tree.InternPool;
+
+import opentree.otu.constants.NodeProperty;
+import opentree.otu.constants.SearchableProperty;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.index.IndexHits;
+
+/**
+ * A resident inverted index from taxon names and ott ids to the trees that contain them, used to answer exact taxon
+ * searches without going through lucene or loading the tree root nodes. It holds the same information as the lucene
+ * taxonomic indexes, taken from the tip taxon array properties of the tree roots. Names are matched without regard to case.
+ *
+ * There is one index per graph database; use getInstance to get it. It is built from the indexed tree roots the first
+ * time it is requested, which happens when the first DatabaseIndexer is created (i.e. on the first service call after
+ * the server starts). After that it is kept up to date by the DatabaseIndexer: trees that are added to or removed from
+ * the lucene indexes are marked as changed, and their entries are updated from their committed state when the
+ * transaction commits. Changes in transactions that roll back are never applied.
+ *
+ * Fuzzy searches on taxon names are answered from the words of the names, which are held in trigram indexes. These are
+ * the terms that the fulltext lucene indexes contain, so fuzzy searches match the same trees as a lucene FuzzyQuery.
+ *
+ * Trees with similar sets of taxa are found from the TaxonSketch of each tree's ott ids, which are kept in locality
+ * sensitive hash buckets so that only trees sharing a bucket with the query tree are compared to it.
+ */
+public class TaxonSearchIndex {
+
+	private static final Map<GraphDatabaseService, TaxonSearchIndex> instances = new HashMap<GraphDatabaseService, TaxonSearchIndex>();
+
+	private final GraphDatabaseService graphDb;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// the tree roots marked as changed by the current thread's transaction
+	private final ThreadLocal<TLongHashSet> changedRoots = new ThreadLocal<TLongHashSet>() {
+		@Override
+		protected TLongHashSet initialValue() {
+			return new TLongHashSet();
+		}
+	};
+
+	// the entries for each tree root, by root node id
+	private final TLongObjectHashMap<TreeEntry> trees = new TLongObjectHashMap<TreeEntry>();
+
+	// the inverted indexes, from lowercased names and ott ids to tree root node ids
+	private final THashMap<String, TLongHashSet> rootsByOriginalName = new THashMap<String, TLongHashSet>();
+	private final THashMap<String, TLongHashSet> rootsByMappedName = new THashMap<String, TLongHashSet>();
+	private final TLongObjectHashMap<TLongHashSet> rootsByOttId = new TLongObjectHashMap<TLongHashSet>();
+
+	// the words of the lowercased names, for fuzzy searches
+	private final THashMap<String, TLongHashSet> rootsByOriginalNameWord = new THashMap<String, TLongHashSet>();
+	private final THashMap<String, TLongHashSet> rootsByMappedNameWord = new THashMap<String, TLongHashSet>();
+	private final TrigramIndex originalNameWords = new TrigramIndex();
+	private final TrigramIndex mappedNameWords = new TrigramIndex();
+
+	// the tree roots in each locality sensitive hash bucket of the ott id sketches
+	private final TLongObjectHashMap<TLongHashSet> rootsBySketchBand = new TLongObjectHashMap<TLongHashSet>();
+
+	// many trees share names and source ids
+	private final InternPool strings = new InternPool();
+
+	/**
+	 * The indexed values for a single tree, kept so the tree can be removed from the inverted indexes.
+	 */
+	private static class TreeEntry {
+		final String treeId;
+		final String sourceId;
+		final String[] originalNames;
+		final String[] mappedNames;
+		final long[] ottIds;
+		final int[] sketch;
+
+		TreeEntry(String treeId, String sourceId, String[] originalNames, String[] mappedNames, long[] ottIds, int[] sketch) {
+			this.treeId = treeId;
+			this.sourceId = sourceId;
+			this.originalNames = originalNames;
+			this.mappedNames = mappedNames;
+			this.ottIds = ottIds;
+			this.sketch = sketch;
+		}
+	}
+
+	private TaxonSearchIndex(GraphDatabaseService graphDb) {
+		this.graphDb = graphDb;
+	}
+
+	/**
+	 * Get the index for the graph database, building it if necessary.
+	 * @param graphDb
+	 * @return
+	 */
+	public static synchronized TaxonSearchIndex getInstance(GraphDatabaseService graphDb) {
+		TaxonSearchIndex index = instances.get(graphDb);
+		if (index == null) {
+			index = new TaxonSearchIndex(graphDb);
+			instances.put(graphDb, index);
+			index.registerHandlers();
+			index.rebuild();
+		}
+		return index;
+	}
+
+	/**
+	 * Return true if the index can answer exact searches on the property.
+	 * @param property
+	 * @return
+	 */
+	public static boolean supports(SearchableProperty property) {
+		return property == SearchableProperty.DESCENDANT_ORIGINAL_TAXON_NAMES
+				|| property == SearchableProperty.DESCENDANT_MAPPED_TAXON_NAMES
+				|| property == SearchableProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS;
+	}
+
+	/**
+	 * Return true if the index can answer fuzzy searches on the property.
+	 * @param property
+	 * @return
+	 */
+	public static boolean supportsFuzzy(SearchableProperty property) {
+		return property == SearchableProperty.DESCENDANT_ORIGINAL_TAXON_NAMES
+				|| property == SearchableProperty.DESCENDANT_MAPPED_TAXON_NAMES;
+	}
+
+	/**
+	 * Mark a tree root as changed in the current transaction, so that its entry will be updated when the transaction
+	 * commits. Called by the DatabaseIndexer whenever it adds or removes a tree root.
+	 * @param root
+	 */
+	void treeRootChanged(Node root) {
+		changedRoots.get().add(root.getId());
+	}
+
+	// ===== searching
+
+	/**
+	 * Get the node ids of the roots of the trees containing a taxon that exactly matches `value`.
+	 * @param property
+	 * 		One of the properties for which supports() returns true
+	 * @param value
+	 * @return
+	 * 		the matching tree root node ids, in no particular order
+	 */
+	public long[] getTreeRootIds(SearchableProperty property, String value) {
+		lock.readLock().lock();
+		try {
+			TLongHashSet roots = getRoots(property, value);
+			return roots == null ? new long[0] : roots.toArray();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the ids of the sources with trees containing a taxon that exactly matches `value`.
+	 * @param property
+	 * 		One of the properties for which supports() returns true
+	 * @param value
+	 * @return
+	 */
+	public Set<String> getSourceIds(SearchableProperty property, String value) {
+		Set<String> sourceIds = new HashSet<String>();
+		lock.readLock().lock();
+		try {
+			TLongHashSet roots = getRoots(property, value);
+			if (roots != null) {
+				for (TLongIterator rootIter = roots.iterator(); rootIter.hasNext();) {
+					sourceIds.add(trees.get(rootIter.next()).sourceId);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return sourceIds;
+	}
+
+	/**
+	 * Get the ids of the sources with trees containing a taxon name with a word that matches `text` with a similarity
+	 * greater than `minSimilarity`, as a lucene FuzzyQuery on the fulltext taxon name index would.
+	 * @param property
+	 * 		One of the properties for which supportsFuzzy() returns true
+	 * @param text
+	 * 		The search term. As in lucene, this is compared to the lowercased words as it is.
+	 * @param minSimilarity
+	 * @return
+	 */
+	public Set<String> getFuzzySourceIds(SearchableProperty property, String text, float minSimilarity) {
+		THashMap<String, TLongHashSet> rootsByWord;
+		TrigramIndex words;
+		if (property == SearchableProperty.DESCENDANT_ORIGINAL_TAXON_NAMES) {
+			rootsByWord = rootsByOriginalNameWord;
+			words = originalNameWords;
+		} else if (property == SearchableProperty.DESCENDANT_MAPPED_TAXON_NAMES) {
+			rootsByWord = rootsByMappedNameWord;
+			words = mappedNameWords;
+		} else {
+			throw new IllegalArgumentException("The taxon search index cannot do fuzzy searches on " + property);
+		}
+
+		Set<String> sourceIds = new HashSet<String>();
+		lock.readLock().lock();
+		try {
+			for (String word : words.getFuzzyMatches(text, minSimilarity)) {
+				for (TLongIterator rootIter = rootsByWord.get(word).iterator(); rootIter.hasNext();) {
+					sourceIds.add(trees.get(rootIter.next()).sourceId);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return sourceIds;
+	}
+
+	/**
+	 * Get the trees whose sets of mapped ott ids are most similar to those of the tree with the given root, by estimated
+	 * Jaccard similarity. Only trees that share a sketch bucket with the tree are considered, so trees with a similarity
+	 * below about 0.1 are usually not found (see TaxonSketch).
+	 * @param root
+	 * 		The root of the query tree, which is not included in the results
+	 * @param limit
+	 * 		The maximum number of trees to return
+	 * @return
+	 * 		a map for each similar tree containing its `tree_id`, `source_id` and estimated `similarity`, most similar first
+	 */
+	public List<Map<String, Object>> getSimilarTrees(Node root, int limit) {
+
+		List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+		int[] sketch = readSketch(root, (long[]) root.getProperty(NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.name, new long[0]));
+		if (sketch == null || limit <= 0) {
+			return results;
+		}
+
+		// the most similar trees seen so far, least similar at the head
+		PriorityQueue<SimilarTree> best = new PriorityQueue<SimilarTree>(limit + 1);
+
+		lock.readLock().lock();
+		try {
+			TLongHashSet candidates = new TLongHashSet();
+			for (long key : TaxonSketch.getBandKeys(sketch)) {
+				TLongHashSet roots = rootsBySketchBand.get(key);
+				if (roots != null) {
+					candidates.addAll(roots);
+				}
+			}
+			candidates.remove(root.getId());
+
+			for (TLongIterator rootIter = candidates.iterator(); rootIter.hasNext();) {
+				TreeEntry entry = trees.get(rootIter.next());
+				float similarity = TaxonSketch.estimateSimilarity(sketch, entry.sketch);
+				if (best.size() < limit) {
+					best.add(new SimilarTree(entry, similarity));
+				} else if (similarity > best.peek().similarity) {
+					best.poll();
+					best.add(new SimilarTree(entry, similarity));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		while (!best.isEmpty()) {
+			SimilarTree similar = best.poll();
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("tree_id", similar.entry.treeId);
+			result.put("source_id", similar.entry.sourceId);
+			result.put("similarity", similar.similarity);
+			results.add(0, result);
+		}
+		return results;
+	}
+
+	public int getTreeCount() {
+		lock.readLock().lock();
+		try {
+			return trees.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Discard the index and build it again from the tree roots in the lucene tree id index.
+	 */
+	public void rebuild() {
+		lock.writeLock().lock();
+		try {
+			trees.clear();
+			rootsByOriginalName.clear();
+			rootsByMappedName.clear();
+			rootsByOttId.clear();
+			rootsByOriginalNameWord.clear();
+			rootsByMappedNameWord.clear();
+			originalNameWords.clear();
+			mappedNameWords.clear();
+			rootsBySketchBand.clear();
+
+			IndexHits<Node> hits = new GraphDatabaseAgent(graphDb).getNodeIndex(NodeIndexDescription.TREE_ROOT_NODES_BY_TREE_ID).query("*:*");
+			try {
+				for (Node root : hits) {
+					if (isIndexedRoot(root)) {
+						add(root.getId(), readEntry(root));
+					}
+				}
+			} finally {
+				hits.close();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// ===== private methods
+
+	private TLongHashSet getRoots(SearchableProperty property, String value) {
+		if (property == SearchableProperty.DESCENDANT_ORIGINAL_TAXON_NAMES) {
+			return rootsByOriginalName.get(value.toLowerCase());
+		} else if (property == SearchableProperty.DESCENDANT_MAPPED_TAXON_NAMES) {
+			return rootsByMappedName.get(value.toLowerCase());
+		} else if (property == SearchableProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS) {
+			try {
+				return rootsByOttId.get(Long.parseLong(value.trim()));
+			} catch (NumberFormatException ex) {
+				return null;
+			}
+		}
+		throw new IllegalArgumentException("The taxon search index cannot search on " + property);
+	}
+
+	/**
+	 * Trees are in the lucene indexes once they have been completely written.
+	 */
+	private static boolean isIndexedRoot(Node node) {
+		return node.hasProperty(NodeProperty.IS_ROOT.name) && !node.hasProperty(NodeProperty.IMPORT_IN_PROGRESS.name);
+	}
+
+	private TreeEntry readEntry(Node root) {
+		long[] ottIds = (long[]) root.getProperty(NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.name, new long[0]);
+		return new TreeEntry((String) root.getProperty(NodeProperty.TREE_ID.name, null),
+				strings.intern((String) root.getProperty(NodeProperty.SOURCE_ID.name)),
+				lowerCase((String[]) root.getProperty(NodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.name, new String[0])),
+				lowerCase((String[]) root.getProperty(NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.name, new String[0])),
+				ottIds,
+				readSketch(root, ottIds));
+	}
+
+	/**
+	 * Get the stored sketch of a tree, computing it for trees imported before sketches were stored.
+	 */
+	private static int[] readSketch(Node root, long[] ottIds) {
+		if (root.hasProperty(NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_ID_SKETCH.name)) {
+			return (int[]) root.getProperty(NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_ID_SKETCH.name);
+		}
+		return TaxonSketch.compute(ottIds);
+	}
+
+	/**
+	 * A tree and its estimated similarity to a query tree, ordered by similarity.
+	 */
+	private static class SimilarTree implements Comparable<SimilarTree> {
+		final TreeEntry entry;
+		final float similarity;
+
+		SimilarTree(TreeEntry entry, float similarity) {
+			this.entry = entry;
+			this.similarity = similarity;
+		}
+
+		@Override
+		public int compareTo(SimilarTree other) {
+			return Float.compare(similarity, other.similarity);
+		}
+	}
+
+	private String[] lowerCase(String[] names) {
+		String[] lower = new String[names.length];
+		for (int i = 0; i < names.length; i++) {
+			lower[i] = strings.intern(names[i].toLowerCase());
+		}
+		return lower;
+	}
+
+	/**
+	 * Add a tree, replacing any existing entry. Callers must hold the write lock.
+	 */
+	private void add(long rootId, TreeEntry entry) {
+		remove(rootId);
+		trees.put(rootId, entry);
+		for (String name : entry.originalNames) {
+			addRoot(rootsByOriginalName, name, rootId);
+			for (String word : words(name)) {
+				if (addRoot(rootsByOriginalNameWord, word, rootId)) {
+					originalNameWords.add(word);
+				}
+			}
+		}
+		for (String name : entry.mappedNames) {
+			addRoot(rootsByMappedName, name, rootId);
+			for (String word : words(name)) {
+				if (addRoot(rootsByMappedNameWord, word, rootId)) {
+					mappedNameWords.add(word);
+				}
+			}
+		}
+		for (long ottId : entry.ottIds) {
+			addRoot(rootsByOttId, ottId, rootId);
+		}
+		if (entry.sketch != null) {
+			for (long key : TaxonSketch.getBandKeys(entry.sketch)) {
+				addRoot(rootsBySketchBand, key, rootId);
+			}
+		}
+	}
+
+	/**
+	 * Remove a tree if it is present. Callers must hold the write lock.
+	 */
+	private void remove(long rootId) {
+		TreeEntry entry = trees.remove(rootId);
+		if (entry == null) {
+			return;
+		}
+		for (String name : entry.originalNames) {
+			removeRoot(rootsByOriginalName, name, rootId);
+			for (String word : words(name)) {
+				if (removeRoot(rootsByOriginalNameWord, word, rootId)) {
+					originalNameWords.remove(word);
+				}
+			}
+		}
+		for (String name : entry.mappedNames) {
+			removeRoot(rootsByMappedName, name, rootId);
+			for (String word : words(name)) {
+				if (removeRoot(rootsByMappedNameWord, word, rootId)) {
+					mappedNameWords.remove(word);
+				}
+			}
+		}
+		for (long ottId : entry.ottIds) {
+			removeRoot(rootsByOttId, ottId, rootId);
+		}
+		if (entry.sketch != null) {
+			for (long key : TaxonSketch.getBandKeys(entry.sketch)) {
+				removeRoot(rootsBySketchBand, key, rootId);
+			}
+		}
+	}
+
+	/**
+	 * Add a root to the set for the key. Returns true if the key was not in the index before.
+	 */
+	private static boolean addRoot(THashMap<String, TLongHashSet> index, String key, long rootId) {
+		TLongHashSet roots = index.get(key);
+		boolean added = roots == null;
+		if (added) {
+			roots = new TLongHashSet(4);
+			index.put(key, roots);
+		}
+		roots.add(rootId);
+		return added;
+	}
+
+	/**
+	 * Remove a root from the set for the key. Returns true if the key is no longer in the index.
+	 */
+	private static boolean removeRoot(THashMap<String, TLongHashSet> index, String key, long rootId) {
+		TLongHashSet roots = index.get(key);
+		if (roots != null && roots.remove(rootId) && roots.isEmpty()) {
+			index.remove(key);
+			return true;
+		}
+		return false;
+	}
+
+	private static void addRoot(TLongObjectHashMap<TLongHashSet> index, long key, long rootId) {
+		TLongHashSet roots = index.get(key);
+		if (roots == null) {
+			roots = new TLongHashSet(4);
+			index.put(key, roots);
+		}
+		roots.add(rootId);
+	}
+
+	private static void removeRoot(TLongObjectHashMap<TLongHashSet> index, long key, long rootId) {
+		TLongHashSet roots = index.get(key);
+		if (roots != null && roots.remove(rootId) && roots.isEmpty()) {
+			index.remove(key);
+		}
+	}
+
+	/**
+	 * Split a lowercased name into words at whitespace, as the fulltext lucene indexes do.
+	 */
+	private List<String> words(String name) {
+		List<String> words = new ArrayList<String>(2);
+		int start = -1;
+		for (int i = 0; i <= name.length(); i++) {
+			boolean space = i == name.length() || Character.isWhitespace(name.charAt(i));
+			if (space && start >= 0) {
+				words.add(strings.intern(name.substring(start, i)));
+				start = -1;
+			} else if (!space && start < 0) {
+				start = i;
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Read the state of the changed tree roots as the transaction commits, and apply it once the commit has succeeded.
+	 * Also forget the index when the database shuts down.
+	 */
+	private void registerHandlers() {
+
+		graphDb.registerTransactionEventHandler(new TransactionEventHandler<Map<Long, TreeEntry>>() {
+
+			@Override
+			public Map<Long, TreeEntry> beforeCommit(TransactionData data) {
+				TLongHashSet changed = changedRoots.get();
+				if (changed.isEmpty()) {
+					return null;
+				}
+				// a null entry means the tree is no longer indexed
+				Map<Long, TreeEntry> updates = new HashMap<Long, TreeEntry>();
+				for (TLongIterator rootIter = changed.iterator(); rootIter.hasNext();) {
+					long rootId = rootIter.next();
+					TreeEntry entry = null;
+					try {
+						Node root = graphDb.getNodeById(rootId);
+						if (!data.isDeleted(root) && isIndexedRoot(root)) {
+							entry = readEntry(root);
+						}
+					} catch (NotFoundException ex) {
+						// deleted in an earlier transaction that did not commit through this handler
+					}
+					updates.put(rootId, entry);
+				}
+				changed.clear();
+				return updates;
+			}
+
+			@Override
+			public void afterCommit(TransactionData data, Map<Long, TreeEntry> updates) {
+				if (updates == null) {
+					return;
+				}
+				lock.writeLock().lock();
+				try {
+					for (Map.Entry<Long, TreeEntry> update : updates.entrySet()) {
+						if (update.getValue() == null) {
+							remove(update.getKey());
+						} else {
+							add(update.getKey(), update.getValue());
+						}
+					}
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+
+			@Override
+			public void afterRollback(TransactionData data, Map<Long, TreeEntry> updates) {
+				changedRoots.get().clear();
+			}
+		});
+
+		graphDb.registerKernelEventHandler(new KernelEventHandler() {
+
+			@Override
+			public void beforeShutdown() {
+				synchronized (TaxonSearchIndex.class) {
+					instances.remove(graphDb);
+				}
+			}
+
+			@Override
+			public Object getResource() {
+				return null;
+			}
+
+			@Override
+			public void kernelPanic(ErrorState error) {
+			}
+
+			@Override
+			public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+				return ExecutionOrder.DOESNT_MATTER;
+			}
+		});
+	}
+}
@@ -0,0 +1,100 @@
+package opentree.otu;
+
+/**
+ * MinHash sketches of the sets of ott ids mapped to the tips of trees. The fraction of positions at which the sketches
+ * of two trees agree estimates the Jaccard similarity of their taxon sets (the number of shared taxa over the number of
+ * taxa in either tree), with a standard error of at most 1 / (2 * sqrt(SIZE)), about 0.045.
+ *
+ * For locality sensitive hashing the sketch is divided into BANDS bands of ROWS values. Trees whose sketches are equal
+ * in any band are candidates for being similar. A pair of trees with similarity s is found with probability
+ * 1 - (1 - s^ROWS)^BANDS, which is over 0.99 for s = 0.25 and about 0.5 for s = 0.1.
+ */
+public final class TaxonSketch {
+
+	public static final int SIZE = 128;
+	public static final int ROWS = 2;
+	public static final int BANDS = SIZE / ROWS;
+
+	// one seed per hash function
+	private static final long[] SEEDS = new long[SIZE];
+	static {
+		long seed = 0x2545F4914F6CDD1DL;
+		for (int i = 0; i < SIZE; i++) {
+			seed = mix(seed + 0x9E3779B97F4A7C15L);
+			SEEDS[i] = seed;
+		}
+	}
+
+	private TaxonSketch() {}
+
+	/**
+	 * Compute the sketch of a set of ott ids. Repeated ids do not change the sketch.
+	 * @param ottIds
+	 * @return
+	 * 		the sketch, or null if there are no ott ids
+	 */
+	public static int[] compute(long[] ottIds) {
+		if (ottIds.length == 0) {
+			return null;
+		}
+		int[] sketch = new int[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			sketch[i] = Integer.MAX_VALUE;
+		}
+		for (long ottId : ottIds) {
+			for (int i = 0; i < SIZE; i++) {
+				int h = (int) (mix(ottId ^ SEEDS[i]) >>> 33);
+				if (h < sketch[i]) {
+					sketch[i] = h;
+				}
+			}
+		}
+		return sketch;
+	}
+
+	/**
+	 * Estimate the Jaccard similarity of the taxon sets of two sketches.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static float estimateSimilarity(int[] a, int[] b) {
+		int equal = 0;
+		for (int i = 0; i < SIZE; i++) {
+			if (a[i] == b[i]) {
+				equal++;
+			}
+		}
+		return (float) equal / SIZE;
+	}
+
+	/**
+	 * Get the bucket key for each band of a sketch. Keys include the band number, so keys for different bands can be
+	 * kept in one table.
+	 * @param sketch
+	 * @return
+	 */
+	public static long[] getBandKeys(int[] sketch) {
+		long[] keys = new long[BANDS];
+		for (int band = 0; band < BANDS; band++) {
+			long key = band;
+			for (int row = 0; row < ROWS; row++) {
+				key = mix(key * 31 + sketch[band * ROWS + row]);
+			}
+			keys[band] = key;
+		}
+		return keys;
+	}
+
+	/**
+	 * The murmur3 64 bit finalizer.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
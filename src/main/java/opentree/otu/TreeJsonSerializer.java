@@ -0,0 +1,190 @@
+package opentree.otu;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import opentree.otu.constants.NodeProperty;
+
+/**
+ * Writes the JSON used by the tree viewer for the part of a tree below a node, from the tree's snapshot. The output is
+ * that of JadeNode.getJSON on the tree returned by DatabaseBrowser.getTreeFromNode, with the subtree tip count, node
+ * count and maximum depth of each node added so that the viewer can decide which subtrees to collapse without further
+ * requests. Unlike getJSON, the tree is walked with an explicit stack instead of recursion and each node is appended to
+ * the output as it is reached, so deep trees cannot overflow the stack and no JadeTree or per-subtree strings are built.
+ *
+ * As with getTreeFromNode, the tree is cut off once the breadth-first traversal from the node has included more than
+ * `maxNodes` tips; nodes with children that were cut off are marked "notcomplete". Up to BREADCRUMB_DEPTH ancestors of
+ * the node are written above it, so the viewer can move back up the tree.
+ */
+public class TreeJsonSerializer {
+
+	public static final int BREADCRUMB_DEPTH = 5;
+
+	private final TreeSnapshot tree;
+	private final int root;
+	private final TIntHashSet included;
+
+	/**
+	 * A node that is being written. Its included children are the ones from its first child up to `end`.
+	 */
+	private static class Frame {
+		final int node;
+		final int end;
+		int next;
+
+		Frame(int node, int next, int end) {
+			this.node = node;
+			this.next = next;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * @param tree
+	 * 		The snapshot of the tree
+	 * @param root
+	 * 		The index in the snapshot of the node to be written as the root of the tree (can be used to write subtrees as well)
+	 * @param maxNodes
+	 * 		The number of tips after which the tree is cut off
+	 */
+	public TreeJsonSerializer(TreeSnapshot tree, int root, int maxNodes) {
+		this.tree = tree;
+		this.root = root;
+		this.included = findIncludedNodes(tree, root, maxNodes);
+	}
+
+	/**
+	 * Write the tree JSON.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(Appendable out) throws IOException {
+
+		// the breadcrumb ancestors, from the outermost in
+		TIntArrayList ancestors = new TIntArrayList();
+		int cur = tree.getParent(root);
+		while (ancestors.size() < BREADCRUMB_DEPTH && cur >= 0) {
+			ancestors.insert(0, cur);
+			cur = tree.getParent(cur);
+		}
+		for (int i = 0; i < ancestors.size(); i++) {
+			writeName(ancestors.get(i), out);
+			out.append("\n, \"children\": [\n");
+		}
+
+		// write the tree depth first, writing each node's opening as it is entered and its closing once its children are done
+		LinkedList<Frame> stack = new LinkedList<Frame>();
+		stack.push(enter(root, out));
+		while (!stack.isEmpty()) {
+			Frame frame = stack.peek();
+			int first = tree.getFirstChild(frame.node);
+			if (frame.next < frame.end) {
+				if (frame.next > first) {
+					out.append(",\n");
+				}
+				stack.push(enter(frame.next++, out));
+			} else {
+				stack.pop();
+				if (frame.end > first) {
+					out.append("]\n");
+				}
+				if (tree.getChildCount(frame.node) > frame.end - first) {
+					out.append(", \"notcomplete\": 1");
+				}
+				writeIdAndSizes(frame.node, out);
+				if (tree.isWithinIngroup(frame.node)) {
+					out.append(", \"ingroup\": 1");
+				}
+				out.append("}");
+			}
+		}
+
+		for (int i = ancestors.size() - 1; i >= 0; i--) {
+			out.append("]\n");
+			writeIdAndSizes(ancestors.get(i), out);
+			out.append("}");
+		}
+	}
+
+	/**
+	 * Write the tree JSON to a string.
+	 * @return
+	 */
+	public String toJSON() {
+		StringBuilder sb = new StringBuilder();
+		try {
+			write(sb);
+		} catch (IOException ex) {
+			// StringBuilder does not throw IOExceptions
+			throw new RuntimeException(ex);
+		}
+		return sb.toString();
+	}
+
+	// ===== private methods
+
+	/**
+	 * Write the opening of a node. The included children of a node are always the first of its children, since they
+	 * are included in breadth first order.
+	 */
+	private Frame enter(int node, Appendable out) throws IOException {
+		int first = tree.getFirstChild(node);
+		int end = first;
+		while (end < first + tree.getChildCount(node) && included.contains(end)) {
+			end++;
+		}
+
+		writeName(node, out);
+		if (end > first) {
+			out.append("\n, \"children\": [\n");
+		}
+		return new Frame(node, first, end);
+	}
+
+	private void writeName(int node, Appendable out) throws IOException {
+		out.append("{ \"name\": \"");
+		if (tree.getName(node) != null) {
+			out.append(GeneralUtils.cleanName(tree.getName(node)));
+		}
+		out.append("\"");
+	}
+
+	private void writeIdAndSizes(int node, Appendable out) throws IOException {
+		out.append(", \"id\":").append(String.valueOf(tree.getNodeId(node)));
+		out.append(", \"").append(NodeProperty.SUBTREE_TIP_COUNT.name).append("\":").append(String.valueOf(tree.getTipCount(node)));
+		out.append(", \"").append(NodeProperty.SUBTREE_NODE_COUNT.name).append("\":").append(String.valueOf(tree.getNodeCount(node)));
+		out.append(", \"").append(NodeProperty.SUBTREE_MAX_DEPTH.name).append("\":").append(String.valueOf(tree.getMaxDepth(node)));
+	}
+
+	/**
+	 * Get the indexes of the nodes that are written, using the same cutoff as DatabaseBrowser.getTreeFromNode: nodes are
+	 * included in breadth first order until more than `maxNodes` of the included nodes are tips (of the included part)
+	 * and more than one node has included children.
+	 */
+	private static TIntHashSet findIncludedNodes(TreeSnapshot tree, int root, int maxNodes) {
+		TIntHashSet included = new TIntHashSet();
+		TIntHashSet tips = new TIntHashSet();
+		TIntHashSet parents = new TIntHashSet();
+		TIntArrayList queue = new TIntArrayList();
+		queue.add(root);
+		for (int head = 0; head < queue.size(); head++) {
+			if (tips.size() > maxNodes && parents.size() > 1) {
+				break;
+			}
+			int node = queue.get(head);
+			if (node != root) {
+				tips.remove(tree.getParent(node));
+				parents.add(tree.getParent(node));
+			}
+			tips.add(node);
+			included.add(node);
+			for (int child = tree.getFirstChild(node); child < tree.getFirstChild(node) + tree.getChildCount(node); child++) {
+				queue.add(child);
+			}
+		}
+		return included;
+	}
+}
@@ -0,0 +1,369 @@
+package opentree.otu;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import jade.tree.InternPool;
+import jade.tree.MRCAIndex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import opentree.otu.constants.NodeProperty;
+import opentree.otu.constants.RelType;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * An immutable copy of the structure of a tree, held in primitive arrays so that the tree can be read repeatedly
+ * without going back to the graph. Nodes are numbered from 0 (the root) in breadth first order, with the children of
+ * each node in the order the graph returns its CHILDOF relationships, so the children of a node are numbered
+ * consecutively and reading the snapshot in index order visits the nodes in the same order as a breadth first traversal
+ * of the graph.
+ *
+ * The subtree tip count, node count and maximum depth of each node, and the preorder positions of the nodes, are
+ * computed from the snapshot itself rather than read from the stored properties, so they are available for trees
+ * imported before those were stored. As in the graph, the subtree below a node is the interval of preorder positions
+ * from the node's own up to its position plus its node count, so subtree membership is a range check and the nodes of a
+ * subtree can be read off in order.
+ *
+ * The MRCA index and the lookup of tips by name are built from the snapshot the first time they are needed, so that
+ * trees that are only viewed do not pay for them.
+ *
+ * Snapshots are shared through the TreeSnapshotCache; use that to get them.
+ */
+public final class TreeSnapshot {
+
+	private final long[] nodeIds;
+	private final long[] edgeIds;
+	private final int[] parents;
+	private final int[] childOffsets;
+	private final String[] names;
+	private final int[] tipCounts;
+	private final int[] nodeCounts;
+	private final int[] maxDepths;
+	private final int[] preorderPositions;
+	private final int[] nodesInPreorder;
+	private final BitSet ingroup; // by preorder position
+	private final BitSet otus;
+	private final TLongIntHashMap indexesByNodeId;
+	private final TLongIntHashMap tipsByOttId;
+
+	// built on first use
+	private volatile MRCAIndex mrcaIndex;
+	private volatile Map<String, Integer> tipsByName;
+
+	private TreeSnapshot(int size) {
+		nodeIds = new long[size];
+		edgeIds = new long[size];
+		parents = new int[size];
+		childOffsets = new int[size + 1];
+		names = new String[size];
+		tipCounts = new int[size];
+		nodeCounts = new int[size];
+		maxDepths = new int[size];
+		preorderPositions = new int[size];
+		nodesInPreorder = new int[size];
+		ingroup = new BitSet(size);
+		otus = new BitSet(size);
+		indexesByNodeId = new TLongIntHashMap(size, 0.5f, -1L, -1);
+		tipsByOttId = new TLongIntHashMap(16, 0.5f, -1L, -1);
+	}
+
+	/**
+	 * Read a tree from the graph.
+	 * @param root
+	 * 		The root node of the tree
+	 * @param namePool
+	 * 		The pool the node names are interned in
+	 * @return
+	 */
+	public static TreeSnapshot build(Node root, InternPool namePool) {
+
+		List<Node> nodes = new ArrayList<Node>();
+		TLongArrayList edgeIds = new TLongArrayList();
+		TIntArrayList parents = new TIntArrayList();
+		TIntArrayList childOffsets = new TIntArrayList();
+
+		nodes.add(root);
+		edgeIds.add(-1);
+		parents.add(-1);
+		for (int i = 0; i < nodes.size(); i++) {
+			childOffsets.add(nodes.size());
+			for (Relationship rel : nodes.get(i).getRelationships(Direction.INCOMING, RelType.CHILDOF)) {
+				nodes.add(rel.getStartNode());
+				edgeIds.add(rel.getId());
+				parents.add(i);
+			}
+		}
+		childOffsets.add(nodes.size());
+
+		TreeSnapshot tree = new TreeSnapshot(nodes.size());
+		edgeIds.toArray(tree.edgeIds);
+		parents.toArray(tree.parents);
+		childOffsets.toArray(tree.childOffsets);
+		for (int i = 0; i < nodes.size(); i++) {
+			Node node = nodes.get(i);
+			tree.nodeIds[i] = node.getId();
+			tree.indexesByNodeId.put(node.getId(), i);
+			if (node.hasProperty(NodeProperty.NAME.name)) {
+				tree.names[i] = namePool.intern(String.valueOf(node.getProperty(NodeProperty.NAME.name)));
+			}
+			if (node.hasProperty("otu")) {
+				tree.otus.set(i);
+			}
+			Object ottId = node.getProperty(NodeProperty.OT_OTT_ID.name, null);
+			if (ottId instanceof Number && tree.getChildCount(i) == 0 && !tree.tipsByOttId.containsKey(((Number) ottId).longValue())) {
+				tree.tipsByOttId.put(((Number) ottId).longValue(), i);
+			}
+		}
+
+		// children come after their parents, so in reverse every node's children are done first
+		for (int i = tree.size() - 1; i >= 0; i--) {
+			if (tree.getChildCount(i) == 0) {
+				tree.tipCounts[i] = 1;
+			}
+			tree.nodeCounts[i]++;
+			int parent = tree.parents[i];
+			if (parent >= 0) {
+				tree.tipCounts[parent] += tree.tipCounts[i];
+				tree.nodeCounts[parent] += tree.nodeCounts[i];
+				tree.maxDepths[parent] = Math.max(tree.maxDepths[parent], tree.maxDepths[i] + 1);
+			}
+		}
+
+		int position = 0;
+		TIntArrayList stack = new TIntArrayList();
+		stack.add(0);
+		while (!stack.isEmpty()) {
+			int node = stack.removeAt(stack.size() - 1);
+			tree.preorderPositions[node] = position;
+			tree.nodesInPreorder[position++] = node;
+			for (int child = tree.getFirstChild(node) + tree.getChildCount(node) - 1; child >= tree.getFirstChild(node); child--) {
+				stack.add(child);
+			}
+		}
+
+		// the ingroup is the subtree below the ingroup start node recorded on the root
+		Object ingroupStartId = root.getProperty(NodeProperty.INGROUP_START_NODE_ID.name, null);
+		if (ingroupStartId instanceof Long && tree.getIndex((Long) ingroupStartId) >= 0) {
+			int start = tree.getPreorderPosition(tree.getIndex((Long) ingroupStartId));
+			tree.ingroup.set(start, start + tree.getNodeCount(tree.nodesInPreorder[start]));
+		}
+		return tree;
+	}
+
+	/**
+	 * The number of nodes in the tree.
+	 * @return
+	 */
+	public int size() {
+		return nodeIds.length;
+	}
+
+	/**
+	 * Get the index of a node.
+	 * @param nodeId
+	 * 		The neo4j node id
+	 * @return
+	 * 		the index, or -1 if the node is not in the tree
+	 */
+	public int getIndex(long nodeId) {
+		return indexesByNodeId.get(nodeId);
+	}
+
+	/**
+	 * Get the neo4j node id of a node.
+	 * @param node
+	 * @return
+	 */
+	public long getNodeId(int node) {
+		return nodeIds[node];
+	}
+
+	/**
+	 * Get the neo4j relationship id of the CHILDOF relationship from a node to its parent.
+	 * @param node
+	 * @return
+	 * 		the id, or -1 for the root
+	 */
+	public long getEdgeId(int node) {
+		return edgeIds[node];
+	}
+
+	/**
+	 * Get the index of the parent of a node.
+	 * @param node
+	 * @return
+	 * 		the index, or -1 for the root
+	 */
+	public int getParent(int node) {
+		return parents[node];
+	}
+
+	/**
+	 * Get the index of the first child of a node. The children are numbered consecutively from this index.
+	 * @param node
+	 * @return
+	 */
+	public int getFirstChild(int node) {
+		return childOffsets[node];
+	}
+
+	public int getChildCount(int node) {
+		return childOffsets[node + 1] - childOffsets[node];
+	}
+
+	/**
+	 * Get the name of a node, as it is stored in the graph.
+	 * @param node
+	 * @return
+	 * 		the name, or null if the node has none
+	 */
+	public String getName(int node) {
+		return names[node];
+	}
+
+	/**
+	 * Get the number of tips in the subtree below a node (1 for tips).
+	 * @param node
+	 * @return
+	 */
+	public int getTipCount(int node) {
+		return tipCounts[node];
+	}
+
+	/**
+	 * Get the number of nodes in the subtree below a node, including the node itself.
+	 * @param node
+	 * @return
+	 */
+	public int getNodeCount(int node) {
+		return nodeCounts[node];
+	}
+
+	/**
+	 * Get the number of edges from a node to the deepest tip below it (0 for tips).
+	 * @param node
+	 * @return
+	 */
+	public int getMaxDepth(int node) {
+		return maxDepths[node];
+	}
+
+	/**
+	 * Get the position of a node in a preorder traversal of the tree.
+	 * @param node
+	 * @return
+	 */
+	public int getPreorderPosition(int node) {
+		return preorderPositions[node];
+	}
+
+	/**
+	 * Get the node at a position in a preorder traversal of the tree. The subtree below a node consists of the nodes at
+	 * the positions from its own position up to its position plus its node count (exclusive).
+	 * @param position
+	 * @return
+	 */
+	public int getNodeInPreorder(int position) {
+		return nodesInPreorder[position];
+	}
+
+	/**
+	 * Return true if `node` is `subtreeRoot` or one of its descendants.
+	 * @param node
+	 * @param subtreeRoot
+	 * @return
+	 */
+	public boolean isInSubtree(int node, int subtreeRoot) {
+		int position = preorderPositions[node];
+		return position >= preorderPositions[subtreeRoot] && position < preorderPositions[subtreeRoot] + nodeCounts[subtreeRoot];
+	}
+
+	public boolean isWithinIngroup(int node) {
+		return ingroup.get(preorderPositions[node]);
+	}
+
+	/**
+	 * Get the most recent common ancestor of a set of nodes. After the first call, this takes time proportional to the
+	 * number of nodes, however deep they are.
+	 * @param nodes
+	 * 		The indexes of the nodes
+	 * @return
+	 * 		the index of the MRCA, or -1 if there are no nodes
+	 */
+	public int getMRCA(int[] nodes) {
+		if (nodes.length == 0) {
+			return -1;
+		}
+		int[] positions = new int[nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			positions[i] = preorderPositions[nodes[i]];
+		}
+		return nodesInPreorder[getMRCAIndex().getMRCA(positions)];
+	}
+
+	/**
+	 * Get the index of the first tip, in index order, with a name.
+	 * @param name
+	 * @return
+	 * 		the index, or -1 if no tip has the name
+	 */
+	public int getTipByName(String name) {
+		Map<String, Integer> tips = tipsByName;
+		if (tips == null) {
+			tips = new HashMap<String, Integer>();
+			for (int i = size() - 1; i >= 0; i--) {
+				if (getChildCount(i) == 0 && names[i] != null) {
+					tips.put(names[i], i);
+				}
+			}
+			tipsByName = tips;
+		}
+		Integer tip = tips.get(name);
+		return tip != null ? tip : -1;
+	}
+
+	/**
+	 * Get the index of the first tip, in index order, mapped to an ott id.
+	 * @param ottId
+	 * @return
+	 * 		the index, or -1 if no tip is mapped to the ott id
+	 */
+	public int getTipByOttId(long ottId) {
+		return tipsByOttId.get(ottId);
+	}
+
+	/**
+	 * Return true if the node has an "otu" property.
+	 * @param node
+	 * @return
+	 */
+	public boolean hasOTU(int node) {
+		return otus.get(node);
+	}
+
+	// ===== private methods
+
+	private MRCAIndex getMRCAIndex() {
+		MRCAIndex index = mrcaIndex;
+		if (index == null) {
+			// the index is over preorder positions
+			int[] parentPositions = new int[size()];
+			for (int position = 0; position < size(); position++) {
+				int parent = parents[nodesInPreorder[position]];
+				parentPositions[position] = parent >= 0 ? preorderPositions[parent] : -1;
+			}
+			index = new MRCAIndex(parentPositions);
+			mrcaIndex = index;
+		}
+		return index;
+	}
+}
@@ -0,0 +1,153 @@
+package opentree.otu;
+
+import jade.tree.InternPool;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+
+/**
+ * A bounded, least recently used cache of TreeSnapshots by tree root node id, so that the read endpoints do not traverse
+ * the graph every time a tree is viewed. The cache is bounded by the total number of nodes in the cached trees.
+ *
+ * Snapshots are not updated when their trees change. The DatabaseManager invalidates the snapshot of a tree after each
+ * of its write transactions that changes the tree has finished. A snapshot that was being built while a tree was
+ * invalidated is not cached, since it may have been read before the change was committed.
+ *
+ * There is one cache per graph database; use getInstance to get it.
+ */
+public class TreeSnapshotCache {
+
+	public static final int DEFAULT_MAX_NODES = 1000000;
+
+	// the names of the nodes in different trees are often the same, so they are interned across snapshots
+	private static final int MAX_POOLED_NAMES = 100000;
+
+	private static final Map<GraphDatabaseService, TreeSnapshotCache> instances = new HashMap<GraphDatabaseService, TreeSnapshotCache>();
+
+	private final LinkedHashMap<Long, TreeSnapshot> snapshots = new LinkedHashMap<Long, TreeSnapshot>(16, 0.75f, true);
+	private final InternPool namePool = new InternPool(MAX_POOLED_NAMES);
+	private int maxNodes = DEFAULT_MAX_NODES;
+	private int cachedNodes = 0;
+
+	// incremented by every invalidation, guarded by the cache lock
+	private long invalidations = 0;
+
+	private TreeSnapshotCache() {}
+
+	/**
+	 * Get the cache for the graph database.
+	 * @param graphDb
+	 * @return
+	 */
+	public static synchronized TreeSnapshotCache getInstance(final GraphDatabaseService graphDb) {
+		TreeSnapshotCache cache = instances.get(graphDb);
+		if (cache == null) {
+			cache = new TreeSnapshotCache();
+			instances.put(graphDb, cache);
+			graphDb.registerKernelEventHandler(new KernelEventHandler() {
+
+				@Override
+				public void beforeShutdown() {
+					synchronized (TreeSnapshotCache.class) {
+						instances.remove(graphDb);
+					}
+				}
+
+				@Override
+				public Object getResource() {
+					return null;
+				}
+
+				@Override
+				public void kernelPanic(ErrorState error) {
+				}
+
+				@Override
+				public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+					return ExecutionOrder.DOESNT_MATTER;
+				}
+			});
+		}
+		return cache;
+	}
+
+	/**
+	 * Get the snapshot of a tree, building it from the graph if it is not cached.
+	 * @param root
+	 * 		The root node of the tree
+	 * @return
+	 */
+	public TreeSnapshot getSnapshot(Node root) {
+		long invalidationsBefore;
+		synchronized (this) {
+			TreeSnapshot snapshot = snapshots.get(root.getId());
+			if (snapshot != null) {
+				return snapshot;
+			}
+			invalidationsBefore = invalidations;
+		}
+
+		// build outside the lock so that other trees can be read in the meantime
+		TreeSnapshot snapshot = TreeSnapshot.build(root, namePool);
+
+		synchronized (this) {
+			if (invalidations == invalidationsBefore && snapshot.size() <= maxNodes) {
+				TreeSnapshot replaced = snapshots.put(root.getId(), snapshot);
+				if (replaced != null) {
+					cachedNodes -= replaced.size();
+				}
+				cachedNodes += snapshot.size();
+				evict();
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Remove the snapshot of a tree. Must be called after every write that changes the tree has finished.
+	 * @param rootId
+	 * 		The node id of the root of the tree
+	 */
+	public synchronized void invalidate(long rootId) {
+		invalidations++;
+		TreeSnapshot removed = snapshots.remove(rootId);
+		if (removed != null) {
+			cachedNodes -= removed.size();
+		}
+	}
+
+	/**
+	 * Set the maximum total number of nodes in the cached trees, evicting the least recently used trees if there are more.
+	 * @param maxNodes
+	 */
+	public synchronized void setMaxNodes(int maxNodes) {
+		if (maxNodes < 0) {
+			throw new IllegalArgumentException("The maximum number of nodes must not be negative");
+		}
+		this.maxNodes = maxNodes;
+		evict();
+	}
+
+	public synchronized void clear() {
+		invalidations++;
+		snapshots.clear();
+		cachedNodes = 0;
+	}
+
+	// ===== private methods
+
+	private void evict() {
+		Iterator<TreeSnapshot> snapshotIter = snapshots.values().iterator();
+		while (cachedNodes > maxNodes) {
+			cachedNodes -= snapshotIter.next().size();
+			snapshotIter.remove();
+		}
+	}
+}
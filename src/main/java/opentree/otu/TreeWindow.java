@@ -0,0 +1,209 @@
+package opentree.otu;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import opentree.otu.constants.NodeProperty;
+
+/**
+ * A level of detail view of the part of a tree below a focal node, for browsing trees too large to return whole. The
+ * largest clades are expanded first: starting from the focal node, the collapsed clade with the most tips is repeatedly
+ * expanded (replaced by its children) as long as the number of returned nodes stays within the node budget and the clade
+ * is within the depth budget of the focal node. Clades that would not fit are skipped, so smaller clades can still be
+ * expanded after them. The focal node itself is always expanded.
+ *
+ * Clades that are not expanded are returned as collapsed stubs carrying their subtree sizes and the names of a few of
+ * the largest clades within them, so that they can be labeled and expanded on request.
+ */
+public class TreeWindow {
+
+	public static final int REPRESENTATIVE_NAMES = 3;
+
+	private final TreeSnapshot tree;
+	private final int focal;
+	private final TIntHashSet expanded = new TIntHashSet();
+	private int nodeCount = 1;
+
+	/**
+	 * A collapsed clade that may be expanded.
+	 */
+	private static class Candidate {
+		final int node;
+		final int depth;
+
+		Candidate(int node, int depth) {
+			this.node = node;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * @param tree
+	 * 		The snapshot of the tree
+	 * @param focal
+	 * 		The index in the snapshot of the node the window is below
+	 * @param maxNodes
+	 * 		The maximum number of nodes to return, including collapsed stubs. Exceeded only if the focal node has more
+	 * 		children than this.
+	 * @param maxDepth
+	 * 		The maximum number of edges from the focal node to any returned node
+	 */
+	public TreeWindow(final TreeSnapshot tree, int focal, int maxNodes, int maxDepth) {
+		this.tree = tree;
+		this.focal = focal;
+
+		PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>(16, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate a, Candidate b) {
+				int byTips = tree.getTipCount(b.node) - tree.getTipCount(a.node);
+				return byTips != 0 ? byTips : a.node - b.node;
+			}
+		});
+		candidates.add(new Candidate(focal, 0));
+		while (!candidates.isEmpty()) {
+			Candidate candidate = candidates.poll();
+			int childCount = tree.getChildCount(candidate.node);
+			if (childCount == 0 || candidate.depth >= maxDepth) {
+				continue;
+			}
+			if (nodeCount + childCount > maxNodes && candidate.node != focal) {
+				continue;
+			}
+			expanded.add(candidate.node);
+			nodeCount += childCount;
+			int first = tree.getFirstChild(candidate.node);
+			for (int child = first; child < first + childCount; child++) {
+				candidates.add(new Candidate(child, candidate.depth + 1));
+			}
+		}
+	}
+
+	/**
+	 * The number of nodes in the window, including collapsed stubs.
+	 * @return
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Get the window as nested maps, starting from the focal node. Each node has its id, name and subtree sizes, and
+	 * either `children` if it was expanded or `collapsed` and `representative_names` if it is a collapsed stub.
+	 * @return
+	 */
+	public Map<String, Object> toMap() {
+
+		// visit the window in breadth first order, attaching each node to its parent's list of children
+		TIntObjectHashMap<List<Object>> childLists = new TIntObjectHashMap<List<Object>>();
+		Map<String, Object> focalMap = null;
+		TIntArrayList queue = new TIntArrayList();
+		queue.add(focal);
+		for (int head = 0; head < queue.size(); head++) {
+			int node = queue.get(head);
+			Map<String, Object> nodeMap = getNodeSummary(node);
+			if (expanded.contains(node)) {
+				List<Object> children = new LinkedList<Object>();
+				nodeMap.put("children", children);
+				childLists.put(node, children);
+				int first = tree.getFirstChild(node);
+				for (int child = first; child < first + tree.getChildCount(node); child++) {
+					queue.add(child);
+				}
+			} else if (tree.getChildCount(node) > 0) {
+				nodeMap.put("collapsed", true);
+				nodeMap.put("representative_names", getRepresentativeNames(node));
+			}
+
+			if (node == focal) {
+				focalMap = nodeMap;
+			} else {
+				childLists.get(tree.getParent(node)).add(nodeMap);
+			}
+		}
+		return focalMap;
+	}
+
+	/**
+	 * Get the id, name and subtree sizes of a node.
+	 * @param node
+	 * @return
+	 */
+	public Map<String, Object> getNodeSummary(int node) {
+		Map<String, Object> summary = new HashMap<String, Object>();
+		summary.put("node_id", tree.getNodeId(node));
+		if (tree.getName(node) != null) {
+			summary.put("name", tree.getName(node));
+		}
+		summary.put(NodeProperty.SUBTREE_TIP_COUNT.name, tree.getTipCount(node));
+		summary.put(NodeProperty.SUBTREE_NODE_COUNT.name, tree.getNodeCount(node));
+		summary.put(NodeProperty.SUBTREE_MAX_DEPTH.name, tree.getMaxDepth(node));
+		if (tree.isWithinIngroup(node)) {
+			summary.put("ingroup", true);
+		}
+		return summary;
+	}
+
+	// ===== private methods
+
+	/**
+	 * Get a name for each of the largest clades directly below a node: the name of the clade's root if it has one, or
+	 * else the first name found by following the largest child clades down from it.
+	 */
+	private List<String> getRepresentativeNames(int node) {
+
+		List<Integer> children = new ArrayList<Integer>();
+		int first = tree.getFirstChild(node);
+		for (int child = first; child < first + tree.getChildCount(node); child++) {
+			children.add(child);
+		}
+		Collections.sort(children, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return tree.getTipCount(b) - tree.getTipCount(a);
+			}
+		});
+
+		List<String> names = new ArrayList<String>();
+		for (int child : children) {
+			if (names.size() >= REPRESENTATIVE_NAMES) {
+				break;
+			}
+			int cur = child;
+			while (!hasName(cur) && tree.getChildCount(cur) > 0) {
+				cur = getLargestChild(cur);
+			}
+			if (hasName(cur) && !names.contains(tree.getName(cur))) {
+				names.add(tree.getName(cur));
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Return true if the node has a non-empty name. Unnamed internal nodes are often written with empty names.
+	 */
+	private boolean hasName(int node) {
+		return tree.getName(node) != null && tree.getName(node).length() > 0;
+	}
+
+	private int getLargestChild(int node) {
+		int first = tree.getFirstChild(node);
+		int largest = first;
+		for (int child = first + 1; child < first + tree.getChildCount(node); child++) {
+			if (tree.getTipCount(child) > tree.getTipCount(largest)) {
+				largest = child;
+			}
+		}
+		return largest;
+	}
+}
@@ -0,0 +1,254 @@
+package opentree.otu;
+
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An index of terms by their trigrams, used to find the terms within an edit distance of a search term without comparing
+ * it to every term. Matching follows the lucene 3 FuzzyQuery (with no prefix): a term matches when
+ *
+ * 		1 - editDistance / min(searchLength, termLength) > minSimilarity
+ *
+ * so fuzzy searches give the same results as a FuzzyQuery on a fulltext index containing the same terms.
+ *
+ * Each edit to a term changes at most three of its trigrams, so a term within `d` edits of the search term must share
+ * all but 3d of the search term's distinct trigrams. Only terms that share enough trigrams are compared to the search
+ * term. Search terms too short for this to rule anything out are compared to the terms of similar length.
+ *
+ * This class is not thread safe.
+ */
+public class TrigramIndex {
+
+	// pads the start and end of terms, so that the first and last characters are in as many trigrams as the others
+	private static final char PAD = '\0';
+
+	private final TObjectIntHashMap<String> termIds = new TObjectIntHashMap<String>(1024, 0.5f, -1);
+	private final List<String> terms = new ArrayList<String>();
+	private final TIntArrayList freeIds = new TIntArrayList();
+
+	// term ids by trigram and by term length
+	private final TLongObjectHashMap<TIntHashSet> termsByTrigram = new TLongObjectHashMap<TIntHashSet>();
+	private final TIntObjectHashMap<TIntHashSet> termsByLength = new TIntObjectHashMap<TIntHashSet>();
+
+	/**
+	 * Add a term to the index. Does nothing if it is already present.
+	 * @param term
+	 */
+	public void add(String term) {
+		if (termIds.containsKey(term)) {
+			return;
+		}
+
+		int id;
+		if (freeIds.isEmpty()) {
+			id = terms.size();
+			terms.add(term);
+		} else {
+			id = freeIds.removeAt(freeIds.size() - 1);
+			terms.set(id, term);
+		}
+		termIds.put(term, id);
+
+		for (TLongIterator gramIter = trigrams(term).iterator(); gramIter.hasNext();) {
+			long gram = gramIter.next();
+			TIntHashSet ids = termsByTrigram.get(gram);
+			if (ids == null) {
+				ids = new TIntHashSet(4);
+				termsByTrigram.put(gram, ids);
+			}
+			ids.add(id);
+		}
+
+		TIntHashSet ids = termsByLength.get(term.length());
+		if (ids == null) {
+			ids = new TIntHashSet();
+			termsByLength.put(term.length(), ids);
+		}
+		ids.add(id);
+	}
+
+	/**
+	 * Remove a term from the index. Does nothing if it is not present.
+	 * @param term
+	 */
+	public void remove(String term) {
+		int id = termIds.remove(term);
+		if (id < 0) {
+			return;
+		}
+		terms.set(id, null);
+		freeIds.add(id);
+
+		for (TLongIterator gramIter = trigrams(term).iterator(); gramIter.hasNext();) {
+			long gram = gramIter.next();
+			TIntHashSet ids = termsByTrigram.get(gram);
+			if (ids != null && ids.remove(id) && ids.isEmpty()) {
+				termsByTrigram.remove(gram);
+			}
+		}
+
+		TIntHashSet ids = termsByLength.get(term.length());
+		if (ids != null && ids.remove(id) && ids.isEmpty()) {
+			termsByLength.remove(term.length());
+		}
+	}
+
+	public void clear() {
+		termIds.clear();
+		terms.clear();
+		freeIds.clear();
+		termsByTrigram.clear();
+		termsByLength.clear();
+	}
+
+	public int size() {
+		return termIds.size();
+	}
+
+	/**
+	 * Get the terms that match the search term with a similarity greater than `minSimilarity`. The comparison is case
+	 * sensitive, as it is in lucene.
+	 * @param text
+	 * 		The search term
+	 * @param minSimilarity
+	 * 		At least 0 and less than 1
+	 * @return
+	 * 		the matching terms, in no particular order
+	 */
+	public List<String> getFuzzyMatches(String text, float minSimilarity) {
+		if (minSimilarity >= 1.0f) {
+			throw new IllegalArgumentException("minimumSimilarity >= 1");
+		} else if (minSimilarity < 0.0f) {
+			throw new IllegalArgumentException("minimumSimilarity < 0");
+		}
+
+		List<String> matches = new ArrayList<String>();
+		int n = text.length();
+		if (n == 0) {
+			return matches;
+		}
+
+		// no term is further than this from a match, whatever its length
+		int maxDistance = (int) ((1.0f - minSimilarity) * n);
+
+		TLongHashSet grams = trigrams(text);
+		int minShared = grams.size() - 3 * maxDistance;
+
+		if (minShared > 0) {
+			TIntIntHashMap shared = new TIntIntHashMap();
+			for (TLongIterator gramIter = grams.iterator(); gramIter.hasNext();) {
+				TIntHashSet ids = termsByTrigram.get(gramIter.next());
+				if (ids != null) {
+					for (TIntIterator idIter = ids.iterator(); idIter.hasNext();) {
+						shared.adjustOrPutValue(idIter.next(), 1, 1);
+					}
+				}
+			}
+			for (TIntIntIterator sharedIter = shared.iterator(); sharedIter.hasNext();) {
+				sharedIter.advance();
+				if (sharedIter.value() >= minShared) {
+					addIfMatch(terms.get(sharedIter.key()), text, minSimilarity, matches);
+				}
+			}
+
+		} else {
+			for (int length = Math.max(1, n - maxDistance); length <= n + maxDistance; length++) {
+				TIntHashSet ids = termsByLength.get(length);
+				if (ids != null) {
+					for (TIntIterator idIter = ids.iterator(); idIter.hasNext();) {
+						addIfMatch(terms.get(idIter.next()), text, minSimilarity, matches);
+					}
+				}
+			}
+		}
+
+		return matches;
+	}
+
+	/**
+	 * The similarity of two terms as computed by the lucene 3 FuzzyTermEnum with no prefix. Returns 0 without finishing
+	 * the comparison once the terms are known to be less similar than `minSimilarity`.
+	 * @param text
+	 * 		The search term
+	 * @param target
+	 * 		The indexed term
+	 * @param minSimilarity
+	 * @return
+	 */
+	static float similarity(String text, String target, float minSimilarity) {
+		int m = target.length();
+		int n = text.length();
+		if (n == 0 || m == 0) {
+			return 0.0f;
+		}
+
+		int maxDistance = (int) ((1.0f - minSimilarity) * Math.min(n, m));
+		if (maxDistance < Math.abs(m - n)) {
+			return 0.0f;
+		}
+
+		int[] p = new int[n + 1];
+		int[] d = new int[n + 1];
+		for (int i = 0; i <= n; i++) {
+			p[i] = i;
+		}
+
+		for (int j = 1; j <= m; j++) {
+			int bestPossibleEditDistance = m;
+			char t_j = target.charAt(j - 1);
+			d[0] = j;
+			for (int i = 1; i <= n; i++) {
+				if (t_j != text.charAt(i - 1)) {
+					d[i] = Math.min(Math.min(d[i - 1], p[i]), p[i - 1]) + 1;
+				} else {
+					d[i] = Math.min(Math.min(d[i - 1] + 1, p[i] + 1), p[i - 1]);
+				}
+				bestPossibleEditDistance = Math.min(bestPossibleEditDistance, d[i]);
+			}
+			if (j > maxDistance && bestPossibleEditDistance > maxDistance) {
+				return 0.0f;
+			}
+			int[] swap = p;
+			p = d;
+			d = swap;
+		}
+
+		return 1.0f - ((float) p[n] / (float) Math.min(n, m));
+	}
+
+	// ===== private methods
+
+	private static void addIfMatch(String term, String text, float minSimilarity, List<String> matches) {
+		if (similarity(text, term, minSimilarity) > minSimilarity) {
+			matches.add(term);
+		}
+	}
+
+	/**
+	 * Get the distinct trigrams of the padded term, each packed into a long.
+	 */
+	private static TLongHashSet trigrams(String term) {
+		int n = term.length();
+		TLongHashSet grams = new TLongHashSet(n + 2);
+		char a = PAD;
+		char b = PAD;
+		for (int i = 0; i < n + 2; i++) {
+			char c = i < n ? term.charAt(i) : PAD;
+			grams.add(((long) a << 32) | ((long) b << 16) | c);
+			a = b;
+			b = c;
+		}
+		return grams;
+	}
+}
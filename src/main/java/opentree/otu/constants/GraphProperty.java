@@ -11,6 +11,9 @@ package opentree.otu.constants;
 public enum GraphProperty {
 	
 	NEXSON_GIT_DIR ("nexsonGitDir", String.class, "The directory on the current system where the nexson git lies"),//, to add more
+	NEXSON_CACHE_DIR ("nexsonCacheDir", String.class, "The directory on the current system where downloaded remote nexsons are cached"),
+	MAX_CONCURRENT_IMPORTS ("maxConcurrentImports", Integer.class, "The maximum number of background import jobs that will be run at once"),
+	INDEX_MIGRATION_IN_PROGRESS ("indexMigrationInProgress", Boolean.class, "Set while the node indexes are being rebuilt by the IndexMigration, which means they may be incomplete"),
 	KNOWN_REMOTES ("known_remotes", String[].class, "An array containing the names for all known remotes. To facilitate multiple remotes");
 	
 	public String propertyName;
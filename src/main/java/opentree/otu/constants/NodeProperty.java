@@ -59,6 +59,12 @@ public enum NodeProperty {
 	 * This is stored as a property of the root of each imported tree.
 	 */
 	DESCENDANT_MAPPED_TAXON_OTT_IDS ("tip_mapped_ottids", long[].class),
+
+	/**
+	 * A MinHash sketch of the DESCENDANT_MAPPED_TAXON_OTT_IDS, used to find trees with similar sets of taxa (see
+	 * TaxonSketch). This is stored as a property of the root of each imported tree that has mapped tips.
+	 */
+	DESCENDANT_MAPPED_TAXON_OTT_ID_SKETCH ("tip_mapped_ottids_sketch", int[].class),
 	
 	/**
 	 * The OTT id of the focal clade for this source. A phylografter property that we may never use.
@@ -109,9 +115,70 @@ public enum NodeProperty {
 	 * A flag specifying that this node is part of the ingroup for this tree. This property is nominally a boolean but should
 	 * only be set on nodes that are actually part of the ingroup, implying that nodes without this property in trees that
 	 * have their ingroup set are thus part of the outgroup.
+	 * 
+	 * No longer written: ingroup membership is now determined from INGROUP_START_NODE_ID on the tree root (see
+	 * DatabaseUtils.isWithinIngroup). Trees imported earlier may still carry it.
 	 */
 	IS_WITHIN_INGROUP("within_ingroup", boolean.class),
 	
+	/**
+	 * The number of tips in the subtree below a tree node (1 for tips). Set on every node of locally imported trees, and
+	 * updated when the tree is rerooted.
+	 */
+	SUBTREE_TIP_COUNT ("subtree_tips", int.class),
+	
+	/**
+	 * The number of nodes in the subtree below a tree node, including the node itself. Set and updated along with
+	 * SUBTREE_TIP_COUNT.
+	 */
+	SUBTREE_NODE_COUNT ("subtree_nodes", int.class),
+	
+	/**
+	 * The number of edges from a tree node to the deepest tip below it (0 for tips). Set and updated along with
+	 * SUBTREE_TIP_COUNT.
+	 */
+	SUBTREE_MAX_DEPTH ("subtree_depth", int.class),
+	
+	/**
+	 * The position of a tree node in a preorder traversal of its tree, starting from 0 at the root. The nodes of the
+	 * subtree below a node are exactly those whose positions are in the interval from the node's own position up to its
+	 * position plus its SUBTREE_NODE_COUNT (exclusive), so ancestor tests are range checks. Set on every node of locally
+	 * imported trees, and reassigned when the tree is rerooted.
+	 */
+	PREORDER_INDEX ("preorder_index", int.class),
+	
+	/**
+	 * The neo4j node id of the root of the tree containing a tree node. Set and reassigned along with PREORDER_INDEX.
+	 */
+	TREE_ROOT_NODE_ID ("tree_root_node_id", long.class),
+	
+	/**
+	 * The SHA-1 hash of the nexson file that a source was imported from by NexsonGitSync, as a hex string. A property of
+	 * source meta nodes. Used to detect studies whose files have changed.
+	 */
+	NEXSON_CONTENT_HASH ("nexson_sha1", String.class),
+	
+	// ===== import progress properties
+	
+	/**
+	 * A flag indicating that a chunked import has not finished. Set on the source metadata node for the duration of the
+	 * import, and on the root node of the tree that is currently being written. Nodes carrying this property belong to
+	 * an import that was interrupted if no import is running, and should be resumed or rolled back.
+	 */
+	IMPORT_IN_PROGRESS ("import_in_progress", boolean.class),
+	
+	/**
+	 * The number of trees that have been completely written during a chunked import. A property of source meta nodes,
+	 * removed when the import finishes.
+	 */
+	IMPORT_TREES_COMPLETED ("import_trees_completed", int.class),
+	
+	/**
+	 * The number of nodes of the current tree that have been committed during a chunked import. A property of source meta
+	 * nodes, removed when the import finishes.
+	 */
+	IMPORT_CURRENT_TREE_NODES ("import_current_tree_nodes", long.class),
+	
 	// ===== ot namespace node properties
 	
 	/**
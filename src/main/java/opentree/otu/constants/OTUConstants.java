@@ -33,6 +33,7 @@ public enum OTUConstants {
 		NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES,
 		NodeProperty.DESCENDANT_MAPPED_TAXON_NAMES_WHITESPACE_FILLED,
 		NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS,
+		NodeProperty.DESCENDANT_MAPPED_TAXON_OTT_ID_SKETCH,
 		NodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES,
 		NodeProperty.PHYLOGRAFTER_ID,
 		NodeProperty.INGROUP_IS_SET,
@@ -41,8 +42,14 @@ public enum OTUConstants {
 		NodeProperty.IS_INGROUP_ROOT,
 		NodeProperty.IS_ROOT,
 		NodeProperty.IS_WITHIN_INGROUP,
+		NodeProperty.IMPORT_IN_PROGRESS,
 		NodeProperty.LOCATION,
 		NodeProperty.ROOTING_IS_SET,
+		NodeProperty.SUBTREE_TIP_COUNT,
+		NodeProperty.SUBTREE_NODE_COUNT,
+		NodeProperty.SUBTREE_MAX_DEPTH,
+		NodeProperty.PREORDER_INDEX,
+		NodeProperty.TREE_ROOT_NODE_ID,
 		NodeProperty.SOURCE_ID,
 		NodeProperty.TREE_ID
 	};
@@ -50,7 +57,11 @@ public enum OTUConstants {
 	// all source meta node properties not specified here are fair game for user editing
 	public static final NodeProperty[] PROTECTED_SOURCE_PROPERTIES = {
 		NodeProperty.SOURCE_ID,
-		NodeProperty.LOCATION
+		NodeProperty.LOCATION,
+		NodeProperty.IMPORT_IN_PROGRESS,
+		NodeProperty.IMPORT_TREES_COMPLETED,
+		NodeProperty.IMPORT_CURRENT_TREE_NODES,
+		NodeProperty.NEXSON_CONTENT_HASH
 //		NodeProperty.OT_STUDY_ID // we may want to block this
 	};
 	
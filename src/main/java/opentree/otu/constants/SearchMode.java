@@ -0,0 +1,29 @@
+package opentree.otu.constants;
+
+/**
+ * Specifies how the value of a search clause is compared to the indexed values.
+ */
+public enum SearchMode {
+
+	/**
+	 * Match indexed terms within an edit distance of the value (the default, as used by the basic search).
+	 */
+	FUZZY,
+	
+	/**
+	 * Match indexed values that are exactly equal to the value, as Index.get() does. Whole values in fulltext indexes are
+	 * matched with regard to case.
+	 */
+	EXACT,
+	
+	/**
+	 * Match indexed terms that sort at or after the value. Terms are compared as strings, so numbers (e.g. years) must
+	 * have the same number of digits.
+	 */
+	AT_LEAST,
+	
+	/**
+	 * Match indexed terms that sort at or before the value. Terms are compared as strings, as for AT_LEAST.
+	 */
+	AT_MOST;
+}
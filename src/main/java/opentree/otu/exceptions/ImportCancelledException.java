@@ -0,0 +1,25 @@
+package opentree.otu.exceptions;
+
+/**
+ * Thrown from within an import when it has been cancelled. Unchecked, so it can pass through the DatabaseManager
+ * import methods, which roll back the current transaction as it does.
+ */
+public class ImportCancelledException extends RuntimeException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	String error = "";
+	
+	public ImportCancelledException(String error) {
+		this.error = error;
+	}
+	
+	@Override
+	public String toString() {
+		return error;
+	}
+
+}
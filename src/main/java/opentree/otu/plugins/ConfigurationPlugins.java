@@ -32,4 +32,45 @@ public class ConfigurationPlugins extends ServerPlugin {
 		boolean success = cm.setNexsonGitDir(dir);
 		return success;
 	}
+	
+	@Description( "Get the directory where downloaded remote nexsons are cached" )
+	@PluginTarget( GraphDatabaseService.class )
+	public String getNexsonCacheDir(@Source GraphDatabaseService graphDb) {
+		DatabaseManager dm = new DatabaseManager(graphDb);
+		ConfigurationManager cm = new ConfigurationManager(dm);
+		String dir = cm.getNexsonCacheDir().getPath();
+		String retstr = "{\"nexsoncachedir\":\""+dir+"\"}";
+		return retstr;
+	}
+	
+	@Description( "Set the directory where downloaded remote nexsons are cached" )
+	@PluginTarget( GraphDatabaseService.class )
+	public boolean setNexsonCacheDir(@Source GraphDatabaseService graphDb,
+			@Description( "Nexson Cache Directory String")
+			@Parameter(name = "nexsoncachedir", optional = false) String dir) {
+		DatabaseManager dm = new DatabaseManager(graphDb);
+		ConfigurationManager cm = new ConfigurationManager(dm);
+		boolean success = cm.setNexsonCacheDir(dir);
+		return success;
+	}
+	
+	@Description( "Get the maximum number of background import jobs that will be run at once" )
+	@PluginTarget( GraphDatabaseService.class )
+	public String getMaxConcurrentImports(@Source GraphDatabaseService graphDb) {
+		DatabaseManager dm = new DatabaseManager(graphDb);
+		ConfigurationManager cm = new ConfigurationManager(dm);
+		String retstr = "{\"maxconcurrentimports\":"+cm.getMaxConcurrentImports()+"}";
+		return retstr;
+	}
+	
+	@Description( "Set the maximum number of background import jobs that will be run at once" )
+	@PluginTarget( GraphDatabaseService.class )
+	public boolean setMaxConcurrentImports(@Source GraphDatabaseService graphDb,
+			@Description( "Maximum number of concurrent imports, at least 1")
+			@Parameter(name = "maxconcurrentimports", optional = false) Integer max) {
+		DatabaseManager dm = new DatabaseManager(graphDb);
+		ConfigurationManager cm = new ConfigurationManager(dm);
+		boolean success = cm.setMaxConcurrentImports(max);
+		return success;
+	}
 }
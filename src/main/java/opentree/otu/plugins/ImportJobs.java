@@ -0,0 +1,237 @@
+package opentree.otu.plugins;
+
+import jade.MessageLogger;
+import jade.tree.JadeTree;
+import jade.tree.NexsonSource;
+import jade.tree.NexsonStreamReader;
+import jade.tree.TreeFileReader;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import opentree.otu.ConfigurationManager;
+import opentree.otu.DatabaseBrowser;
+import opentree.otu.DatabaseManager;
+import opentree.otu.ImportJob;
+import opentree.otu.ImportJobManager;
+import opentree.otu.NexsonCache;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.server.plugins.Description;
+import org.neo4j.server.plugins.Parameter;
+import org.neo4j.server.plugins.PluginTarget;
+import org.neo4j.server.plugins.ServerPlugin;
+import org.neo4j.server.plugins.Source;
+import org.neo4j.server.rest.repr.OpentreeRepresentationConverter;
+import org.neo4j.server.rest.repr.Representation;
+
+/**
+ * services for running imports in the background. The submit services return a job id immediately, which can be used
+ * to poll the progress of the import or cancel it.
+ */
+public class ImportJobs extends ServerPlugin {
+
+	@Description("Queue a nexson to be loaded into the graph database in the background. Returns the status of the new job, "
+			+ "including its job id. If a previous chunked import of this source was interrupted, it will be resumed.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation submitNexsonImport(@Source final GraphDatabaseService graphDb,
+			@Description("A string to be used as the source id for for this source. Source ids must be unique.")
+			@Parameter(name = "sourceId", optional = false) final String sourceId,
+			@Description("A nexson string to be parsed")
+			@Parameter(name = "nexsonString", optional = false) final String nexsonString,
+			@Description("The number of tree nodes to write per transaction. Defaults to " + sourceJsons.DEFAULT_COMMIT_INTERVAL + ".")
+			@Parameter(name = "commitInterval", optional = true) final Integer commitInterval) {
+
+		return submit(graphDb, sourceId, DatabaseManager.LOCAL_LOCATION, new ImportJobManager.ImportTask() {
+			public void run(DatabaseManager manager, ImportJob job) throws Exception {
+
+				NexsonSource source = NexsonStreamReader.readNexson(new StringReader(nexsonString), sourceId, false, new MessageLogger(""));
+				job.setTreesParsed(source.getTreeCount());
+				job.checkCancelled();
+
+				job.setState(ImportJob.State.WRITING);
+				int interval = commitInterval == null ? sourceJsons.DEFAULT_COMMIT_INTERVAL : commitInterval;
+				Node existing = new DatabaseBrowser(graphDb).getSourceMetaNode(sourceId, DatabaseManager.LOCAL_LOCATION);
+				if (existing != null && DatabaseManager.isImportInProgress(existing)) {
+					manager.resumeSourceImport(source, DatabaseManager.LOCAL_LOCATION, interval);
+				} else {
+					manager.addSource(source, DatabaseManager.LOCAL_LOCATION, false, interval);
+				}
+			}
+		});
+	}
+
+	@Description("Queue one or more newick trees, or a nexus file with a trees block, to be loaded into the graph database in "
+			+ "the background. Trees are parsed as they are written. Returns the status of the new job, including its job id.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation submitNewickImport(@Source final GraphDatabaseService graphDb,
+			@Description("A string to be used as the source id for for this source. Source ids must be unique.")
+			@Parameter(name = "sourceId", optional = false) final String sourceId,
+			@Description("A string containing one or more newick trees separated by semicolons, or a nexus file with a trees block.")
+			@Parameter(name = "newickString", optional = false) final String newickString,
+			@Description("The number of tree nodes to write per transaction. Defaults to " + sourceJsons.DEFAULT_COMMIT_INTERVAL + ".")
+			@Parameter(name = "commitInterval", optional = true) final Integer commitInterval) {
+
+		return submit(graphDb, sourceId, DatabaseManager.LOCAL_LOCATION, new ImportJobManager.ImportTask() {
+			public void run(DatabaseManager manager, ImportJob job) throws Exception {
+
+				NexsonSource source = new NexsonSource(sourceId);
+				source.setTreeStream(new ParseCountingTrees(new TreeFileReader(new StringReader(newickString)), job));
+
+				job.setState(ImportJob.State.WRITING);
+				try {
+					manager.addSource(source, DatabaseManager.LOCAL_LOCATION, false,
+							commitInterval == null ? sourceJsons.DEFAULT_COMMIT_INTERVAL : commitInterval);
+				} catch (IllegalArgumentException ex) {
+					// remove any trees that were added before the bad one
+					Node sourceMeta = new DatabaseBrowser(graphDb).getSourceMetaNode(sourceId, DatabaseManager.LOCAL_LOCATION);
+					if (sourceMeta != null && DatabaseManager.isImportInProgress(sourceMeta)) {
+						manager.rollbackSourceImport(sourceMeta);
+					}
+					throw ex;
+				}
+			}
+		});
+	}
+
+	@Description("Queue a single remote nexson to be loaded into the local db in the background, replacing any existing remote "
+			+ "source with the same id. Sources will only be added if they have at least one tree. Returns the status of the new "
+			+ "job, including its job id.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation submitRemoteNexsonImport(@Source GraphDatabaseService graphDb,
+			@Description("remote nexson url") @Parameter(name = "url", optional = false) final String url,
+			@Description("source id under which this source will be indexed locally") @Parameter(name = "sourceId", optional = false) final String sourceId,
+			@Description("The hash of the commit the url points to. If supplied, the nexson is read from the local nexson cache, and "
+					+ "only downloaded if it has not been cached") @Parameter(name = "commitHash", optional = true) final String commitHash,
+			@Description("If set, the trees are written in transactions of this many nodes") @Parameter(name = "commitInterval", optional = true) final Integer commitInterval) {
+
+		return submit(graphDb, sourceId, "remote", new ImportJobManager.ImportTask() {
+			public void run(DatabaseManager manager, ImportJob job) throws Exception {
+
+				NexsonSource source;
+				if (commitHash == null) {
+					source = Indexing.readRemoteNexson(url, sourceId);
+				} else {
+					NexsonCache cache = new ConfigurationManager(manager).getNexsonCache();
+					source = Indexing.readNexson(cache.openNexson(commitHash, sourceId, url), sourceId);
+				}
+				job.setTreesParsed(source.getTreeCount());
+				job.checkCancelled();
+
+				if (source.getTrees().iterator().hasNext()) {
+					job.setState(ImportJob.State.WRITING);
+					manager.addSource(source, "remote", true, commitInterval == null ? 0 : commitInterval);
+				}
+			}
+		});
+	}
+
+	@Description("Get the status of an import job: its state, the number of trees parsed and indexed, and the number of tree nodes written.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation getImportJobStatus(@Source GraphDatabaseService graphDb,
+			@Description("The job id returned when the import was submitted") @Parameter(name = "jobId", optional = false) String jobId) {
+
+		ImportJob job = ImportJobManager.getInstance(graphDb).getJob(jobId);
+		if (job == null) {
+			return OpentreeRepresentationConverter.convert(noSuchJob(jobId));
+		}
+		return OpentreeRepresentationConverter.convert(job.getStatus());
+	}
+
+	@Description("Get the status of all queued, running, and recently finished import jobs, in the order they were submitted.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation getImportJobs(@Source GraphDatabaseService graphDb) {
+
+		List<Map<String, Object>> statuses = new LinkedList<Map<String, Object>>();
+		for (ImportJob job : ImportJobManager.getInstance(graphDb).getJobs()) {
+			statuses.add(job.getStatus());
+		}
+		return OpentreeRepresentationConverter.convert(statuses);
+	}
+
+	@Description("Cancel an import job. Queued jobs are cancelled immediately. Running jobs stop at the next tree node they write, "
+			+ "and any partially imported chunked source is removed.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation cancelImportJob(@Source GraphDatabaseService graphDb,
+			@Description("The job id returned when the import was submitted") @Parameter(name = "jobId", optional = false) String jobId) {
+
+		ImportJobManager jobManager = ImportJobManager.getInstance(graphDb);
+		Map<String, Object> result;
+		ImportJob job = jobManager.getJob(jobId);
+		if (job == null) {
+			result = noSuchJob(jobId);
+		} else if (jobManager.cancel(jobId)) {
+			result = job.getStatus();
+			result.put("worked", true);
+		} else {
+			result = job.getStatus();
+			result.put("worked", false);
+			result.put("message", "job " + jobId + " has already finished");
+		}
+		return OpentreeRepresentationConverter.convert(result);
+	}
+
+	// ===== private methods
+
+	private static Representation submit(GraphDatabaseService graphDb, String sourceId, String location, ImportJobManager.ImportTask task) {
+		Map<String, Object> result;
+		try {
+			result = ImportJobManager.getInstance(graphDb).submit(sourceId, location, task).getStatus();
+			result.put("worked", true);
+		} catch (RejectedExecutionException ex) {
+			result = new HashMap<String, Object>();
+			result.put("worked", false);
+			result.put("message", "too many imports are queued, try again later");
+		}
+		return OpentreeRepresentationConverter.convert(result);
+	}
+
+	private static Map<String, Object> noSuchJob(String jobId) {
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("worked", false);
+		result.put("message", "there is no import job with id " + jobId);
+		return result;
+	}
+
+	/**
+	 * Reports each tree to the job as it is read, so the progress of streamed imports can be followed.
+	 */
+	private static class ParseCountingTrees implements Iterable<JadeTree>, Iterator<JadeTree> {
+
+		private final Iterator<JadeTree> trees;
+		private final ImportJob job;
+
+		ParseCountingTrees(Iterable<JadeTree> trees, ImportJob job) {
+			this.trees = trees.iterator();
+			this.job = job;
+		}
+
+		@Override
+		public Iterator<JadeTree> iterator() {
+			return this;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return trees.hasNext();
+		}
+
+		@Override
+		public JadeTree next() {
+			JadeTree tree = trees.next();
+			job.treeParsed();
+			return tree;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -2,13 +2,17 @@ package opentree.otu.plugins;
 
 import jade.MessageLogger;
 import jade.tree.NexsonReader;
+import jade.tree.NexsonStreamReader;
 import jade.tree.NexsonSource;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -17,8 +21,15 @@ import java.util.Map;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONArray;
 
+import opentree.otu.CompoundSearch;
+import opentree.otu.ConfigurationManager;
 import opentree.otu.DatabaseBrowser;
 import opentree.otu.DatabaseManager;
+import opentree.otu.IndexMigration;
+import opentree.otu.NexsonCache;
+import opentree.otu.NexsonGitSync;
+import opentree.otu.SearchResultCache;
+import opentree.otu.constants.SearchMode;
 import opentree.otu.constants.SearchableProperty;
 import opentree.otu.exceptions.DuplicateSourceException;
 
@@ -46,6 +57,9 @@ public class Indexing extends ServerPlugin {
 
 	private String nexsonCommitsURLStr = "https://bitbucket.org/api/2.0/repositories/blackrim/avatol_nexsons/commits";
 	private String nexsonsBaseURL = "https://bitbucket.org/api/1.0/repositories/blackrim/avatol_nexsons/raw/";
+	
+	private static final int DEFAULT_PREFETCH_THREADS = 4;
+	private static final int DEFAULT_SEARCH_LIMIT = 20;
 
 	/**
 	 * Return the url of the most recent commit in the public repo. Facilitates working with these independently in javascript.
@@ -92,6 +106,54 @@ public class Indexing extends ServerPlugin {
 	@Description("Get a list of the nexsons currently in the public nexsons repo")
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation getNexsonsListFromURL(@Source GraphDatabaseService graphDb, @Description("remote nexson url") @Parameter(name = "url", optional = false) String url) throws IOException {
+		return ListRepresentation.string(readNexsonsList(url));
+	}
+
+	/**
+	 * Download the nexsons for a commit of the public repo into the local nexson cache, so they can be indexed without
+	 * downloading them again. Studies that are already cached for this commit are skipped.
+	 * 
+	 * @param graphDb
+	 * @param commitHash
+	 * @param baseURL
+	 * @param studyIds
+	 * @param maxThreads
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Description("Download the nexsons for a commit of the public nexsons repo into the local nexson cache. Returns the number of "
+			+ "studies downloaded and already cached, and the ids of any studies that could not be downloaded.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation prefetchNexsons(@Source GraphDatabaseService graphDb,
+			@Description("The hash of the commit to download, e.g. the recenthash from getMostCurrentNexsonsURL") @Parameter(name = "commitHash", optional = false) String commitHash,
+			@Description("The ids of the studies to download. If not supplied, all the studies listed for the commit will be downloaded")
+					@Parameter(name = "studyIds", optional = true) String[] studyIds,
+			@Description("The base url for the repo. Defaults to the public nexsons repo") @Parameter(name = "baseURL", optional = true) String baseURL,
+			@Description("The maximum number of concurrent downloads. Defaults to " + DEFAULT_PREFETCH_THREADS)
+					@Parameter(name = "maxThreads", optional = true) Integer maxThreads) throws IOException, InterruptedException {
+
+		if (baseURL == null) {
+			baseURL = nexsonsBaseURL;
+		}
+		
+		List<String> studies = studyIds != null ? Arrays.asList(studyIds) : readNexsonsList(baseURL + commitHash + "/");
+		
+		NexsonCache cache = new ConfigurationManager(new DatabaseManager(graphDb)).getNexsonCache();
+		NexsonCache.PrefetchResult prefetched = cache.prefetch(commitHash, baseURL, studies,
+				maxThreads == null ? DEFAULT_PREFETCH_THREADS : maxThreads);
+
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("downloaded", prefetched.downloaded);
+		result.put("already_cached", prefetched.alreadyCached);
+		result.put("failed", prefetched.failed);
+		return OpentreeRepresentationConverter.convert(result);
+	}
+
+	/**
+	 * Read the list of the study ids from the directory listing at the specified url for a commit of the public repo.
+	 */
+	private static List<String> readNexsonsList(String url) throws IOException {
 
 		BufferedReader nexsonsDir = new BufferedReader(new InputStreamReader(new URL(url).openStream()));
 
@@ -111,7 +173,9 @@ public class Indexing extends ServerPlugin {
 			}
 		}
 
-		return ListRepresentation.string(availableStudies);
+		nexsonsDir.close();
+
+		return availableStudies;
 	}
 
 	/**
@@ -130,10 +194,18 @@ public class Indexing extends ServerPlugin {
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation indexSingleNexson(@Source GraphDatabaseService graphDb,
 			@Description("remote nexson url") @Parameter(name = "url", optional = false) String url,
-			@Description("source id under which this source will be indexed locally") @Parameter(name = "sourceId", optional = false) String sourceId) throws MalformedURLException, IOException, DuplicateSourceException {
+			@Description("source id under which this source will be indexed locally") @Parameter(name = "sourceId", optional = false) String sourceId,
+			@Description("The hash of the commit the url points to. If supplied, the nexson is read from the local nexson cache, and "
+					+ "only downloaded if it has not been cached") @Parameter(name = "commitHash", optional = true) String commitHash) throws MalformedURLException, IOException, DuplicateSourceException {
 
 		DatabaseManager dm = new DatabaseManager(graphDb);
-		NexsonSource source = readRemoteNexson(url, sourceId);
+		NexsonSource source;
+		if (commitHash == null) {
+			source = readRemoteNexson(url, sourceId);
+		} else {
+			NexsonCache cache = new ConfigurationManager(dm).getNexsonCache();
+			source = readNexson(cache.openNexson(commitHash, sourceId, url), sourceId);
+		}
 
 		if (source.getTrees().iterator().hasNext() == false) {
 			return ValueRepresentation.bool(false);
@@ -143,6 +215,53 @@ public class Indexing extends ServerPlugin {
 		} 
 	}
 	
+	/**
+	 * Bring the local sources up to date with the nexsons in the configured nexson git directory. Only studies whose
+	 * files have changed since the last sync are re-imported, and synced sources whose files have been removed are deleted.
+	 * 
+	 * @param graphDb
+	 * @param commitInterval
+	 * @return
+	 * @throws IOException
+	 */
+	@Description("Re-import the studies in the configured nexson git directory whose files have changed since the last sync, and "
+			+ "delete synced studies whose files have been removed. Returns the ids of the sources that were added, updated, deleted, "
+			+ "or could not be read, and the number that were unchanged.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation syncNexsonGitDir(@Source GraphDatabaseService graphDb,
+			@Description("If set, the trees are written in transactions of this many nodes") @Parameter(name = "commitInterval", optional = true) Integer commitInterval) throws IOException {
+
+		DatabaseManager dm = new DatabaseManager(graphDb);
+		String dir = new ConfigurationManager(dm).getNexsonGitDir();
+
+		Map<String, Object> result;
+		if (dir == null) {
+			result = new HashMap<String, Object>();
+			result.put("worked", false);
+			result.put("message", "the nexson git directory has not been set");
+		} else {
+			NexsonGitSync sync = new NexsonGitSync(dm);
+			result = sync.sync(new File(dir), commitInterval == null ? 0 : commitInterval, new MessageLogger("")).toMap();
+			result.put("worked", true);
+		}
+		return OpentreeRepresentationConverter.convert(result);
+	}
+
+	/**
+	 * Rebuild the node indexes so that they have the types declared in NodeIndexDescription. Only needed for databases
+	 * created before index types were declared, and does nothing if the indexes are already up to date.
+	 * 
+	 * @param graphDb
+	 * @return
+	 */
+	@Description("Rebuild the node indexes of a database created before index types were declared, so that ids are indexed "
+			+ "exactly. Does nothing if the indexes are up to date. Imports should not be run during a migration.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation migrateIndexes(@Source GraphDatabaseService graphDb) {
+		IndexMigration migration = new IndexMigration(graphDb);
+		return OpentreeRepresentationConverter.convert(migration.migrate(IndexMigration.DEFAULT_COMMIT_INTERVAL).toMap());
+	}
+
 	/**
 	 * Return a map containing available property names and the names of the SearchableProperty enum elements they
 	 * correspond to.
@@ -175,11 +294,92 @@ public class Indexing extends ServerPlugin {
 			@Description("The property to be searched on. A list of searchable properties is available from the getSearchableProperties service.")
 				@Parameter(name = "property", optional = false) String property,
 			@Description("The value to be searched. This must be passed as a string, but will be converted to the datatype corresponding to the "
-					+ "specified searchable value.") @Parameter(name = "value", optional = false) String value) {
+					+ "specified searchable value.") @Parameter(name = "value", optional = false) String value,
+			@Description("If true, taxon name and ott id searches only match values exactly equal to the search value (ignoring "
+					+ "case). These searches are answered from memory. Defaults to false.") @Parameter(name = "exact", optional = true) Boolean exact) {
 		
 		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
 		SearchableProperty searchProperty = SearchableProperty.valueOf(property);
-		return ListRepresentation.string(browser.doBasicSearch(searchProperty, value));
+		return ListRepresentation.string(browser.doBasicSearch(searchProperty, value, exact != null && exact));
+	}
+
+	/**
+	 * Get the size and hit/miss counts of the search result cache
+	 * @param graphDb
+	 * @return
+	 */
+	@Description("Get the size, write generation, and hit and miss counts of the cache of search and source/tree listing results")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation getSearchCacheStats(@Source GraphDatabaseService graphDb) {
+		return OpentreeRepresentationConverter.convert(SearchResultCache.getInstance(graphDb).getStats());
+	}
+
+	/**
+	 * Perform a fuzzy search on the stored indexes, returning one page of hits ordered by relevance
+	 * @param graphDb
+	 * @param property
+	 * @param value
+	 * @param offset
+	 * @param limit
+	 * @param includeMetadata
+	 * @return
+	 */
+	@Description("Search the indexes, returning one page of the matching sources and trees ordered by relevance, with the total number of hits")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation scoredSearch(@Source GraphDatabaseService graphDb,
+			@Description("The property to be searched on. A list of searchable properties is available from the getSearchableProperties service.")
+				@Parameter(name = "property", optional = false) String property,
+			@Description("The value to be searched.") @Parameter(name = "value", optional = false) String value,
+			@Description("The number of hits to skip. Defaults to 0.") @Parameter(name = "offset", optional = true) Integer offset,
+			@Description("The maximum number of hits to return. Defaults to " + DEFAULT_SEARCH_LIMIT + ".")
+				@Parameter(name = "limit", optional = true) Integer limit,
+			@Description("If true, include the tree id and the matched values for each hit. Defaults to false.")
+				@Parameter(name = "includeMetadata", optional = true) Boolean includeMetadata) {
+
+		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		SearchableProperty searchProperty = SearchableProperty.valueOf(property);
+		return OpentreeRepresentationConverter.convert(browser.doScoredSearch(searchProperty, value,
+				offset != null ? offset : 0,
+				limit != null ? limit : DEFAULT_SEARCH_LIMIT,
+				includeMetadata != null && includeMetadata));
+	}
+
+	/**
+	 * Search on several properties at once, joining the source and tree hits on the server
+	 * @param graphDb
+	 * @param properties
+	 * @param values
+	 * @param modes
+	 * @param operator
+	 * @return
+	 */
+	@Description("Search on several properties at once. Each clause is a property, a value and (optionally) a mode; the clauses "
+			+ "are combined with AND or OR. Returns the matching source ids, and for each source the ids of its trees that matched the "
+			+ "tree clauses.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation compoundSearch(@Source GraphDatabaseService graphDb,
+			@Description("The property for each clause. A list of searchable properties is available from the getSearchableProperties service.")
+				@Parameter(name = "properties", optional = false) String[] properties,
+			@Description("The value for each clause") @Parameter(name = "values", optional = false) String[] values,
+			@Description("The mode for each clause: one of FUZZY, EXACT, AT_LEAST, AT_MOST. Defaults to FUZZY for all clauses.")
+				@Parameter(name = "modes", optional = true) String[] modes,
+			@Description("How to combine the clauses: AND or OR. Defaults to AND.") @Parameter(name = "operator", optional = true) String operator) {
+
+		if (values.length != properties.length || (modes != null && modes.length != properties.length)) {
+			throw new IllegalArgumentException("There must be one value (and mode, if modes are given) for each property");
+		}
+
+		boolean matchAll = operator == null || operator.equalsIgnoreCase("AND");
+		if (!matchAll && !operator.equalsIgnoreCase("OR")) {
+			throw new IllegalArgumentException("Unrecognized operator: " + operator);
+		}
+
+		CompoundSearch search = new CompoundSearch(graphDb, matchAll);
+		for (int i = 0; i < properties.length; i++) {
+			search.addClause(SearchableProperty.valueOf(properties[i]), values[i],
+					modes != null ? SearchMode.valueOf(modes[i].toUpperCase()) : SearchMode.FUZZY);
+		}
+		return OpentreeRepresentationConverter.convert(search.execute());
 	}
 
 	/**
@@ -190,11 +390,20 @@ public class Indexing extends ServerPlugin {
 	 * @throws MalformedURLException
 	 * @throws IOException
 	 */
-	private NexsonSource readRemoteNexson(String url, String sourceId) throws MalformedURLException, IOException {
-		BufferedReader nexson = new BufferedReader(new InputStreamReader(new URL(url).openStream()));
-		MessageLogger msgLogger = new MessageLogger("");
+	static NexsonSource readRemoteNexson(String url, String sourceId) throws MalformedURLException, IOException {
+		return readNexson(new BufferedReader(new InputStreamReader(new URL(url).openStream())), sourceId);
+	}
 
-		// TODO: sometimes this returns a null for the first tree, but no errors. Why? Why don't we get an error?
-		return NexsonReader.readNexson(nexson, sourceId, false, msgLogger);
+	/**
+	 * helper function for reading a nexson, which closes the reader when done. the trees are imported in parallel.
+	 */
+	static NexsonSource readNexson(Reader nexson, String sourceId) throws IOException {
+		MessageLogger msgLogger = new MessageLogger("");
+		try {
+			// TODO: sometimes this returns a null for the first tree, but no errors. Why? Why don't we get an error?
+			return NexsonStreamReader.readNexson(nexson, sourceId, false, msgLogger, NexsonReader.getTreeImportExecutor());
+		} finally {
+			nexson.close();
+		}
 	}
 }
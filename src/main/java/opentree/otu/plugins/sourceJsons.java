@@ -24,6 +24,9 @@ import org.neo4j.server.rest.repr.Representation;
 
 public class sourceJsons extends ServerPlugin {
 
+	// the number of tree nodes written per transaction when loading multiple trees
+	static final int DEFAULT_COMMIT_INTERVAL = DatabaseManager.DEFAULT_COMMIT_INTERVAL;
+
 	@Description("Return JSON containing information tree ids for all local sources")
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation getTreeIdsForAllLocalSources(@Source GraphDatabaseService graphDb,
@@ -95,7 +98,13 @@ public class sourceJsons extends ServerPlugin {
 		// trees.add(t);
 
 		TreeReader tr = new TreeReader();
-		source.addTree(tr.readTree(newickString));
+		try {
+			source.addTree(tr.readTree(newickString));
+		} catch (IllegalArgumentException ex) {
+			result.put("worked","false");
+			result.put("message", ex.getMessage());
+			return OpentreeRepresentationConverter.convert(result);
+		}
 
 		try {
 			dm.addSource(source, DatabaseManager.LOCAL_LOCATION);
@@ -109,23 +118,51 @@ public class sourceJsons extends ServerPlugin {
 	}
 
 	/**
-	 * this is single or multiple trees
+	 * Add a source containing any number of trees, e.g. a posterior sample. The trees are read and written to the graph
+	 * one at a time, in chunked transactions, so neither all the trees nor all their nodes need to be held in memory.
 	 * 
 	 * @param graphDb
 	 * @param sourceId
 	 * @param newickString
 	 * @return
 	 */
-	@Description("Incomplete placeholder for multi-tree upload")
+	@Description("Load a source from a string containing multiple newick trees, or a nexus file with a trees block")
 	@PluginTarget(GraphDatabaseService.class)
-	public String putSourceNewickMultiple(
+	public Representation putSourceNewickMultiple(
 			@Source GraphDatabaseService graphDb,
 			@Description("A string to be used as the source id for for this source. Source ids must be unique.")
 			@Parameter(name = "sourceId", optional = false) String sourceId,
-			@Description("A newick string containing the tree to be added.")
-			@Parameter(name = "newickString", optional = false) String newickString) {
+			@Description("A string containing one or more newick trees separated by semicolons, or a nexus file with a trees block.")
+			@Parameter(name = "newickString", optional = false) String newickString,
+			@Description("The number of tree nodes to write per transaction. Defaults to " + DEFAULT_COMMIT_INTERVAL + ".")
+			@Parameter(name = "commitInterval", optional = true) Integer commitInterval) {
+
+		Map<String, Object> result = new HashMap<String, Object>();
+
+		NexsonSource source = new NexsonSource(sourceId);
+		source.setTreeStream(new TreeFileReader(new StringReader(newickString)));
+
+		DatabaseManager manager = new DatabaseManager(graphDb);
+		try {
+			manager.addSource(source, DatabaseManager.LOCAL_LOCATION, false,
+					commitInterval == null ? DEFAULT_COMMIT_INTERVAL : commitInterval);
+			result.put("worked", true);
+
+		} catch (DuplicateSourceException ex) {
+			result.put("worked", false);
+			result.put("message", "a local source with id " + sourceId + " already exists in the database");
+
+		} catch (IllegalArgumentException ex) {
+			// remove any trees that were added before the bad one
+			Node sourceMeta = new DatabaseBrowser(graphDb).getSourceMetaNode(sourceId, DatabaseBrowser.LOCAL_LOCATION);
+			if (sourceMeta != null && DatabaseManager.isImportInProgress(sourceMeta)) {
+				manager.rollbackSourceImport(sourceMeta);
+			}
+			result.put("worked", false);
+			result.put("message", ex.getMessage());
+		}
 
-		return null;
+		return OpentreeRepresentationConverter.convert(result);
 	}
 
 	@Description("Load a nexson file into the graph database")
@@ -135,7 +172,10 @@ public class sourceJsons extends ServerPlugin {
 			@Description("A string to be used as the source id for for this source. Source ids must be unique.")
 			@Parameter(name = "sourceId", optional = false) String sourceId,
 			@Description("A nexson string to be parsed")
-			@Parameter(name = "nexsonString", optional = false) String nexsonString) {
+			@Parameter(name = "nexsonString", optional = false) String nexsonString,
+			@Description("If set, the trees are written in transactions of this many nodes. If a previous chunked import of this "
+					+ "source was interrupted, it will be resumed.")
+			@Parameter(name = "commitInterval", optional = true) Integer commitInterval) {
 
 		Map<String, Object> result = new HashMap<String, Object>();
 
@@ -143,7 +183,7 @@ public class sourceJsons extends ServerPlugin {
 		StringReader sr = new StringReader(nexsonString);
 		NexsonSource source = null;
 		try {
-			source = NexsonReader.readNexson(sr, sourceId, false, msgLogger);
+			source = NexsonStreamReader.readNexson(sr, sourceId, false, msgLogger);
 		} catch (IOException e) {
 			result.put("worked",false);
 			result.put("message", e.toString());
@@ -151,7 +191,16 @@ public class sourceJsons extends ServerPlugin {
 
 		DatabaseManager manager = new DatabaseManager(graphDb);
 		try {
-			manager.addSource(source, DatabaseManager.LOCAL_LOCATION);
+			if (commitInterval == null) {
+				manager.addSource(source, DatabaseManager.LOCAL_LOCATION);
+			} else {
+				Node existing = new DatabaseBrowser(graphDb).getSourceMetaNode(sourceId, DatabaseBrowser.LOCAL_LOCATION);
+				if (existing != null && DatabaseManager.isImportInProgress(existing)) {
+					manager.resumeSourceImport(source, DatabaseManager.LOCAL_LOCATION, commitInterval);
+				} else {
+					manager.addSource(source, DatabaseManager.LOCAL_LOCATION, false, commitInterval);
+				}
+			}
 		} catch (DuplicateSourceException ex) {
 			result.put("worked",false);
 			result.put("message","a local source with id " + sourceId + " already exists in the database");
@@ -164,6 +213,26 @@ public class sourceJsons extends ServerPlugin {
 		return OpentreeRepresentationConverter.convert(result);
 	}
 
+	@Description("Remove the partially imported trees and metadata for a chunked source import that was interrupted")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation rollbackInterruptedSourceImport(@Source GraphDatabaseService graphDb,
+			@Description("source Id") @Parameter(name = "sourceId", optional = false) String sourceId) {
+
+		Map<String, Object> result = new HashMap<String, Object>();
+
+		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		Node sourceMeta = browser.getSourceMetaNode(sourceId, DatabaseBrowser.LOCAL_LOCATION);
+		if (sourceMeta == null || !DatabaseManager.isImportInProgress(sourceMeta)) {
+			result.put("worked", false);
+			result.put("message", "there is no interrupted import for the local source " + sourceId);
+		} else {
+			new DatabaseManager(graphDb).rollbackSourceImport(sourceMeta);
+			result.put("worked", true);
+		}
+
+		return OpentreeRepresentationConverter.convert(result);
+	}
+
 	@Description("Get source metadata")
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation getSourceMetaData(@Source GraphDatabaseService graphDb,
@@ -1,5 +1,7 @@
 package opentree.otu.plugins;
 
+import gnu.trove.list.array.TIntArrayList;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -19,6 +21,11 @@ import jade.tree.*;
 import opentree.otu.DatabaseBrowser;
 import opentree.otu.DatabaseManager;
 import opentree.otu.DatabaseUtils;
+import opentree.otu.TaxonSearchIndex;
+import opentree.otu.TreeJsonSerializer;
+import opentree.otu.TreeSnapshot;
+import opentree.otu.TreeSnapshotCache;
+import opentree.otu.TreeWindow;
 import opentree.otu.constants.NodeProperty;
 import opentree.otu.constants.RelType;
 import opentree.otu.exceptions.NoSuchTreeException;
@@ -41,6 +48,9 @@ import com.sun.jersey.api.client.config.DefaultClientConfig;
 
 public class treeJsons extends ServerPlugin{
 	
+	private static final int DEFAULT_SIMILAR_TREES_LIMIT = 10;
+	private static final int DEFAULT_WINDOW_MAX_NODES = 300;
+	
 	/**
 	 * @param nodeId
 	 * @return
@@ -125,11 +135,107 @@ public class treeJsons extends ServerPlugin{
 
 		// TODO: add check for whether tree is imported. If not then return error instead of just empty tree
 		Node rootNode = graphDb.getNodeById(nodeId);
-		JadeTree t = DatabaseBrowser.getTreeFromNode(rootNode, 300);
+		TreeSnapshot tree = TreeSnapshotCache.getInstance(graphDb).getSnapshot(DatabaseUtils.getRootOfTreeContaining(rootNode));
 
-		return t.getRoot().getJSON(false);
+		// plugins return their results rather than writing to the response, so this is written into a single buffer
+		return new TreeJsonSerializer(tree, tree.getIndex(nodeId), 300).toJSON();
 	}
 	
+	@Description( "Get a level of detail view of a tree below the indicated node, for browsing large trees. The largest "
+			+ "clades are expanded first, within the node and depth budgets; clades that are not expanded are returned as "
+			+ "collapsed stubs with their tip counts and representative names. Also returns the ancestors of the node, "
+			+ "nearest first, up to the node budget." )
+	@PluginTarget( GraphDatabaseService.class )
+	public Representation getTreeWindow(@Source GraphDatabaseService graphDb,
+			@Description( "The Neo4j node id of the node to view the tree below.")
+			@Parameter(name = "nodeId", optional = false) Long nodeId,
+			@Description( "The maximum number of nodes to return, including collapsed stubs. Defaults to " + DEFAULT_WINDOW_MAX_NODES + ".")
+			@Parameter(name = "maxNodes", optional = true) Integer maxNodes,
+			@Description( "The maximum number of edges from the node to any returned node. Unlimited by default.")
+			@Parameter(name = "maxDepth", optional = true) Integer maxDepth) {
+
+		Node node = graphDb.getNodeById(nodeId);
+		Node root = DatabaseUtils.getRootOfTreeContaining(node);
+		TreeSnapshot tree = TreeSnapshotCache.getInstance(graphDb).getSnapshot(root);
+		int focal = tree.getIndex(nodeId);
+		if (maxNodes == null) {
+			maxNodes = DEFAULT_WINDOW_MAX_NODES;
+		}
+
+		TreeWindow window = new TreeWindow(tree, focal, maxNodes, maxDepth != null ? maxDepth : Integer.MAX_VALUE);
+
+		List<Object> ancestors = new LinkedList<Object>();
+		for (int ancestor = tree.getParent(focal); ancestor >= 0 && ancestors.size() < maxNodes; ancestor = tree.getParent(ancestor)) {
+			ancestors.add(window.getNodeSummary(ancestor));
+		}
+
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("root_node_id", root.getId());
+		result.put("ancestors", ancestors);
+		result.put("node_count", window.getNodeCount());
+		result.put("tree", window.toMap());
+		return OpentreeRepresentationConverter.convert(result);
+	}
+
+	@Description( "Get the most recent common ancestor in a tree of the tips with the indicated names and/or mapped ott ids. "
+			+ "Taxa that are not found in the tree are listed in the result and otherwise ignored." )
+	@PluginTarget( GraphDatabaseService.class )
+	public Representation getMRCA(@Source GraphDatabaseService graphDb,
+			@Description( "The database tree id for the tree")
+			@Parameter(name = "treeId", optional = false) String treeId,
+			@Description( "The names of the tips")
+			@Parameter(name = "names", optional = true) String[] names,
+			@Description( "The ott ids the tips are mapped to")
+			@Parameter(name = "ottIds", optional = true) Long[] ottIds) throws NoSuchTreeException {
+
+		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+
+		Node root = browser.getTreeRootNode(treeId, browser.LOCAL_LOCATION);
+		if (root == null) {
+			throw new NoSuchTreeException("Could not find a tree with id " + treeId);
+		}
+		TreeSnapshot tree = TreeSnapshotCache.getInstance(graphDb).getSnapshot(root);
+
+		TIntArrayList tips = new TIntArrayList();
+		List<String> namesNotFound = new LinkedList<String>();
+		List<Long> ottIdsNotFound = new LinkedList<Long>();
+		if (names != null) {
+			for (String name : names) {
+				int tip = tree.getTipByName(name);
+				if (tip >= 0) {
+					tips.add(tip);
+				} else {
+					namesNotFound.add(name);
+				}
+			}
+		}
+		if (ottIds != null) {
+			for (Long ottId : ottIds) {
+				int tip = tree.getTipByOttId(ottId);
+				if (tip >= 0) {
+					tips.add(tip);
+				} else {
+					ottIdsNotFound.add(ottId);
+				}
+			}
+		}
+
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("tree_id", treeId);
+		result.put("found_tip_count", tips.size());
+		result.put("names_not_found", namesNotFound);
+		result.put("ott_ids_not_found", ottIdsNotFound);
+		int mrca = tree.getMRCA(tips.toArray());
+		if (mrca >= 0) {
+			result.put("mrca_node_id", tree.getNodeId(mrca));
+			if (tree.getName(mrca) != null) {
+				result.put("mrca_name", tree.getName(mrca));
+			}
+			result.put(NodeProperty.SUBTREE_TIP_COUNT.name, tree.getTipCount(mrca));
+		}
+		return OpentreeRepresentationConverter.convert(result);
+	}
+
 	@Description( "Get tree metadata" )
 	@PluginTarget( GraphDatabaseService.class )
 	public Representation getTreeMetaData(@Source GraphDatabaseService graphDb,
@@ -147,6 +253,29 @@ public class treeJsons extends ServerPlugin{
 		return OpentreeRepresentationConverter.convert(browser.getMetadataForTree(root));
 	}
 	
+	@Description( "Get the trees whose mapped taxa overlap most with those of the specified tree, ordered by estimated Jaccard "
+			+ "similarity (shared taxa over the taxa in either tree). Trees with a similarity below about 0.1 may not be found." )
+	@PluginTarget( GraphDatabaseService.class )
+	public Representation getSimilarTrees(@Source GraphDatabaseService graphDb,
+			@Description( "The database tree id for the tree")
+			@Parameter(name = "treeId", optional = false) String treeId,
+			@Description( "The maximum number of trees to return. Defaults to " + DEFAULT_SIMILAR_TREES_LIMIT + ".")
+			@Parameter(name = "limit", optional = true) Integer limit) throws NoSuchTreeException {
+		
+		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+
+		Node root = browser.getTreeRootNode(treeId, browser.LOCAL_LOCATION);
+		if (root == null) {
+			throw new NoSuchTreeException("Could not find a tree with id " + treeId);
+		}
+		
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("tree_id", treeId);
+		result.put("similar_trees", TaxonSearchIndex.getInstance(graphDb).getSimilarTrees(root,
+				limit != null ? limit : DEFAULT_SIMILAR_TREES_LIMIT));
+		return OpentreeRepresentationConverter.convert(result);
+	}
+	
 	@Description( "Get the id for the source associated with the specified tree id" )
 	@PluginTarget( GraphDatabaseService.class )
 	public String getSourceIdForTreeId(@Source GraphDatabaseService graphDb,
@@ -184,14 +313,18 @@ public class treeJsons extends ServerPlugin{
 		LinkedList<Long> ids = new LinkedList<Long>();
 		LinkedList<String> names = new LinkedList<String>();
 		
-		// make a map of these with ids and original names
-		for (Node otu : DatabaseUtils.DESCENDANT_OTU_TRAVERSAL.traverse(root).nodes()) {
+		// make a map of these with ids and original names. the descendants of the root are a range of the tree's preorder
+		TreeSnapshot tree = TreeSnapshotCache.getInstance(root.getGraphDatabase()).getSnapshot(DatabaseUtils.getRootOfTreeContaining(root));
+		int subtreeRoot = tree.getIndex(root.getId());
+		int start = tree.getPreorderPosition(subtreeRoot);
+		for (int position = start; position < start + tree.getNodeCount(subtreeRoot); position++) {
+			int otu = tree.getNodeInPreorder(position);
 			
 			// TODO: allow the choice to use mapped or original names... currently that leads to nullpointerexceptions
 
-			if (otu.hasProperty(NodeProperty.NAME.name)) {
-				ids.add(otu.getId());
-				names.add((String) otu.getProperty(NodeProperty.NAME.name));
+			if (tree.getChildCount(otu) == 0 && tree.getName(otu) != null) {
+				ids.add(tree.getNodeId(otu));
+				names.add(tree.getName(otu));
 			}
 		}
 		